@@ -0,0 +1,144 @@
+import java.io.File;
+import java.sql.Connection;
+import java.sql.DriverManager;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.time.LocalDate;
+import java.util.Arrays;
+
+// Compares the legacy and tuned SqliteProfile on a library.db-shaped
+// database: commit latency of the issue and return transactions, and the
+// time of a full scan of the books table.
+//
+//   javac -cp "lib/sqlite-jdbc-3.44.1.0.jar" -d bin src/*.java bench/*.java
+//   java -cp "bin:lib/*" SqliteProfileBenchmark [books] [loans]
+public class SqliteProfileBenchmark {
+    public static void main(String[] args) throws Exception {
+        int books = args.length > 0 ? Integer.parseInt(args[0]) : 100000;
+        int loans = args.length > 1 ? Integer.parseInt(args[1]) : 2000;
+
+        System.out.printf("%-8s %12s %12s %12s %12s %12s%n",
+                "profile", "issue p50", "issue p99", "return p50", "return p99", "scan");
+        for (SqliteProfile profile : new SqliteProfile[] {SqliteProfile.legacy(), SqliteProfile.tuned()}) {
+            File file = new File("bench-" + profile.name + ".db");
+            deleteDatabase(file);
+            try (Connection conn = DriverManager.getConnection("jdbc:sqlite:" + file.getPath())) {
+                profile.apply(conn);
+                seed(conn, books);
+                long[] issue = new long[loans];
+                long[] ret = new long[loans];
+                runLoans(conn, books, issue, ret);
+                long scan = scanBooks(conn);
+                System.out.printf("%-8s %10.3fms %10.3fms %10.3fms %10.3fms %10.1fms%n", profile.name,
+                        percentile(issue, 50), percentile(issue, 99),
+                        percentile(ret, 50), percentile(ret, 99), scan / 1e6);
+            }
+            deleteDatabase(file);
+        }
+    }
+
+    private static void seed(Connection conn, int books) throws SQLException {
+        LibrarySchema.migrator().migrate(conn);
+        try (Statement stmt = conn.createStatement()) {
+            stmt.execute("INSERT INTO users (name, email) VALUES ('Bench User', 'bench@example.com')");
+        }
+        conn.setAutoCommit(false);
+        try (PreparedStatement pstmt = conn.prepareStatement(
+                "INSERT INTO books (title, author, isbn, total_copies, available_copies) VALUES (?, ?, ?, 3, 3)")) {
+            for (int i = 0; i < books; i++) {
+                pstmt.setString(1, "Title " + i);
+                pstmt.setString(2, "Author " + (i % 5000));
+                pstmt.setString(3, String.format("978%010d", i));
+                pstmt.addBatch();
+                if (i % 1000 == 999) {
+                    pstmt.executeBatch();
+                }
+            }
+            pstmt.executeBatch();
+            conn.commit();
+        } finally {
+            conn.setAutoCommit(true);
+        }
+    }
+
+    // The same statements and transaction shape as issueBook() and returnBook()
+    private static void runLoans(Connection conn, int books, long[] issue, long[] ret) throws SQLException {
+        try (PreparedStatement take = conn.prepareStatement(
+                     "UPDATE books SET available_copies = available_copies - 1 WHERE book_id=? AND available_copies > 0");
+             PreparedStatement insert = conn.prepareStatement(
+                     "INSERT INTO issued_books (book_id, user_id, issue_date, due_date) VALUES (?, 1, ?, ?) " +
+                     "RETURNING issue_id");
+             PreparedStatement close = conn.prepareStatement(
+                     "UPDATE issued_books SET return_date=?, late_fee=0 WHERE issue_id=? AND return_date IS NULL " +
+                     "RETURNING book_id");
+             PreparedStatement restore = conn.prepareStatement(
+                     "UPDATE books SET available_copies = available_copies + 1 WHERE book_id=?")) {
+            String today = LocalDate.now().toString();
+            for (int i = 0; i < issue.length; i++) {
+                int bookId = 1 + (int) ((i * 7919L) % books);
+                long start = System.nanoTime();
+                conn.setAutoCommit(false);
+                take.setInt(1, bookId);
+                take.executeUpdate();
+                insert.setInt(1, bookId);
+                insert.setString(2, today);
+                insert.setString(3, today);
+                long issueId;
+                try (ResultSet keys = insert.executeQuery()) {
+                    keys.next();
+                    issueId = keys.getLong(1);
+                }
+                conn.commit();
+                conn.setAutoCommit(true);
+                issue[i] = System.nanoTime() - start;
+
+                start = System.nanoTime();
+                conn.setAutoCommit(false);
+                close.setString(1, today);
+                close.setLong(2, issueId);
+                try (ResultSet rs = close.executeQuery()) {
+                    rs.next();
+                    restore.setInt(1, rs.getInt(1));
+                }
+                restore.executeUpdate();
+                conn.commit();
+                conn.setAutoCommit(true);
+                ret[i] = System.nanoTime() - start;
+            }
+        }
+    }
+
+    private static long scanBooks(Connection conn) throws SQLException {
+        long best = Long.MAX_VALUE;
+        for (int run = 0; run < 5; run++) {
+            long start = System.nanoTime();
+            long checksum = 0;
+            try (Statement stmt = conn.createStatement();
+                 ResultSet rs = stmt.executeQuery("SELECT * FROM books")) {
+                while (rs.next()) {
+                    checksum += rs.getInt("available_copies") + rs.getString("title").length();
+                }
+            }
+            if (checksum == 0) {
+                System.out.println("empty scan");
+            }
+            best = Math.min(best, System.nanoTime() - start);
+        }
+        return best;
+    }
+
+    private static double percentile(long[] samples, int percentile) {
+        long[] sorted = samples.clone();
+        Arrays.sort(sorted);
+        int index = Math.min(sorted.length - 1, (int) Math.ceil(percentile / 100.0 * sorted.length) - 1);
+        return sorted[Math.max(0, index)] / 1e6;
+    }
+
+    private static void deleteDatabase(File file) {
+        for (String suffix : new String[] {"", "-wal", "-shm", "-journal"}) {
+            new File(file.getPath() + suffix).delete();
+        }
+    }
+}
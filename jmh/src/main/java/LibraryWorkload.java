@@ -0,0 +1,214 @@
+import library.jmh.Workload;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.nio.file.Files;
+import java.sql.Connection;
+import java.sql.DriverManager;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.List;
+import java.util.Map;
+import java.util.SplittableRandom;
+
+// The hot paths HotPathBenchmark measures, called straight on a
+// LibraryService over bench-library-<books>.db.
+//
+// Seeding imports the books and members through CatalogImporter and then
+// issues one loan per 20 books, returning half of them. It ends by writing
+// a bench_seed row with the book count, and open() only reuses a database
+// whose marker matches; one left behind by an interrupted seed, or seeded
+// at another size, is deleted and seeded again.
+public class LibraryWorkload implements Workload {
+    private static final int PAGE_SIZE = 200;
+    private static final int PICKER_SIZE = 20;
+
+    private static final String[] WORDS = {
+        "ancient", "autumn", "battle", "beyond", "bridge", "broken", "castle", "city", "crown", "dark",
+        "dawn", "desert", "dragon", "dream", "empire", "engine", "falcon", "fire", "forest", "garden",
+        "ghost", "glass", "golden", "harbor", "hidden", "history", "house", "iron", "island", "journey",
+        "kingdom", "last", "light", "lost", "machine", "memory", "midnight", "mirror", "moon", "mountain",
+        "night", "ocean", "orchard", "people", "planet", "river", "road", "secret", "shadow", "silent",
+        "silver", "song", "spring", "star", "stone", "storm", "summer", "sword", "tower", "valley",
+        "voyage", "war", "water", "white", "wild", "wind", "winter", "wings", "wolf", "world"
+    };
+    private static final String[] FIRST_NAMES = {
+        "Aarav", "Aditi", "Anita", "Arjun", "Bhavna", "Chetan", "Deepa", "Farhan", "Gauri", "Harish",
+        "Isha", "Kabir", "Kavya", "Meera", "Nikhil", "Pooja", "Rahul", "Riya", "Sanjay", "Vikram"
+    };
+    private static final String[] LAST_NAMES = {
+        "Bose", "Chopra", "Desai", "Gupta", "Iyer", "Joshi", "Kapoor", "Kulkarni", "Mehta", "Nair",
+        "Patel", "Rao", "Reddy", "Shah", "Sharma", "Singh", "Verma"
+    };
+
+    private LibraryService service;
+    private int books;
+    private int users;
+    private long loans;
+
+    @Override
+    public void open(File dir, int books) throws Exception {
+        Files.createDirectories(dir.toPath());
+        File file = new File(dir, "bench-library-" + books + ".db");
+        String url = "jdbc:sqlite:" + file.getPath();
+        boolean seeded = seededBooks(file, url) == books;
+        if (!seeded) {
+            deleteDatabase(file);
+        }
+        this.books = books;
+        this.users = Math.max(1, books / 10);
+        service = LibraryService.open(url, SqliteProfile.tuned(), new ChangeBus());
+        if (!seeded) {
+            seed(dir);
+            markSeeded(url, books);
+        }
+        service.warmAvailability();
+        loans = lastLoanId();
+    }
+
+    // A checkout that finds the book out of copies still counts: it is the
+    // same request the desk would have made
+    @Override
+    public Object checkout(SplittableRandom random) throws Exception {
+        LibraryService.Loan loan = service.issueBook(1 + random.nextInt(users), 1 + random.nextInt(books));
+        if (loan != null) {
+            return service.returnBook((int) loan.issueId);
+        }
+        return null;
+    }
+
+    @Override
+    public Object issuedPage(SplittableRandom random) throws Exception {
+        return service.listLoans(random.nextLong(Math.max(1, loans)), PAGE_SIZE);
+    }
+
+    @Override
+    public Object catalogPage(SplittableRandom random) throws Exception {
+        return service.listBooks(random.nextInt(books), PAGE_SIZE);
+    }
+
+    @Override
+    public Object bookPicker(SplittableRandom random) throws Exception {
+        return service.bookPicks(prefix(WORDS, random), PICKER_SIZE);
+    }
+
+    @Override
+    public Object userPicker(SplittableRandom random) throws Exception {
+        return service.userPicks(prefix(FIRST_NAMES, random), PICKER_SIZE);
+    }
+
+    @Override
+    public void writeCatalog(File csv, int books) throws IOException {
+        writeCatalog(csv, books, new SplittableRandom(books));
+    }
+
+    @Override
+    public long importCatalog(File csv, File database) throws Exception {
+        deleteDatabase(database);
+        try (LibraryService fresh = LibraryService.open("jdbc:sqlite:" + database.getPath(), SqliteProfile.tuned(),
+                new ChangeBus())) {
+            return fresh.importBooks(csv, (rows, bytes) -> true).rows;
+        }
+    }
+
+    @Override
+    public void close() throws SQLException {
+        if (service != null) {
+            service.close();
+        }
+    }
+
+    private void seed(File dir) throws Exception {
+        long start = System.currentTimeMillis();
+        SplittableRandom random = new SplittableRandom(books);
+        File csv = File.createTempFile("bench-books", ".csv", dir);
+        try {
+            writeCatalog(csv, books, random);
+            service.importBooks(csv, (rows, bytes) -> true);
+
+            try (PrintWriter out = new PrintWriter(csv, "UTF-8")) {
+                out.println("name,email,phone");
+                for (int i = 0; i < users; i++) {
+                    out.println(pick(FIRST_NAMES, random) + " " + pick(LAST_NAMES, random) + "," +
+                                "member" + i + "@example.com," + (9000000000L + i));
+                }
+            }
+            service.importUsers(csv, (rows, bytes) -> true);
+        } finally {
+            csv.delete();
+        }
+
+        // One loan for every 20 books, half of them already returned
+        service.warmAvailability();
+        for (int i = 0; i < books / 20; i++) {
+            LibraryService.Loan loan = service.issueBook(1 + random.nextInt(users), 1 + random.nextInt(books));
+            if (loan != null && i % 2 == 0) {
+                service.returnBook((int) loan.issueId);
+            }
+        }
+        System.out.printf("seeded %d books in %.1fs%n", books, (System.currentTimeMillis() - start) / 1000.0);
+    }
+
+    private static void writeCatalog(File csv, int books, SplittableRandom random) throws IOException {
+        try (PrintWriter out = new PrintWriter(csv, "UTF-8")) {
+            out.println("title,author,isbn,copies");
+            for (int i = 0; i < books; i++) {
+                out.println(pick(WORDS, random) + " " + pick(WORDS, random) + " " + pick(WORDS, random) + "," +
+                            pick(FIRST_NAMES, random) + " " + pick(LAST_NAMES, random) + "," +
+                            String.format("978%010d", i) + "," + (1 + random.nextInt(3)));
+            }
+        }
+    }
+
+    // The book count recorded by a completed seed, or -1 when there is no
+    // database or it was never finished
+    private static int seededBooks(File file, String url) {
+        if (!file.exists()) {
+            return -1;
+        }
+        try (Connection conn = DriverManager.getConnection(url);
+             Statement stmt = conn.createStatement();
+             ResultSet rs = stmt.executeQuery("SELECT books FROM bench_seed")) {
+            return rs.next() ? rs.getInt(1) : -1;
+        } catch (SQLException e) {
+            return -1;
+        }
+    }
+
+    private static void markSeeded(String url, int books) throws SQLException {
+        try (Connection conn = DriverManager.getConnection(url);
+             Statement stmt = conn.createStatement()) {
+            stmt.execute("CREATE TABLE IF NOT EXISTS bench_seed (books INTEGER NOT NULL)");
+            stmt.execute("DELETE FROM bench_seed");
+            stmt.execute("INSERT INTO bench_seed (books) VALUES (" + books + ")");
+        }
+    }
+
+    private static void deleteDatabase(File file) throws IOException {
+        for (String suffix : new String[] {"", "-wal", "-shm"}) {
+            Files.deleteIfExists(new File(file.getPath() + suffix).toPath());
+        }
+    }
+
+    private long lastLoanId() throws Exception {
+        long last = 0;
+        List<Map<String, Object>> page;
+        // Walk to the end once; cheap next to seeding and keeps the service
+        // API free of benchmark-only queries
+        while (!(page = service.listLoans(last, 500)).isEmpty()) {
+            last = ((Number) page.get(page.size() - 1).get("issue_id")).longValue();
+        }
+        return last;
+    }
+
+    private static String pick(String[] values, SplittableRandom random) {
+        return values[random.nextInt(values.length)];
+    }
+
+    private static String prefix(String[] values, SplittableRandom random) {
+        String value = pick(values, random);
+        return value.substring(0, Math.min(3, value.length()));
+    }
+}
@@ -0,0 +1,102 @@
+package library.jmh;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.File;
+import java.util.SplittableRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+// Throughput and sampled latency (JMH reports p0.99 among the percentiles)
+// of the data-access hot paths, through LibraryService with no Swing, on
+// library.db-shaped databases of 10k, 100k and 1M books:
+//
+//   checkout            issueBook + returnBook, one caller
+//   checkoutContended   the same from 16 threads, exercising group commit
+//   issuedPage          listLoans, the Issue/Return table's join
+//   catalogPage         listBooks at a random point in the catalog
+//   bookPicker          bookPicks for a three-letter prefix
+//   userPicker          userPicks for a three-letter prefix
+//
+// Each size is seeded once into -Dlibrary.bench.dir (bench-data by default)
+// and reused by later forks and runs; see LibraryWorkload.
+@State(Scope.Benchmark)
+@BenchmarkMode({Mode.Throughput, Mode.SampleTime})
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Fork(1)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+public class HotPathBenchmark {
+    @Param({"10000", "100000", "1000000"})
+    public int books;
+
+    private Workload workload;
+
+    // Each benchmark thread draws from its own generator
+    @State(Scope.Thread)
+    public static class Caller {
+        private static final AtomicLong SEEDS = new AtomicLong(7);
+
+        SplittableRandom random;
+
+        @Setup(Level.Trial)
+        public void setUp() {
+            random = new SplittableRandom(SEEDS.getAndAdd(31));
+        }
+    }
+
+    @Setup(Level.Trial)
+    public void open() throws Exception {
+        workload = Workload.load();
+        workload.open(new File(System.getProperty("library.bench.dir", "bench-data")), books);
+    }
+
+    @TearDown(Level.Trial)
+    public void close() throws Exception {
+        workload.close();
+    }
+
+    @Benchmark
+    public Object checkout(Caller caller) throws Exception {
+        return workload.checkout(caller.random);
+    }
+
+    @Benchmark
+    @Threads(16)
+    public Object checkoutContended(Caller caller) throws Exception {
+        return workload.checkout(caller.random);
+    }
+
+    @Benchmark
+    public Object issuedPage(Caller caller) throws Exception {
+        return workload.issuedPage(caller.random);
+    }
+
+    @Benchmark
+    public Object catalogPage(Caller caller) throws Exception {
+        return workload.catalogPage(caller.random);
+    }
+
+    @Benchmark
+    public Object bookPicker(Caller caller) throws Exception {
+        return workload.bookPicker(caller.random);
+    }
+
+    @Benchmark
+    public Object userPicker(Caller caller) throws Exception {
+        return workload.userPicker(caller.random);
+    }
+}
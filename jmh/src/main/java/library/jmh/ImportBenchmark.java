@@ -0,0 +1,63 @@
+package library.jmh;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.File;
+import java.nio.file.Files;
+import java.util.concurrent.TimeUnit;
+
+// Rows per second of a CSV book import into an empty database, end to end
+// through LibraryService.importBooks: parsing, the chunked commits on the
+// writer, and the availability snapshot and cache warm that follow. Each
+// invocation imports the same 100k-row file into a fresh database, so the
+// score is directly comparable with the import dialog's rows/sec figure.
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Fork(1)
+@Warmup(iterations = 2, time = 1)
+@Measurement(iterations = 5, time = 1)
+public class ImportBenchmark {
+    private static final int ROWS = 100000;
+
+    private Workload workload;
+    private File csv;
+    private File database;
+
+    @Setup(Level.Trial)
+    public void writeCatalog() throws Exception {
+        File dir = new File(System.getProperty("library.bench.dir", "bench-data"));
+        Files.createDirectories(dir.toPath());
+        workload = Workload.load();
+        csv = new File(dir, "import-" + ROWS + ".csv");
+        database = new File(dir, "import-" + ROWS + ".db");
+        workload.writeCatalog(csv, ROWS);
+    }
+
+    @TearDown(Level.Trial)
+    public void deleteCatalog() {
+        csv.delete();
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(ROWS)
+    public long importBooks() throws Exception {
+        long rows = workload.importCatalog(csv, database);
+        if (rows != ROWS) {
+            throw new IllegalStateException("Imported " + rows + " of " + ROWS + " rows");
+        }
+        return rows;
+    }
+}
@@ -0,0 +1,39 @@
+package library.jmh;
+
+import java.io.File;
+import java.util.SplittableRandom;
+
+// What HotPathBenchmark and ImportBenchmark measure. JMH only accepts benchmarks in a named
+// package and a named package cannot see the application's classes, which
+// live in the default package, so the default-package LibraryWorkload
+// implements this and the benchmark loads it once by name.
+public interface Workload extends AutoCloseable {
+    // Opens the database of the given number of books in the directory,
+    // seeding it first unless a complete one is already there
+    void open(File dir, int books) throws Exception;
+
+    // issueBook then returnBook, as a desk checkout and check-in
+    Object checkout(SplittableRandom random) throws Exception;
+
+    // A page of the Issue/Return table's loans join
+    Object issuedPage(SplittableRandom random) throws Exception;
+
+    // A page of the catalog from a random point
+    Object catalogPage(SplittableRandom random) throws Exception;
+
+    // The book and member pickers for a three-letter prefix
+    Object bookPicker(SplittableRandom random) throws Exception;
+
+    Object userPicker(SplittableRandom random) throws Exception;
+
+    // Writes a CSV catalog of generated books, title, author, isbn, copies
+    void writeCatalog(File csv, int books) throws Exception;
+
+    // Imports the CSV into a new database at the given file through
+    // LibraryService.importBooks and returns the rows imported
+    long importCatalog(File csv, File database) throws Exception;
+
+    static Workload load() throws ReflectiveOperationException {
+        return (Workload) Class.forName("LibraryWorkload").getDeclaredConstructor().newInstance();
+    }
+}
@@ -0,0 +1,120 @@
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.time.LocalDate;
+import java.time.LocalDateTime;
+
+// Moves returned loans out of issued_books into issued_books_archive once
+// they were returned before a cutoff date, so the live table holds open
+// loans and recent returns only. Loans keep their issue_id in the archive;
+// the AUTOINCREMENT on issued_books means an archived id is never reused.
+//
+// Like OverdueEngine, it walks issued_books by issue_id: a pool reader finds
+// where the next BATCH eligible loans end, and the writer then copies and
+// deletes everything eligible in that id range in one transaction. The
+// writer re-checks the return date itself, so a batch stays correct even if
+// loans change between the read and the write, and desk traffic keeps
+// flowing between batches.
+public class ArchiveEngine {
+    private static final int BATCH = 5000;
+
+    static final String ARCHIVE_BATCH_END_SQL =
+            "SELECT MAX(issue_id) FROM (SELECT issue_id FROM issued_books " +
+            "WHERE issue_id > ? AND return_date < ? ORDER BY issue_id LIMIT ?)";
+    private static final String COPY_SQL =
+            "INSERT INTO issued_books_archive " +
+            "(issue_id, book_id, user_id, issue_date, due_date, return_date, late_fee_paise, archived_at) " +
+            "SELECT issue_id, book_id, user_id, issue_date, due_date, return_date, late_fee_paise, ? " +
+            "FROM issued_books WHERE issue_id > ? AND issue_id <= ? AND return_date < ?";
+    // Accrued-fine snapshots only matter while a loan is open; the late fee
+    // copied with the loan is the final figure
+    private static final String DELETE_SNAPSHOTS_SQL =
+            "DELETE FROM fee_snapshots WHERE issue_id IN (SELECT issue_id FROM issued_books " +
+            "WHERE issue_id > ? AND issue_id <= ? AND return_date < ?)";
+    private static final String DELETE_SQL =
+            "DELETE FROM issued_books WHERE issue_id > ? AND issue_id <= ? AND return_date < ?";
+
+    public interface Progress {
+        // Return false to stop after the current batch; batches already
+        // moved stay moved
+        boolean update(long archived);
+    }
+
+    public static class Result {
+        public final LocalDate cutoff;
+        public final long archived;
+        public final long millis;
+        public final boolean cancelled;
+
+        Result(LocalDate cutoff, long archived, long millis, boolean cancelled) {
+            this.cutoff = cutoff;
+            this.archived = archived;
+            this.millis = millis;
+            this.cancelled = cancelled;
+        }
+    }
+
+    private final ConnectionPool pool;
+
+    public ArchiveEngine(ConnectionPool pool) {
+        this.pool = pool;
+    }
+
+    // The cutoff for the configured horizon: loans returned more than
+    // -Dlibrary.archive.horizon_days (365 by default) before today
+    public static LocalDate defaultCutoff() {
+        return LocalDate.now().minusDays(Integer.getInteger("library.archive.horizon_days", 365));
+    }
+
+    // Archives every loan returned before the cutoff
+    public Result run(LocalDate cutoff, Progress progress) throws SQLException {
+        long start = System.currentTimeMillis();
+        String cutoffText = cutoff.toString();
+        String archivedAt = LocalDateTime.now().toString();
+        long afterId = 0;
+        long archived = 0;
+        boolean cancelled = false;
+        while (true) {
+            long fromId = afterId;
+            long toId = pool.read(statements -> {
+                PreparedStatement pstmt = statements.prepare(ARCHIVE_BATCH_END_SQL);
+                pstmt.setLong(1, fromId);
+                pstmt.setString(2, cutoffText);
+                pstmt.setInt(3, BATCH);
+                // MAX() over no rows is NULL, which getLong() reads as 0
+                try (ResultSet rs = statements.query(pstmt)) {
+                    return rs.next() ? rs.getLong(1) : 0L;
+                }
+            });
+            if (toId == 0) {
+                break;
+            }
+            archived += pool.write(statements -> moveRange(statements, fromId, toId, cutoffText, archivedAt));
+            afterId = toId;
+            if (progress != null && !progress.update(archived)) {
+                cancelled = true;
+                break;
+            }
+        }
+        return new Result(cutoff, archived, System.currentTimeMillis() - start, cancelled);
+    }
+
+    private static long moveRange(StatementCache statements, long fromId, long toId, String cutoff,
+                                  String archivedAt) throws SQLException {
+        PreparedStatement copy = statements.prepare(COPY_SQL);
+        copy.setString(1, archivedAt);
+        copy.setLong(2, fromId);
+        copy.setLong(3, toId);
+        copy.setString(4, cutoff);
+        int moved = copy.executeUpdate();
+
+        for (String sql : new String[] {DELETE_SNAPSHOTS_SQL, DELETE_SQL}) {
+            PreparedStatement delete = statements.prepare(sql);
+            delete.setLong(1, fromId);
+            delete.setLong(2, toId);
+            delete.setString(3, cutoff);
+            delete.executeUpdate();
+        }
+        return moved;
+    }
+}
@@ -0,0 +1,206 @@
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.util.Arrays;
+
+// In-process copy of books.available_copies and books.total_copies, kept in
+// parallel int arrays with open addressing (linear probing) so a catalog of
+// a million titles costs a few tens of megabytes and no boxing. Writers
+// update it on the writer thread as their transaction commits, and warm()
+// runs on that thread too, so a change is never applied to a table that is
+// about to be replaced or counted twice. The database stays the source of
+// truth, and issueBook still checks the copy count in SQL.
+//
+// Book ids are AUTOINCREMENT keys and never 0, so 0 marks an empty slot.
+public class AvailabilityCache {
+    private static final int UNKNOWN = -1;
+
+    private int[] keys;
+    private int[] available;
+    private int[] total;
+    private int size;
+    private boolean warmed;
+
+    public AvailabilityCache() {
+        allocate(1024);
+    }
+
+    // Replaces the contents with a fresh read of the books table; called on
+    // the writer thread, between batches
+    public void warm(StatementCache statements) throws SQLException {
+        PreparedStatement pstmt = statements.prepare("SELECT COUNT(*) FROM books");
+        int count;
+        try (ResultSet rs = statements.query(pstmt)) {
+            count = rs.next() ? rs.getInt(1) : 0;
+        }
+        AvailabilityCache fresh = new AvailabilityCache();
+        fresh.allocate(capacityFor(count));
+        pstmt = statements.prepare("SELECT book_id, total_copies, available_copies FROM books");
+        try (ResultSet rs = statements.query(pstmt)) {
+            while (rs.next()) {
+                fresh.insert(rs.getInt(1), rs.getInt(3), rs.getInt(2));
+            }
+        }
+        synchronized (this) {
+            keys = fresh.keys;
+            available = fresh.available;
+            total = fresh.total;
+            size = fresh.size;
+            warmed = true;
+        }
+    }
+
+    public synchronized boolean isWarm() {
+        return warmed;
+    }
+
+    // Copies on the shelf, or -1 if the book is not known to the cache
+    public synchronized int available(int bookId) {
+        int slot = find(bookId);
+        return slot < 0 ? UNKNOWN : available[slot];
+    }
+
+    public synchronized int total(int bookId) {
+        int slot = find(bookId);
+        return slot < 0 ? UNKNOWN : total[slot];
+    }
+
+    public synchronized boolean isAvailable(int bookId) {
+        return available(bookId) > 0;
+    }
+
+    // Up to limit ids of books with at least one copy on the shelf, in no
+    // particular order
+    public synchronized int[] availableIds(int limit) {
+        int[] ids = new int[Math.min(limit, size)];
+        int count = 0;
+        for (int slot = 0; slot < keys.length && count < ids.length; slot++) {
+            if (keys[slot] != 0 && available[slot] > 0) {
+                ids[count++] = keys[slot];
+            }
+        }
+        return count == ids.length ? ids : Arrays.copyOf(ids, count);
+    }
+
+    public synchronized void put(int bookId, int availableCopies, int totalCopies) {
+        insert(bookId, availableCopies, totalCopies);
+    }
+
+    // Applies a committed change in copies on the shelf, such as -1 for an
+    // issue or +1 for a return
+    public synchronized void adjust(int bookId, int delta) {
+        int slot = find(bookId);
+        if (slot >= 0) {
+            available[slot] += delta;
+        }
+    }
+
+    public synchronized void setTotal(int bookId, int totalCopies) {
+        int slot = find(bookId);
+        if (slot >= 0) {
+            total[slot] = totalCopies;
+        }
+    }
+
+    public synchronized void remove(int bookId) {
+        int slot = find(bookId);
+        if (slot < 0) {
+            return;
+        }
+        // Backward-shift deletion: pull later entries of the probe run into
+        // the gap so lookups never need tombstones
+        int mask = keys.length - 1;
+        int gap = slot;
+        int next = (gap + 1) & mask;
+        while (keys[next] != 0) {
+            int home = hash(keys[next]) & mask;
+            if (((next - home) & mask) >= ((next - gap) & mask)) {
+                keys[gap] = keys[next];
+                available[gap] = available[next];
+                total[gap] = total[next];
+                gap = next;
+            }
+            next = (next + 1) & mask;
+        }
+        keys[gap] = 0;
+        size--;
+    }
+
+    public synchronized int size() {
+        return size;
+    }
+
+    // {copies on the shelf, copies in total} across the catalog
+    public synchronized long[] copyTotals() {
+        long onShelf = 0;
+        long copies = 0;
+        for (int slot = 0; slot < keys.length; slot++) {
+            if (keys[slot] != 0) {
+                onShelf += available[slot];
+                copies += total[slot];
+            }
+        }
+        return new long[] {onShelf, copies};
+    }
+
+    private void insert(int bookId, int availableCopies, int totalCopies) {
+        if ((size + 1) * 2 > keys.length) {
+            resize(keys.length * 2);
+        }
+        int mask = keys.length - 1;
+        int slot = hash(bookId) & mask;
+        while (keys[slot] != 0 && keys[slot] != bookId) {
+            slot = (slot + 1) & mask;
+        }
+        if (keys[slot] == 0) {
+            keys[slot] = bookId;
+            size++;
+        }
+        available[slot] = availableCopies;
+        total[slot] = totalCopies;
+    }
+
+    private int find(int bookId) {
+        if (bookId == 0) {
+            return -1;
+        }
+        int mask = keys.length - 1;
+        int slot = hash(bookId) & mask;
+        while (keys[slot] != 0) {
+            if (keys[slot] == bookId) {
+                return slot;
+            }
+            slot = (slot + 1) & mask;
+        }
+        return -1;
+    }
+
+    private void resize(int capacity) {
+        int[] oldKeys = keys;
+        int[] oldAvailable = available;
+        int[] oldTotal = total;
+        allocate(capacity);
+        for (int slot = 0; slot < oldKeys.length; slot++) {
+            if (oldKeys[slot] != 0) {
+                insert(oldKeys[slot], oldAvailable[slot], oldTotal[slot]);
+            }
+        }
+    }
+
+    private void allocate(int capacity) {
+        keys = new int[capacity];
+        available = new int[capacity];
+        total = new int[capacity];
+        size = 0;
+    }
+
+    // Power of two with room to stay at most half full
+    private static int capacityFor(int count) {
+        return Math.max(1024, Integer.highestOneBit(Math.max(1, count) * 2 - 1) << 1);
+    }
+
+    private static int hash(int key) {
+        int h = key * 0x9E3779B9;
+        return h ^ (h >>> 16);
+    }
+}
@@ -0,0 +1,108 @@
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.List;
+
+// Ranked full-text search over title, author and ISBN, backed by the
+// books_fts FTS5 index that triggers keep in step with the books table.
+public class BookSearch {
+    // Ranking every match of a broad prefix such as "th" would touch a large
+    // part of a big catalog, so only the first CANDIDATES matches are ranked.
+    // Any query narrow enough to be useful is ranked in full.
+    private static final int CANDIDATES = 2000;
+    private static final String SEARCH_SQL =
+            "SELECT b.book_id, b.title, b.author, b.isbn, b.total_copies, b.available_copies " +
+            "FROM (SELECT rowid, rank FROM books_fts WHERE books_fts MATCH ? LIMIT " + CANDIDATES + ") hits " +
+            "JOIN books b ON b.book_id = hits.rowid ORDER BY hits.rank LIMIT ?";
+
+    private static final String PICK_BY_ID_SQL = "SELECT book_id, title FROM books WHERE book_id = ?";
+    private static final String PICK_SQL =
+            "SELECT b.book_id, b.title " +
+            "FROM (SELECT rowid, rank FROM books_fts WHERE books_fts MATCH ? LIMIT " + CANDIDATES + ") hits " +
+            "JOIN books b ON b.book_id = hits.rowid ORDER BY hits.rank";
+
+    private BookSearch() {
+    }
+
+    // Turns what the user typed into an FTS5 query where every word must
+    // match as a prefix, so "tolk hob" finds "Tolkien, The Hobbit". Returns
+    // null when there is nothing searchable in the input.
+    public static String toMatchQuery(String input) {
+        StringBuilder query = new StringBuilder();
+        for (String word : input.split("[^\\p{L}\\p{N}]+")) {
+            if (word.isEmpty()) {
+                continue;
+            }
+            if (query.length() > 0) {
+                query.append(' ');
+            }
+            query.append('"').append(word).append("\"*");
+        }
+        return query.length() == 0 ? null : query.toString();
+    }
+
+    // Rows come back in the Books table's column order, best match first
+    public static List<Object[]> search(StatementCache statements, String input, int limit) throws SQLException {
+        List<Object[]> rows = new ArrayList<>();
+        String match = toMatchQuery(input);
+        if (match == null) {
+            return rows;
+        }
+        PreparedStatement pstmt = statements.prepare(SEARCH_SQL);
+        pstmt.setString(1, match);
+        pstmt.setInt(2, limit);
+        try (ResultSet rs = statements.query(pstmt)) {
+            while (rs.next()) {
+                rows.add(new Object[] {
+                    rs.getInt("book_id"),
+                    rs.getString("title"),
+                    rs.getString("author"),
+                    rs.getString("isbn"),
+                    rs.getInt("total_copies"),
+                    rs.getInt("available_copies")
+                });
+            }
+        }
+        return rows;
+    }
+
+    // Matches for the Issue/Return picker: books with a copy on the shelf,
+    // by id when digits are typed and then by title, author or ISBN prefix.
+    // Availability comes from the in-memory cache rather than the books table.
+    public static List<PickerItem> availablePicks(StatementCache statements, AvailabilityCache availability,
+                                                  String input, int limit) throws SQLException {
+        List<PickerItem> picks = new ArrayList<>();
+        if (input.trim().matches("\\d{1,9}") && availability.available(Integer.parseInt(input.trim())) != 0) {
+            PreparedStatement pstmt = statements.prepare(PICK_BY_ID_SQL);
+            pstmt.setInt(1, Integer.parseInt(input.trim()));
+            try (ResultSet rs = statements.query(pstmt)) {
+                if (rs.next()) {
+                    picks.add(toPick(rs));
+                }
+            }
+        }
+        String match = toMatchQuery(input);
+        if (match == null) {
+            return picks;
+        }
+        PreparedStatement pstmt = statements.prepare(PICK_SQL);
+        pstmt.setString(1, match);
+        try (ResultSet rs = statements.query(pstmt)) {
+            while (rs.next() && picks.size() < limit) {
+                int bookId = rs.getInt(1);
+                // Skip books out on loan (unknown ones are kept; the issue
+                // transaction has the final say) and the row already added
+                // by the id match
+                if (availability.available(bookId) != 0 && (picks.isEmpty() || picks.get(0).id != bookId)) {
+                    picks.add(toPick(rs));
+                }
+            }
+        }
+        return picks;
+    }
+
+    private static PickerItem toPick(ResultSet rs) throws SQLException {
+        return new PickerItem(rs.getInt("book_id"), rs.getString("title") + " (#" + rs.getInt("book_id") + ")");
+    }
+}
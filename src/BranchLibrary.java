@@ -0,0 +1,413 @@
+import java.sql.Connection;
+import java.sql.DriverManager;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.ResultSetMetaData;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicInteger;
+
+// Multi-branch mode: every branch keeps its own library database, a shard
+// named library-<branch>.db, with its own books, members, loans and holds
+// and its own LibraryService, pool and writer thread. A title stocked at
+// two branches is a row in each shard, matched across them by ISBN, so
+// each branch's total and available copies are its own.
+//
+// Issue, return and holds go to one branch's LibraryService and so stay a
+// local transaction on one shard, group-committed by that shard's writer;
+// branches never wait on each other's writes.
+//
+// Catalog search and availability fan out to every shard at once, each on
+// a reader from that shard's own pool, and the answers are merged into one
+// entry per title listing its copies at each branch. Whole-library SQL
+// such as branchTotals() runs on a coordinator connection instead: an
+// in-memory database with every shard ATTACHed query-only, where the temp
+// view catalog is the union of all the shards' books tables.
+//
+// -Dlibrary.branches=main,north,... lists the branches for the server;
+// -Dlibrary.branch=NAME points the desk and the batch jobs at one shard.
+public class BranchLibrary implements AutoCloseable {
+    // SQLite's default limit on attached databases
+    public static final int MAX_BRANCHES = 10;
+
+    private static final String NAME_PATTERN = "[a-z][a-z0-9_]{0,31}";
+    private static final String TOTALS_SQL =
+            "SELECT branch, COUNT(*) AS titles, COALESCE(SUM(total_copies), 0) AS copies, " +
+            "COALESCE(SUM(available_copies), 0) AS on_shelf FROM catalog GROUP BY branch";
+
+    // One title's copies at one branch
+    public static class Holding {
+        public final String branch;
+        public final int bookId;
+        public final int totalCopies;
+        public final int availableCopies;
+
+        Holding(String branch, int bookId, int totalCopies, int availableCopies) {
+            this.branch = branch;
+            this.bookId = bookId;
+            this.totalCopies = totalCopies;
+            this.availableCopies = availableCopies;
+        }
+
+        public Map<String, Object> toMap() {
+            Map<String, Object> map = new LinkedHashMap<>();
+            map.put("branch", branch);
+            map.put("book_id", bookId);
+            map.put("total_copies", totalCopies);
+            map.put("available_copies", availableCopies);
+            return map;
+        }
+    }
+
+    // A title across the library, with its holdings in branch order
+    public static class Title {
+        public final String title;
+        public final String author;
+        public final String isbn;
+        public final List<Holding> holdings = new ArrayList<>();
+
+        Title(String title, String author, String isbn) {
+            this.title = title;
+            this.author = author;
+            this.isbn = isbn;
+        }
+
+        public int availableCopies() {
+            int available = 0;
+            for (Holding holding : holdings) {
+                available += holding.availableCopies;
+            }
+            return available;
+        }
+
+        public Map<String, Object> toMap() {
+            Map<String, Object> map = new LinkedHashMap<>();
+            map.put("title", title);
+            map.put("author", author);
+            map.put("isbn", isbn);
+            map.put("available_copies", availableCopies());
+            List<Map<String, Object>> branches = new ArrayList<>();
+            for (Holding holding : holdings) {
+                branches.add(holding.toMap());
+            }
+            map.put("branches", branches);
+            return map;
+        }
+    }
+
+    private interface BranchWork<T> {
+        T run(LibraryService branch) throws SQLException;
+    }
+
+    private final Map<String, LibraryService> branches;
+    private final ExecutorService fanOut;
+    private final Metrics metrics = Metrics.global();
+    // Guarded by itself; SQLite runs one statement at a time on it anyway
+    private final Connection coordinator;
+
+    private BranchLibrary(Map<String, LibraryService> branches, Connection coordinator) {
+        this.branches = branches;
+        this.coordinator = coordinator;
+        AtomicInteger threads = new AtomicInteger();
+        this.fanOut = Executors.newFixedThreadPool(branches.size(), r -> {
+            Thread t = new Thread(r, "library-branch-" + threads.incrementAndGet());
+            t.setDaemon(true);
+            return t;
+        });
+    }
+
+    // The branch names in -Dlibrary.branches, or an empty list when the
+    // library has a single database
+    public static List<String> namesFromSystemProperties() {
+        String names = System.getProperty("library.branches", "").trim();
+        List<String> list = new ArrayList<>();
+        for (String name : names.split(",")) {
+            if (!name.trim().isEmpty()) {
+                list.add(checkName(name.trim()));
+            }
+        }
+        return list;
+    }
+
+    // The database this process works on: library.db, or with
+    // -Dlibrary.branch its branch's shard
+    public static String localDatabaseUrl() {
+        String branch = System.getProperty("library.branch");
+        return branch == null ? LibraryManagementSystem.DATABASE_URL : databaseUrl(checkName(branch));
+    }
+
+    public static String databaseUrl(String branch) {
+        return "jdbc:sqlite:" + shardFile(branch);
+    }
+
+    // Opens (creating and migrating where needed) every branch's shard,
+    // warms their availability caches and attaches them all to the
+    // coordinator
+    public static BranchLibrary open(List<String> names, SqliteProfile profile, ChangeBus changes)
+            throws SQLException {
+        if (names.isEmpty() || names.size() > MAX_BRANCHES) {
+            throw new IllegalArgumentException("Expected 1 to " + MAX_BRANCHES + " branches, got " + names.size());
+        }
+        Map<String, LibraryService> branches = new LinkedHashMap<>();
+        Connection coordinator = null;
+        try {
+            for (String name : names) {
+                if (branches.containsKey(checkName(name))) {
+                    throw new IllegalArgumentException("Branch " + name + " is listed twice");
+                }
+                LibraryService branch = LibraryService.open(databaseUrl(name), profile, changes);
+                branches.put(name, branch);
+                branch.warmAvailability();
+            }
+            coordinator = openCoordinator(names);
+            return new BranchLibrary(branches, coordinator);
+        } catch (SQLException | RuntimeException e) {
+            if (coordinator != null) {
+                coordinator.close();
+            }
+            for (LibraryService branch : branches.values()) {
+                branch.close();
+            }
+            throw e;
+        }
+    }
+
+    public List<String> names() {
+        return new ArrayList<>(branches.keySet());
+    }
+
+    // Everything one branch does locally: issue, return, holds, its own
+    // catalog and members
+    public LibraryService branch(String name) {
+        LibraryService branch = branches.get(name);
+        if (branch == null) {
+            throw new IllegalArgumentException("No branch " + name + "; expected one of " + branches.keySet());
+        }
+        return branch;
+    }
+
+    // Ranked full-text search on every branch at once. Titles come back in
+    // the order of their best rank at any branch, then by branch order.
+    public List<Title> searchCatalog(String text, int limit) throws SQLException {
+        return metrics.time("searchCatalog", () -> {
+            Map<String, List<Object[]>> results = fanOut(branch -> branch.searchBooks(text, limit));
+            Map<String, Title> titles = new LinkedHashMap<>();
+            int longest = 0;
+            for (List<Object[]> rows : results.values()) {
+                longest = Math.max(longest, rows.size());
+            }
+            for (int rank = 0; rank < longest && titles.size() < limit; rank++) {
+                for (Map.Entry<String, List<Object[]>> result : results.entrySet()) {
+                    if (rank < result.getValue().size()) {
+                        addHolding(titles, result.getKey(), result.getValue().get(rank));
+                    }
+                }
+            }
+            // A title can surface at one branch's rank 0 and another's rank 9;
+            // both holdings belong to it, so the rest are folded in too
+            for (Map.Entry<String, List<Object[]>> result : results.entrySet()) {
+                for (Object[] row : result.getValue()) {
+                    Title title = titles.get(titleKey(row));
+                    if (title != null && !holds(title, result.getKey())) {
+                        addHolding(titles, result.getKey(), row);
+                    }
+                }
+            }
+            List<Title> merged = new ArrayList<>(titles.values());
+            for (Title title : merged) {
+                sortByBranch(title.holdings);
+            }
+            return merged.size() > limit ? merged.subList(0, limit) : merged;
+        });
+    }
+
+    // The title's copies at every branch that stocks it, looked up on all
+    // branches at once; null when none does
+    public Title availability(String isbn) throws SQLException {
+        return metrics.time("branchAvailability", () -> {
+            Title title = null;
+            for (Map.Entry<String, Map<String, Object>> found : fanOut(branch -> branch.findBookByIsbn(isbn))
+                    .entrySet()) {
+                Map<String, Object> book = found.getValue();
+                if (book == null) {
+                    continue;
+                }
+                if (title == null) {
+                    title = new Title((String) book.get("title"), (String) book.get("author"), isbn);
+                }
+                int bookId = ((Number) book.get("book_id")).intValue();
+                // The cache sees copies issued since the reader's snapshot
+                int available = branch(found.getKey()).availability().available(bookId);
+                title.holdings.add(new Holding(found.getKey(), bookId,
+                        ((Number) book.get("total_copies")).intValue(),
+                        available >= 0 ? available : ((Number) book.get("available_copies")).intValue()));
+            }
+            return title;
+        });
+    }
+
+    // Titles, copies and copies on the shelf per branch, over the
+    // coordinator's federated catalog view
+    public List<Map<String, Object>> branchTotals() throws SQLException {
+        return metrics.time("branchTotals", () -> {
+            synchronized (coordinator) {
+                List<Map<String, Object>> rows = new ArrayList<>();
+                try (PreparedStatement pstmt = coordinator.prepareStatement(TOTALS_SQL);
+                     ResultSet rs = pstmt.executeQuery()) {
+                    ResultSetMetaData meta = rs.getMetaData();
+                    while (rs.next()) {
+                        Map<String, Object> row = new LinkedHashMap<>();
+                        for (int i = 1; i <= meta.getColumnCount(); i++) {
+                            row.put(meta.getColumnLabel(i), rs.getObject(i));
+                        }
+                        rows.add(row);
+                    }
+                }
+                Map<String, Map<String, Object>> byName = new LinkedHashMap<>();
+                for (Map<String, Object> row : rows) {
+                    byName.put((String) row.get("branch"), row);
+                }
+                // In branch order, with empty branches shown as zeros
+                List<Map<String, Object>> ordered = new ArrayList<>();
+                for (String name : branches.keySet()) {
+                    Map<String, Object> row = byName.get(name);
+                    if (row == null) {
+                        row = new LinkedHashMap<>();
+                        row.put("branch", name);
+                        row.put("titles", 0);
+                        row.put("copies", 0);
+                        row.put("on_shelf", 0);
+                    }
+                    ordered.add(row);
+                }
+                return ordered;
+            }
+        });
+    }
+
+    @Override
+    public void close() throws SQLException {
+        fanOut.shutdown();
+        SQLException failure = null;
+        try {
+            synchronized (coordinator) {
+                coordinator.close();
+            }
+        } catch (SQLException e) {
+            failure = e;
+        }
+        for (LibraryService branch : branches.values()) {
+            try {
+                branch.close();
+            } catch (SQLException e) {
+                failure = failure == null ? e : failure;
+            }
+        }
+        if (failure != null) {
+            throw failure;
+        }
+    }
+
+    // Runs the work on every branch at once, one fan-out thread each, and
+    // returns the answers in branch order
+    private <T> Map<String, T> fanOut(BranchWork<T> work) throws SQLException {
+        Map<String, Future<T>> futures = new LinkedHashMap<>();
+        for (Map.Entry<String, LibraryService> branch : branches.entrySet()) {
+            futures.put(branch.getKey(), fanOut.submit(() -> work.run(branch.getValue())));
+        }
+        Map<String, T> results = new LinkedHashMap<>();
+        for (Map.Entry<String, Future<T>> future : futures.entrySet()) {
+            try {
+                results.put(future.getKey(), future.getValue().get());
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new SQLException("Interrupted waiting for branch " + future.getKey(), e);
+            } catch (ExecutionException e) {
+                if (e.getCause() instanceof SQLException) {
+                    throw (SQLException) e.getCause();
+                }
+                throw new SQLException("Branch " + future.getKey() + " failed", e.getCause());
+            }
+        }
+        return results;
+    }
+
+    private static Connection openCoordinator(List<String> names) throws SQLException {
+        Connection coordinator = DriverManager.getConnection("jdbc:sqlite::memory:");
+        try (Statement stmt = coordinator.createStatement()) {
+            StringBuilder view = new StringBuilder("CREATE TEMP VIEW catalog AS ");
+            for (int i = 0; i < names.size(); i++) {
+                String name = names.get(i);
+                // Names are checked against NAME_PATTERN, so they are safe
+                // in identifiers and literals; the prefix keeps a branch
+                // called main or temp clear of SQLite's own schemas
+                String schema = "branch_" + name;
+                try (PreparedStatement attach = coordinator.prepareStatement("ATTACH DATABASE ? AS " + schema)) {
+                    attach.setString(1, shardFile(name));
+                    attach.execute();
+                }
+                view.append(i == 0 ? "" : " UNION ALL ")
+                    .append("SELECT '").append(name).append("' AS branch, book_id, title, author, isbn, ")
+                    .append("total_copies, available_copies FROM ").append(schema).append(".books");
+            }
+            stmt.execute(view.toString());
+            stmt.execute("PRAGMA query_only = 1");
+        } catch (SQLException e) {
+            coordinator.close();
+            throw e;
+        }
+        return coordinator;
+    }
+
+    private static String shardFile(String branch) {
+        return "library-" + branch + ".db";
+    }
+
+    private static String checkName(String name) {
+        if (!name.matches(NAME_PATTERN)) {
+            throw new IllegalArgumentException("Branch names are lower-case letters, digits and _, got " + name);
+        }
+        return name;
+    }
+
+    // Rows are in the Books table's column order
+    private static void addHolding(Map<String, Title> titles, String branch, Object[] row) {
+        Title title = titles.computeIfAbsent(titleKey(row),
+                key -> new Title((String) row[1], (String) row[2], (String) row[3]));
+        if (!holds(title, branch)) {
+            title.holdings.add(new Holding(branch, (Integer) row[0], (Integer) row[4], (Integer) row[5]));
+        }
+    }
+
+    // The ISBN, or for a book without one its title and author
+    private static String titleKey(Object[] row) {
+        String isbn = (String) row[3];
+        if (isbn != null && !isbn.trim().isEmpty()) {
+            return isbn.trim();
+        }
+        return "\u0000" + String.valueOf(row[1]).toLowerCase() + "\u0000" + String.valueOf(row[2]).toLowerCase();
+    }
+
+    private static boolean holds(Title title, String branch) {
+        for (Holding holding : title.holdings) {
+            if (holding.branch.equals(branch)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private void sortByBranch(List<Holding> holdings) {
+        List<String> order = names();
+        Collections.sort(holdings, (a, b) -> Integer.compare(order.indexOf(a.branch), order.indexOf(b.branch)));
+    }
+}
@@ -0,0 +1,409 @@
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.nio.charset.StandardCharsets;
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+// Streams books or users from a file into the database. Rows are parsed one
+// at a time on the caller's thread and collected into chunks of
+// COMMIT_EVERY rows. Each chunk is sent to SQLite in JDBC batches and
+// committed as one solo task on the pool's writer, so a feed of hundreds of
+// thousands of titles never has to fit in memory, costs a few dozen commits
+// instead of one per row, and lets other writes in between chunks.
+//
+// The rows go straight to the driver's statement rather than through the
+// writer's timed StatementCache. New books are left out of books_fts while
+// their chunk is written and then indexed with one INSERT ... SELECT before
+// the commit, which costs about half of what the per-row insert trigger
+// does; the trigger is dropped and recreated inside the chunk's
+// transaction, so every other write, and a chunk that fails, still sees it.
+// The chunk's changes to shelf counts are journalled in the same
+// transaction too (see CirculationJournal): an adjust event with each new
+// book's copies, and one for each existing book whose count the upsert
+// moved.
+//
+// Books can come from CSV (title, author, isbn, copies columns, matched by
+// header name) or MARC-lite text: one "TAG value" line per field (020 ISBN,
+// 100 author, 245 title, 952 copies), with a blank line between records.
+// Users come from CSV with name, email and phone columns.
+public class CatalogImporter {
+    private static final int BATCH_SIZE = 1000;
+    // Rows per commit, and so the longest a checkout waits behind an import
+    private static final int COMMIT_EVERY = 10000;
+
+    // Existing ISBNs are updated in place; the copies on the shelf change by
+    // the same amount as the new total, never dropping below zero
+    private static final String UPSERT_BOOK =
+            "INSERT INTO books (title, author, isbn, total_copies, available_copies) VALUES (?, ?, ?, ?, ?) " +
+            "ON CONFLICT(isbn) DO UPDATE SET title=excluded.title, author=excluded.author, " +
+            "available_copies=MAX(0, available_copies + excluded.total_copies - total_copies), " +
+            "total_copies=excluded.total_copies";
+    private static final String UPSERT_USER =
+            "INSERT INTO users (name, email, phone) VALUES (?, ?, ?) " +
+            "ON CONFLICT(email) DO UPDATE SET name=excluded.name, phone=excluded.phone";
+
+    public interface Progress {
+        // Called after each commit; return false to stop there
+        boolean update(long rows, long bytesRead);
+    }
+
+    public static class Result {
+        public final long rows;
+        public final long skipped;
+        public final long millis;
+        public final boolean cancelled;
+
+        Result(long rows, long skipped, long millis, boolean cancelled) {
+            this.rows = rows;
+            this.skipped = skipped;
+            this.millis = millis;
+            this.cancelled = cancelled;
+        }
+
+        public long rowsPerSecond() {
+            return millis == 0 ? rows : rows * 1000 / millis;
+        }
+    }
+
+    private final ConnectionPool pool;
+
+    public CatalogImporter(ConnectionPool pool) {
+        this.pool = pool;
+    }
+
+    public Result importBooks(File file, Progress progress) throws IOException, SQLException {
+        String name = file.getName().toLowerCase();
+        boolean marc = name.endsWith(".mrk") || name.endsWith(".marc") || name.endsWith(".txt");
+        try (CountingInputStream counter = new CountingInputStream(new FileInputStream(file));
+             BufferedReader in = new BufferedReader(new InputStreamReader(counter, StandardCharsets.UTF_8), 1 << 16)) {
+            RecordSource source = marc ? new MarcLiteSource(in) : new CsvSource(in, "title", "author", "isbn", "copies");
+            return run(UPSERT_BOOK, true, source, counter, progress, record -> {
+                String title = record.get("title");
+                String author = record.get("author");
+                if (isBlank(title) || isBlank(author)) {
+                    return null;
+                }
+                String isbn = record.get("isbn");
+                String copiesText = record.get("copies");
+                int copies = isBlank(copiesText) ? 1 : Math.max(1, Integer.parseInt(copiesText.trim()));
+                return new Object[] {title.trim(), author.trim(), isBlank(isbn) ? null : isbn.trim(), copies, copies};
+            });
+        }
+    }
+
+    public Result importUsers(File file, Progress progress) throws IOException, SQLException {
+        try (CountingInputStream counter = new CountingInputStream(new FileInputStream(file));
+             BufferedReader in = new BufferedReader(new InputStreamReader(counter, StandardCharsets.UTF_8), 1 << 16)) {
+            RecordSource source = new CsvSource(in, "name", "email", "phone");
+            return run(UPSERT_USER, false, source, counter, progress, record -> {
+                String name = record.get("name");
+                if (isBlank(name)) {
+                    return null;
+                }
+                String email = record.get("email");
+                return new Object[] {name.trim(), isBlank(email) ? null : email.trim(), record.get("phone")};
+            });
+        }
+    }
+
+    private Result run(String sql, boolean books, RecordSource source, CountingInputStream counter,
+                       Progress progress, RowBinder binder) throws IOException, SQLException {
+        long start = System.currentTimeMillis();
+        long rows = 0;
+        long skipped = 0;
+        boolean cancelled = false;
+        List<Object[]> chunk = new ArrayList<>(COMMIT_EVERY);
+        Map<String, String> record;
+        while ((record = source.next()) != null) {
+            Object[] values;
+            try {
+                values = binder.bind(record);
+            } catch (NumberFormatException e) {
+                values = null;
+            }
+            if (values == null) {
+                skipped++;
+                continue;
+            }
+            chunk.add(values);
+            if (chunk.size() == COMMIT_EVERY) {
+                rows += commit(sql, books, chunk);
+                if (progress != null && !progress.update(rows, counter.count)) {
+                    cancelled = true;
+                    break;
+                }
+            }
+        }
+        // A cancelled import drops the rows parsed since the last commit
+        if (!cancelled) {
+            if (!chunk.isEmpty()) {
+                rows += commit(sql, books, chunk);
+            }
+            if (progress != null) {
+                progress.update(rows, counter.count);
+            }
+        }
+        return new Result(rows, skipped, System.currentTimeMillis() - start, cancelled);
+    }
+
+    // One chunk as one transaction, in a solo task so the writer is back in
+    // autocommit mode and free for other writes as soon as it commits
+    private int commit(String sql, boolean books, List<Object[]> chunk) throws SQLException {
+        int rows = pool.writeAlone(statements -> commitChunk(statements.connection(), sql, books, chunk));
+        chunk.clear();
+        return rows;
+    }
+
+    private static int commitChunk(Connection conn, String sql, boolean books, List<Object[]> chunk)
+            throws SQLException {
+        conn.setAutoCommit(false);
+        try (Statement stmt = conn.createStatement();
+             PreparedStatement pstmt = conn.prepareStatement(sql)) {
+            // Books updated in place still go through the update trigger;
+            // only the new ones, all numbered past this, are indexed and
+            // journalled below
+            long lastBookId = 0;
+            if (books) {
+                try (ResultSet rs = stmt.executeQuery("SELECT COALESCE(MAX(book_id), 0) FROM books")) {
+                    lastBookId = rs.next() ? rs.getLong(1) : 0;
+                }
+                stmt.execute("DROP TRIGGER IF EXISTS books_fts_insert");
+                stmt.execute(CirculationJournal.importTrigger(lastBookId));
+            }
+            int pending = 0;
+            for (Object[] values : chunk) {
+                for (int i = 0; i < values.length; i++) {
+                    pstmt.setObject(i + 1, values[i]);
+                }
+                pstmt.addBatch();
+                if (++pending == BATCH_SIZE) {
+                    pstmt.executeBatch();
+                    pending = 0;
+                }
+            }
+            if (pending > 0) {
+                pstmt.executeBatch();
+            }
+            if (books) {
+                stmt.execute("INSERT INTO books_fts(rowid, title, author, isbn) " +
+                             "SELECT book_id, title, author, isbn FROM books WHERE book_id > " + lastBookId);
+                stmt.execute(LibrarySchema.FTS_INSERT_TRIGGER);
+                stmt.execute(CirculationJournal.dropImportTrigger());
+                CirculationJournal.recordAdded(conn, lastBookId);
+            }
+            conn.commit();
+            return chunk.size();
+        } catch (SQLException | RuntimeException e) {
+            conn.rollback();
+            if (books) {
+                // Rolled back with the chunk, unless it failed before the
+                // transaction started
+                try (Statement stmt = conn.createStatement()) {
+                    stmt.execute(CirculationJournal.dropImportTrigger());
+                }
+            }
+            throw e;
+        } finally {
+            conn.setAutoCommit(true);
+        }
+    }
+
+    private static boolean isBlank(String value) {
+        return value == null || value.trim().isEmpty();
+    }
+
+    // The statement's parameters for a record, or null to skip it
+    private interface RowBinder {
+        Object[] bind(Map<String, String> record);
+    }
+
+    private interface RecordSource {
+        Map<String, String> next() throws IOException;
+    }
+
+    // CSV with an optional header row. Without a header the columns are
+    // taken in the default order given to the constructor.
+    private static class CsvSource implements RecordSource {
+        private final BufferedReader in;
+        private final String[] defaultColumns;
+        private String[] columns;
+        private final List<String> fields = new ArrayList<>();
+        private final StringBuilder field = new StringBuilder();
+
+        CsvSource(BufferedReader in, String... defaultColumns) {
+            this.in = in;
+            this.defaultColumns = defaultColumns;
+        }
+
+        @Override
+        public Map<String, String> next() throws IOException {
+            while (true) {
+                if (!readFields()) {
+                    return null;
+                }
+                if (fields.size() == 1 && fields.get(0).isEmpty()) {
+                    continue;
+                }
+                if (columns == null) {
+                    columns = defaultColumns;
+                    if (isHeader()) {
+                        columns = new String[fields.size()];
+                        for (int i = 0; i < columns.length; i++) {
+                            columns[i] = fields.get(i).trim().toLowerCase();
+                        }
+                        continue;
+                    }
+                }
+                Map<String, String> record = new HashMap<>();
+                for (int i = 0; i < columns.length && i < fields.size(); i++) {
+                    record.put(columns[i], fields.get(i));
+                }
+                return record;
+            }
+        }
+
+        private boolean isHeader() {
+            for (String value : fields) {
+                for (String column : defaultColumns) {
+                    if (value.trim().equalsIgnoreCase(column)) {
+                        return true;
+                    }
+                }
+            }
+            return false;
+        }
+
+        // Reads one logical record; quoted fields may contain commas, doubled
+        // quotes and line breaks
+        private boolean readFields() throws IOException {
+            String line = in.readLine();
+            if (line == null) {
+                return false;
+            }
+            fields.clear();
+            field.setLength(0);
+            boolean quoted = false;
+            while (true) {
+                for (int i = 0; i < line.length(); i++) {
+                    char c = line.charAt(i);
+                    if (quoted) {
+                        if (c == '"') {
+                            if (i + 1 < line.length() && line.charAt(i + 1) == '"') {
+                                field.append('"');
+                                i++;
+                            } else {
+                                quoted = false;
+                            }
+                        } else {
+                            field.append(c);
+                        }
+                    } else if (c == '"') {
+                        quoted = true;
+                    } else if (c == ',') {
+                        fields.add(field.toString());
+                        field.setLength(0);
+                    } else {
+                        field.append(c);
+                    }
+                }
+                if (!quoted) {
+                    break;
+                }
+                line = in.readLine();
+                if (line == null) {
+                    break;
+                }
+                field.append('\n');
+            }
+            fields.add(field.toString());
+            return true;
+        }
+    }
+
+    private static class MarcLiteSource implements RecordSource {
+        private static final Map<String, String> TAGS = new HashMap<>();
+
+        static {
+            TAGS.put("020", "isbn");
+            TAGS.put("100", "author");
+            TAGS.put("245", "title");
+            TAGS.put("952", "copies");
+        }
+
+        private final BufferedReader in;
+
+        MarcLiteSource(BufferedReader in) {
+            this.in = in;
+        }
+
+        @Override
+        public Map<String, String> next() throws IOException {
+            Map<String, String> record = new HashMap<>();
+            String line;
+            while ((line = in.readLine()) != null) {
+                line = line.trim();
+                if (line.isEmpty()) {
+                    if (!record.isEmpty()) {
+                        return record;
+                    }
+                    continue;
+                }
+                if (line.startsWith("=")) {
+                    line = line.substring(1);
+                }
+                if (line.length() < 4) {
+                    continue;
+                }
+                String column = TAGS.get(line.substring(0, 3));
+                if (column != null && !record.containsKey(column)) {
+                    String value = line.substring(3).trim();
+                    // Keep only the $a subfield when subfields are present
+                    if (value.startsWith("$a")) {
+                        int end = value.indexOf('$', 2);
+                        value = value.substring(2, end < 0 ? value.length() : end).trim();
+                    }
+                    record.put(column, value);
+                }
+            }
+            return record.isEmpty() ? null : record;
+        }
+    }
+
+    private static class CountingInputStream extends FilterInputStream {
+        private volatile long count;
+
+        CountingInputStream(InputStream in) {
+            super(in);
+        }
+
+        @Override
+        public int read() throws IOException {
+            int b = super.read();
+            if (b >= 0) {
+                count++;
+            }
+            return b;
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) throws IOException {
+            int n = super.read(b, off, len);
+            if (n > 0) {
+                count += n;
+            }
+            return n;
+        }
+    }
+}
@@ -0,0 +1,43 @@
+import javax.swing.SwingUtilities;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+// Mutations publish the primary keys they touched, per table, so views can
+// patch just those rows instead of re-reading everything.
+public class ChangeBus {
+    public enum Kind { INSERTED, UPDATED, DELETED }
+
+    public interface Listener {
+        void changed(Kind kind, long[] keys);
+    }
+
+    private final Map<String, List<Listener>> listeners = new HashMap<>();
+
+    public synchronized void subscribe(String table, Listener listener) {
+        listeners.computeIfAbsent(table, t -> new ArrayList<>()).add(listener);
+    }
+
+    // Safe to call from any thread; listeners are always notified on the EDT
+    public void publish(String table, Kind kind, long... keys) {
+        List<Listener> targets;
+        synchronized (this) {
+            List<Listener> registered = listeners.get(table);
+            if (registered == null || keys.length == 0) {
+                return;
+            }
+            targets = new ArrayList<>(registered);
+        }
+        Runnable notify = () -> {
+            for (Listener listener : targets) {
+                listener.changed(kind, keys);
+            }
+        };
+        if (SwingUtilities.isEventDispatchThread()) {
+            notify.run();
+        } else {
+            SwingUtilities.invokeLater(notify);
+        }
+    }
+}
@@ -0,0 +1,227 @@
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Types;
+import java.time.LocalDateTime;
+import java.util.ArrayList;
+import java.util.List;
+
+// An append-only record of every change to books.available_copies, with
+// periodic snapshots of every book's count, so the counts can be checked
+// or rebuilt from history instead of by recounting loans.
+//
+// Each event carries the delta it applied: an issue takes a copy (-1), a
+// return puts one back (+1), and an adjust covers everything else, such as
+// a new book's copies or a ready hold's copy going back on the shelf. A
+// copy that goes from a return straight to a hold, or from a ready hold to
+// its member, never touches the shelf count and is journalled with delta 0.
+// Events are written inside the same write task as the change itself, so
+// the group commit that makes the change durable makes its event durable
+// too; there is never a count without its event or the other way round.
+//
+// A snapshot copies every book's count alongside the id of the last event
+// it includes. replay() then rebuilds each count as the latest snapshot
+// plus the sum of the deltas journalled after it, in one pass over the
+// books, the snapshot and that tail of the journal.
+public class CirculationJournal {
+    public static final String ISSUE = "issue";
+    public static final String RETURN = "return";
+    public static final String ADJUST = "adjust";
+
+    private static final String RECORD_SQL =
+            "INSERT INTO circulation_journal (recorded_at, kind, book_id, user_id, issue_id, delta) " +
+            "VALUES (?, ?, ?, ?, ?, ?)";
+    // The copies of every book numbered past ?, as added by an import chunk
+    private static final String RECORD_ADDED_SQL =
+            "INSERT INTO circulation_journal (recorded_at, kind, book_id, user_id, issue_id, delta) " +
+            "SELECT ?, '" + ADJUST + "', book_id, NULL, NULL, available_copies FROM books WHERE book_id > ?";
+    private static final String SNAPSHOT_SQL =
+            "INSERT INTO availability_snapshots (event_id, taken_at, books) " +
+            "SELECT COALESCE(MAX(event_id), 0), ?, (SELECT COUNT(*) FROM books) FROM circulation_journal " +
+            "RETURNING snapshot_id, event_id, books";
+    private static final String SNAPSHOT_ROWS_SQL =
+            "INSERT INTO availability_snapshot_rows (snapshot_id, book_id, available_copies) " +
+            "SELECT ?, book_id, available_copies FROM books";
+    private static final String PRUNE_ROWS_SQL = "DELETE FROM availability_snapshot_rows WHERE snapshot_id <= ?";
+    private static final String PRUNE_SQL = "DELETE FROM availability_snapshots WHERE snapshot_id <= ?";
+    private static final String LATEST_SQL =
+            "SELECT snapshot_id, event_id, books FROM availability_snapshots ORDER BY snapshot_id DESC LIMIT 1";
+    private static final String EVENTS_AFTER_SQL =
+            "SELECT COUNT(*) FROM circulation_journal WHERE event_id > ?";
+    // Snapshot count plus the journalled deltas since, for every book; a
+    // book added after the snapshot starts from 0 and gets its copies from
+    // the adjust event addBook or an import journalled
+    private static final String REPLAYED =
+            "SELECT b.book_id, b.available_copies AS recorded, " +
+            "COALESCE(s.available_copies, 0) + COALESCE(j.delta, 0) AS replayed " +
+            "FROM books b " +
+            "LEFT JOIN availability_snapshot_rows s ON s.snapshot_id = ? AND s.book_id = b.book_id " +
+            "LEFT JOIN (SELECT book_id, SUM(delta) AS delta FROM circulation_journal " +
+            "WHERE event_id > ? GROUP BY book_id) j ON j.book_id = b.book_id";
+    private static final String MISMATCHES_SQL =
+            "SELECT book_id, recorded, replayed FROM (" + REPLAYED + ") WHERE recorded <> replayed " +
+            "ORDER BY book_id";
+    private static final String APPLY_SQL =
+            "UPDATE books SET available_copies = r.replayed FROM (" + REPLAYED + ") r " +
+            "WHERE books.book_id = r.book_id AND books.available_copies <> r.replayed";
+
+    // Mismatches listed in a replay result; the count covers them all
+    private static final int LISTED = 20;
+
+    public static class Snapshot {
+        public final long snapshotId;
+        public final long eventId;
+        public final long books;
+
+        Snapshot(long snapshotId, long eventId, long books) {
+            this.snapshotId = snapshotId;
+            this.eventId = eventId;
+            this.books = books;
+        }
+    }
+
+    public static class Result {
+        public final Snapshot from;
+        public final long events;
+        // Books whose count disagreed with the journal, and the first few
+        // of them as {book_id, recorded, replayed}
+        public final long mismatched;
+        public final List<long[]> mismatches;
+        public final boolean applied;
+        public final long millis;
+
+        Result(Snapshot from, long events, long mismatched, List<long[]> mismatches, boolean applied, long millis) {
+            this.from = from;
+            this.events = events;
+            this.mismatched = mismatched;
+            this.mismatches = mismatches;
+            this.applied = applied;
+            this.millis = millis;
+        }
+    }
+
+    private CirculationJournal() {
+    }
+
+    // Appends one event; userId and issueId may be null
+    public static void record(StatementCache statements, String kind, int bookId, Integer userId, Long issueId,
+                              int delta) throws SQLException {
+        PreparedStatement pstmt = statements.prepare(RECORD_SQL);
+        pstmt.setString(1, LocalDateTime.now().toString());
+        pstmt.setString(2, kind);
+        pstmt.setInt(3, bookId);
+        if (userId == null) {
+            pstmt.setNull(4, Types.INTEGER);
+        } else {
+            pstmt.setInt(4, userId);
+        }
+        if (issueId == null) {
+            pstmt.setNull(5, Types.INTEGER);
+        } else {
+            pstmt.setLong(5, issueId);
+        }
+        pstmt.setInt(6, delta);
+        pstmt.executeUpdate();
+    }
+
+    // Journals each book an import chunk added, numbered past lastBookId,
+    // with its copies as one adjust event, in a single statement
+    static void recordAdded(Connection conn, long lastBookId) throws SQLException {
+        try (PreparedStatement pstmt = conn.prepareStatement(RECORD_ADDED_SQL)) {
+            pstmt.setString(1, LocalDateTime.now().toString());
+            pstmt.setLong(2, lastBookId);
+            pstmt.executeUpdate();
+        }
+    }
+
+    // A TEMP trigger journalling the shelf count changes an import chunk
+    // makes to books that were already there, numbered up to lastBookId. A
+    // book the same chunk added and then updated again is left to
+    // recordAdded, which journals its final count. The caller drops it,
+    // with dropImportTrigger, before the chunk commits, so no other write
+    // on the connection is journalled twice.
+    static String importTrigger(long lastBookId) {
+        return "CREATE TEMP TRIGGER import_journal AFTER UPDATE OF available_copies ON books " +
+               "WHEN old.book_id <= " + lastBookId + " AND new.available_copies <> old.available_copies BEGIN " +
+               "INSERT INTO circulation_journal (recorded_at, kind, book_id, user_id, issue_id, delta) " +
+               "VALUES ('" + LocalDateTime.now() + "', '" + ADJUST + "', new.book_id, NULL, NULL, " +
+               "new.available_copies - old.available_copies); END";
+    }
+
+    static String dropImportTrigger() {
+        return "DROP TRIGGER IF EXISTS temp.import_journal";
+    }
+
+    // Copies every book's count as of the latest event, then drops all but
+    // the newest keep snapshots. Runs as one write task, so no event can
+    // fall between the counts and the event id recorded with them.
+    public static Snapshot snapshot(StatementCache statements, int keep) throws SQLException {
+        PreparedStatement pstmt = statements.prepare(SNAPSHOT_SQL);
+        pstmt.setString(1, LocalDateTime.now().toString());
+        Snapshot snapshot;
+        try (ResultSet rs = statements.query(pstmt)) {
+            rs.next();
+            snapshot = new Snapshot(rs.getLong(1), rs.getLong(2), rs.getLong(3));
+        }
+        PreparedStatement rows = statements.prepare(SNAPSHOT_ROWS_SQL);
+        rows.setLong(1, snapshot.snapshotId);
+        rows.executeUpdate();
+        for (String sql : new String[] {PRUNE_ROWS_SQL, PRUNE_SQL}) {
+            PreparedStatement prune = statements.prepare(sql);
+            prune.setLong(1, snapshot.snapshotId - Math.max(1, keep));
+            prune.executeUpdate();
+        }
+        return snapshot;
+    }
+
+    // Null before the first snapshot, which migration 9 takes
+    public static Snapshot latest(StatementCache statements) throws SQLException {
+        PreparedStatement pstmt = statements.prepare(LATEST_SQL);
+        try (ResultSet rs = statements.query(pstmt)) {
+            return rs.next() ? new Snapshot(rs.getLong(1), rs.getLong(2), rs.getLong(3)) : null;
+        }
+    }
+
+    // Rebuilds every book's count from the latest snapshot and the journal
+    // since. Without apply it only reports the books that disagree, on a
+    // reader; with apply it also writes the rebuilt counts, in one write
+    // task so no event can land between the check and the fix.
+    public static Result replay(ConnectionPool pool, boolean apply) throws SQLException {
+        long start = System.currentTimeMillis();
+        ConnectionPool.Work<Result> work = statements -> {
+            Snapshot from = latest(statements);
+            if (from == null) {
+                throw new SQLException("No availability snapshot to replay from");
+            }
+            long events;
+            PreparedStatement count = statements.prepare(EVENTS_AFTER_SQL);
+            count.setLong(1, from.eventId);
+            try (ResultSet rs = statements.query(count)) {
+                events = rs.next() ? rs.getLong(1) : 0;
+            }
+            List<long[]> mismatches = new ArrayList<>();
+            long mismatched = 0;
+            PreparedStatement pstmt = statements.prepare(MISMATCHES_SQL);
+            pstmt.setLong(1, from.snapshotId);
+            pstmt.setLong(2, from.eventId);
+            try (ResultSet rs = statements.query(pstmt)) {
+                while (rs.next()) {
+                    if (mismatches.size() < LISTED) {
+                        mismatches.add(new long[] {rs.getLong(1), rs.getLong(2), rs.getLong(3)});
+                    }
+                    mismatched++;
+                }
+            }
+            if (apply && mismatched > 0) {
+                PreparedStatement fix = statements.prepare(APPLY_SQL);
+                fix.setLong(1, from.snapshotId);
+                fix.setLong(2, from.eventId);
+                fix.executeUpdate();
+            }
+            return new Result(from, events, mismatched, mismatches, apply && mismatched > 0,
+                              System.currentTimeMillis() - start);
+        };
+        return apply ? pool.write(work) : pool.read(work);
+    }
+}
@@ -0,0 +1,176 @@
+import java.sql.PreparedStatement;
+import java.sql.SQLException;
+import java.time.LocalDate;
+
+// Daily circulation aggregates for the reports: issues, returns and late
+// fees charged per day, in total (daily_circulation), per title
+// (daily_book_stats) and per member (daily_member_stats).
+//
+// issueBook and returnBook bump the day's rows inside their own write
+// task, so the aggregates commit with the loan and a report never sees one
+// without the other. Migration 8 filled them from the loans already on
+// record. rebuild() is the delta job: it recomputes whole days from
+// issued_books and issued_books_archive, for repairing a range after loans
+// were changed by hand or imported.
+//
+// Reports only ever read these tables, so a month's popular titles sums a
+// month of small per-day rows instead of grouping the whole loan history.
+public class CirculationStats {
+    private static final String[] TABLES = {"daily_circulation", "daily_book_stats", "daily_member_stats"};
+
+    private static final String ISSUE_SQL =
+            "INSERT INTO daily_circulation (day, issues) VALUES (?, 1) " +
+            "ON CONFLICT(day) DO UPDATE SET issues = issues + 1";
+    private static final String BOOK_ISSUE_SQL =
+            "INSERT INTO daily_book_stats (day, book_id, issues) VALUES (?, ?, 1) " +
+            "ON CONFLICT(day, book_id) DO UPDATE SET issues = issues + 1";
+    private static final String MEMBER_ISSUE_SQL =
+            "INSERT INTO daily_member_stats (day, user_id, issues) VALUES (?, ?, 1) " +
+            "ON CONFLICT(day, user_id) DO UPDATE SET issues = issues + 1";
+    private static final String RETURN_SQL =
+            "INSERT INTO daily_circulation (day, returns, fee_paise) VALUES (?, 1, ?) " +
+            "ON CONFLICT(day) DO UPDATE SET returns = returns + 1, fee_paise = fee_paise + excluded.fee_paise";
+    private static final String BOOK_RETURN_SQL =
+            "INSERT INTO daily_book_stats (day, book_id, returns, fee_paise) VALUES (?, ?, 1, ?) " +
+            "ON CONFLICT(day, book_id) DO UPDATE SET returns = returns + 1, " +
+            "fee_paise = fee_paise + excluded.fee_paise";
+    private static final String MEMBER_RETURN_SQL =
+            "INSERT INTO daily_member_stats (day, user_id, returns, fee_paise) VALUES (?, ?, 1, ?) " +
+            "ON CONFLICT(day, user_id) DO UPDATE SET returns = returns + 1, " +
+            "fee_paise = fee_paise + excluded.fee_paise";
+
+    // One day's loans, live and archived
+    private static final String ISSUED_ON =
+            "(SELECT book_id, user_id FROM issued_books WHERE issue_date = ? UNION ALL " +
+            "SELECT book_id, user_id FROM issued_books_archive WHERE issue_date = ?)";
+    private static final String RETURNED_ON =
+            "(SELECT book_id, user_id, late_fee_paise AS fee_paise FROM issued_books WHERE return_date = ? " +
+            "UNION ALL " +
+            "SELECT book_id, user_id, late_fee_paise FROM issued_books_archive WHERE return_date = ?)";
+    private static final String[] REBUILD_SQL = {
+        "INSERT INTO daily_circulation (day, issues) SELECT ?, COUNT(*) FROM " + ISSUED_ON + " WHERE true " +
+            "ON CONFLICT(day) DO UPDATE SET issues = excluded.issues",
+        "INSERT INTO daily_circulation (day, returns, fee_paise) " +
+            "SELECT ?, COUNT(*), COALESCE(SUM(fee_paise), 0) FROM " + RETURNED_ON + " WHERE true " +
+            "ON CONFLICT(day) DO UPDATE SET returns = excluded.returns, fee_paise = excluded.fee_paise",
+        "INSERT INTO daily_book_stats (day, book_id, issues) SELECT ?, book_id, COUNT(*) FROM " + ISSUED_ON +
+            " WHERE true GROUP BY book_id " +
+            "ON CONFLICT(day, book_id) DO UPDATE SET issues = excluded.issues",
+        "INSERT INTO daily_book_stats (day, book_id, returns, fee_paise) " +
+            "SELECT ?, book_id, COUNT(*), COALESCE(SUM(fee_paise), 0) FROM " + RETURNED_ON +
+            " WHERE true GROUP BY book_id " +
+            "ON CONFLICT(day, book_id) DO UPDATE SET returns = excluded.returns, fee_paise = excluded.fee_paise",
+        "INSERT INTO daily_member_stats (day, user_id, issues) SELECT ?, user_id, COUNT(*) FROM " + ISSUED_ON +
+            " WHERE true GROUP BY user_id " +
+            "ON CONFLICT(day, user_id) DO UPDATE SET issues = excluded.issues",
+        "INSERT INTO daily_member_stats (day, user_id, returns, fee_paise) " +
+            "SELECT ?, user_id, COUNT(*), COALESCE(SUM(fee_paise), 0) FROM " + RETURNED_ON +
+            " WHERE true GROUP BY user_id " +
+            "ON CONFLICT(day, user_id) DO UPDATE SET returns = excluded.returns, fee_paise = excluded.fee_paise"
+    };
+
+    // Titles by issues over the period, with the fines their returns brought in
+    static final String POPULAR_TITLES_SQL =
+            "SELECT s.book_id, b.title, b.author, SUM(s.issues) AS issues, SUM(s.returns) AS returns, " +
+            "SUM(s.fee_paise) AS fee_paise FROM daily_book_stats s LEFT JOIN books b ON b.book_id = s.book_id " +
+            "WHERE s.day BETWEEN ? AND ? GROUP BY s.book_id HAVING SUM(s.issues) > 0 " +
+            "ORDER BY issues DESC, s.book_id LIMIT ?";
+    static final String MEMBER_BORROWING_SQL =
+            "SELECT s.user_id, u.name, SUM(s.issues) AS issues, SUM(s.returns) AS returns, " +
+            "SUM(s.fee_paise) AS fee_paise FROM daily_member_stats s LEFT JOIN users u ON u.user_id = s.user_id " +
+            "WHERE s.day BETWEEN ? AND ? GROUP BY s.user_id " +
+            "ORDER BY issues DESC, s.user_id LIMIT ?";
+    // Issues per copy over the period, beside how many copies are out now
+    static final String UTILIZATION_SQL =
+            "SELECT s.book_id, b.title, b.total_copies, b.total_copies - b.available_copies AS copies_out, " +
+            "SUM(s.issues) AS issues, ROUND(SUM(s.issues) * 1.0 / MAX(b.total_copies, 1), 2) AS issues_per_copy " +
+            "FROM daily_book_stats s JOIN books b ON b.book_id = s.book_id " +
+            "WHERE s.day BETWEEN ? AND ? GROUP BY s.book_id HAVING SUM(s.issues) > 0 " +
+            "ORDER BY issues_per_copy DESC, s.book_id LIMIT ?";
+    static final String DAILY_SQL =
+            "SELECT day, issues, returns, fee_paise FROM daily_circulation " +
+            "WHERE day BETWEEN ? AND ? ORDER BY day DESC LIMIT ?";
+
+    public interface Progress {
+        // Return false to stop after the current day; days already rebuilt
+        // stay rebuilt
+        boolean update(LocalDate day);
+    }
+
+    private CirculationStats() {
+    }
+
+    // Counts a new loan; runs in the issue's write task
+    public static void issued(StatementCache statements, LocalDate day, int bookId, int userId)
+            throws SQLException {
+        String dayText = day.toString();
+        PreparedStatement total = statements.prepare(ISSUE_SQL);
+        total.setString(1, dayText);
+        total.executeUpdate();
+        bump(statements, BOOK_ISSUE_SQL, dayText, bookId);
+        bump(statements, MEMBER_ISSUE_SQL, dayText, userId);
+    }
+
+    // Counts a return and the late fee charged on it; runs in the return's
+    // write task
+    public static void returned(StatementCache statements, LocalDate day, int bookId, int userId, long feePaise)
+            throws SQLException {
+        String dayText = day.toString();
+        PreparedStatement total = statements.prepare(RETURN_SQL);
+        total.setString(1, dayText);
+        total.setLong(2, feePaise);
+        total.executeUpdate();
+        bump(statements, BOOK_RETURN_SQL, dayText, bookId, feePaise);
+        bump(statements, MEMBER_RETURN_SQL, dayText, userId, feePaise);
+    }
+
+    // Recomputes every day from first to last, one write task per day so
+    // desk traffic keeps flowing in between; returns the days rebuilt
+    public static int rebuild(ConnectionPool pool, LocalDate first, LocalDate last, Progress progress)
+            throws SQLException {
+        int days = 0;
+        for (LocalDate day = first; !day.isAfter(last); day = day.plusDays(1)) {
+            String dayText = day.toString();
+            pool.write(statements -> {
+                rebuildDay(statements, dayText);
+                return null;
+            });
+            days++;
+            if (progress != null && !progress.update(day)) {
+                break;
+            }
+        }
+        return days;
+    }
+
+    private static void rebuildDay(StatementCache statements, String day) throws SQLException {
+        for (String table : TABLES) {
+            PreparedStatement delete = statements.prepare("DELETE FROM " + table + " WHERE day = ?");
+            delete.setString(1, day);
+            delete.executeUpdate();
+        }
+        for (String sql : REBUILD_SQL) {
+            PreparedStatement pstmt = statements.prepare(sql);
+            pstmt.setString(1, day);
+            pstmt.setString(2, day);
+            pstmt.setString(3, day);
+            pstmt.executeUpdate();
+        }
+    }
+
+    private static void bump(StatementCache statements, String sql, String day, int id) throws SQLException {
+        PreparedStatement pstmt = statements.prepare(sql);
+        pstmt.setString(1, day);
+        pstmt.setInt(2, id);
+        pstmt.executeUpdate();
+    }
+
+    private static void bump(StatementCache statements, String sql, String day, int id, long feePaise)
+            throws SQLException {
+        PreparedStatement pstmt = statements.prepare(sql);
+        pstmt.setString(1, day);
+        pstmt.setInt(2, id);
+        pstmt.setLong(3, feePaise);
+        pstmt.executeUpdate();
+    }
+}
@@ -0,0 +1,357 @@
+import java.sql.Connection;
+import java.sql.DriverManager;
+import java.sql.SQLException;
+import java.sql.Savepoint;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Deque;
+import java.util.List;
+import java.util.Properties;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.Semaphore;
+
+// SQLite allows one writer at a time but, in WAL mode, any number of readers
+// alongside it. The pool mirrors that: up to N read-only connections that
+// callers borrow for the length of one piece of work, and a single writer
+// connection owned by the "library-writer" thread.
+//
+// Writes are queued to that thread, which takes everything waiting (up to
+// MAX_BATCH tasks) and runs it in one transaction with a savepoint around
+// each task. A task that throws is rolled back to its savepoint alone; the
+// rest commit together, so a burst of checkouts costs one commit instead of
+// one per request. write() returns only once its transaction has committed.
+//
+// A write can also pass a Committed callback, which the writer thread runs
+// with the work's result once the commit has succeeded and before it takes
+// the next task. State kept beside the database, such as the availability
+// cache, is updated that way so it changes in commit order and never while
+// a solo task is reading the database on the writer.
+public class ConnectionPool implements AutoCloseable {
+    private static final int MAX_BATCH = 64;
+
+    // SQLITE_OPEN_READONLY, passed through the driver's open_mode property
+    private static final String OPEN_READ_ONLY = "1";
+
+    private static final String COMMIT_OPERATION = "groupCommit";
+
+    public interface Work<T> {
+        T run(StatementCache statements) throws SQLException;
+    }
+
+    public interface Committed<T> {
+        void run(T result);
+    }
+
+    private final String url;
+    private final SqliteProfile profile;
+    private final Semaphore readPermits;
+    private final Deque<StatementCache> idleReaders = new ArrayDeque<>();
+    private final List<StatementCache> allReaders = new ArrayList<>();
+    private final StatementCache writer;
+    private final LinkedBlockingQueue<WriteTask<?>> writes = new LinkedBlockingQueue<>();
+    private final Thread writerThread;
+    private StatementCache pinnedReader;
+    private volatile boolean closed;
+
+    private static class WriteTask<T> {
+        final Work<T> work;
+        // Runs on its own in autocommit mode rather than inside a batch
+        final boolean alone;
+        final Committed<T> committed;
+        final CompletableFuture<T> done = new CompletableFuture<>();
+        // The caller's Metrics operation, so its statements are counted
+        // against it rather than against the writer thread
+        final String operation = Metrics.global().current();
+        T result;
+        Exception error;
+
+        WriteTask(Work<T> work, boolean alone, Committed<T> committed) {
+            this.work = work;
+            this.alone = alone;
+            this.committed = committed;
+        }
+
+        void run(StatementCache statements) {
+            String previous = Metrics.global().enter(operation);
+            try {
+                result = work.run(statements);
+            } catch (Exception e) {
+                error = e;
+            } finally {
+                Metrics.global().restore(previous);
+            }
+        }
+
+        void finish() {
+            if (error == null && committed != null) {
+                try {
+                    committed.run(result);
+                } catch (RuntimeException e) {
+                    // The data is already committed; the caller still gets
+                    // its result
+                    e.printStackTrace();
+                }
+            }
+            if (error == null) {
+                done.complete(result);
+            } else {
+                done.completeExceptionally(error);
+            }
+        }
+    }
+
+    // Readers default to one per core; -Dlibrary.pool.readers=N overrides it
+    public ConnectionPool(String url, SqliteProfile profile) throws SQLException {
+        this(url, profile, Integer.getInteger("library.pool.readers",
+                Math.max(2, Runtime.getRuntime().availableProcessors())));
+    }
+
+    public ConnectionPool(String url, SqliteProfile profile, int readers) throws SQLException {
+        this.url = url;
+        this.profile = profile;
+        this.readPermits = new Semaphore(readers, true);
+        Connection conn = DriverManager.getConnection(url);
+        try {
+            profile.apply(conn);
+        } catch (SQLException e) {
+            conn.close();
+            throw e;
+        }
+        this.writer = new StatementCache(conn);
+        this.writerThread = new Thread(this::runWriter, "library-writer");
+        writerThread.setDaemon(true);
+        writerThread.start();
+        Metrics.global().track(this);
+    }
+
+    // Borrows a read-only connection for the length of the work. Reader
+    // connections are opened on first use, so the schema can be created
+    // through the writer before any of them exist.
+    public <T> T read(Work<T> work) throws SQLException {
+        try {
+            readPermits.acquire();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new SQLException("Interrupted waiting for a reader connection", e);
+        }
+        try {
+            StatementCache reader;
+            synchronized (idleReaders) {
+                reader = idleReaders.poll();
+            }
+            if (reader == null) {
+                reader = openReader();
+            }
+            try {
+                return work.run(reader);
+            } finally {
+                synchronized (idleReaders) {
+                    idleReaders.push(reader);
+                }
+            }
+        } finally {
+            readPermits.release();
+        }
+    }
+
+    // A read-only connection kept out of the shared set for a caller that
+    // does all its reads from one thread, such as the desktop's data thread
+    // feeding the paged table models
+    public synchronized StatementCache pinnedReader() throws SQLException {
+        if (pinnedReader == null) {
+            pinnedReader = openReader();
+        }
+        return pinnedReader;
+    }
+
+    // Queues the work for the writer thread and waits until the batch it
+    // joined has committed
+    public <T> T write(Work<T> work) throws SQLException {
+        return submit(new WriteTask<>(work, false, null));
+    }
+
+    // As write(), running committed with the result on the writer thread
+    // after the commit. A write made from the writer thread itself joins
+    // the caller's transaction, so there its callback runs straight away.
+    public <T> T write(Work<T> work, Committed<T> committed) throws SQLException {
+        return submit(new WriteTask<>(work, false, committed));
+    }
+
+    // Runs the work on the writer thread between batches, with the writer
+    // connection in autocommit mode. For work that manages its own
+    // transactions (bulk import) or must not run inside one (schema
+    // migration, WAL checkpoint).
+    public <T> T writeAlone(Work<T> work) throws SQLException {
+        return submit(new WriteTask<>(work, true, null));
+    }
+
+    // Statement cache counts summed over the writer and every reader,
+    // including the pinned one: {hits, prepares, open cursors}
+    public long[] statementCounts() {
+        long[] counts = {writer.hits(), writer.prepares(), writer.openCursors()};
+        synchronized (idleReaders) {
+            for (StatementCache reader : allReaders) {
+                counts[0] += reader.hits();
+                counts[1] += reader.prepares();
+                counts[2] += reader.openCursors();
+            }
+        }
+        return counts;
+    }
+
+    @Override
+    public void close() throws SQLException {
+        closed = true;
+        writerThread.interrupt();
+        try {
+            writerThread.join(5000);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        // Anything queued after the writer stopped looking
+        failPending();
+        Metrics.global().untrack(this);
+        // Includes the pinned reader
+        synchronized (idleReaders) {
+            for (StatementCache reader : allReaders) {
+                closeQuietly(reader);
+            }
+        }
+        closeQuietly(writer);
+    }
+
+    private <T> T submit(WriteTask<T> task) throws SQLException {
+        if (closed) {
+            throw new SQLException("Connection pool is closed");
+        }
+        if (Thread.currentThread() == writerThread) {
+            // Already on the writer, inside the caller's batch or solo task
+            task.run(writer);
+            task.finish();
+        } else {
+            writes.add(task);
+            // close() may have drained the queue between the check above and
+            // the add; whoever takes the task out finishes it
+            if (closed && writes.remove(task)) {
+                task.error = new SQLException("Connection pool is closed");
+                task.finish();
+            }
+        }
+        try {
+            return task.done.join();
+        } catch (CompletionException e) {
+            Throwable cause = e.getCause();
+            if (cause instanceof SQLException) {
+                throw (SQLException) cause;
+            }
+            if (cause instanceof RuntimeException) {
+                throw (RuntimeException) cause;
+            }
+            throw new SQLException(cause);
+        }
+    }
+
+    private void runWriter() {
+        List<WriteTask<?>> batch = new ArrayList<>();
+        while (!closed) {
+            WriteTask<?> first;
+            try {
+                first = writes.take();
+            } catch (InterruptedException e) {
+                break;
+            }
+            if (first.alone) {
+                first.run(writer);
+                first.finish();
+                continue;
+            }
+            // Single consumer, so whatever peek() sees is what poll() takes
+            batch.add(first);
+            WriteTask<?> next;
+            while (batch.size() < MAX_BATCH && (next = writes.peek()) != null && !next.alone) {
+                batch.add(writes.poll());
+            }
+            commitBatch(batch);
+            batch.clear();
+        }
+        failPending();
+    }
+
+    private void failPending() {
+        WriteTask<?> left;
+        while ((left = writes.poll()) != null) {
+            left.error = new SQLException("Connection pool is closed");
+            left.finish();
+        }
+    }
+
+    private void commitBatch(List<WriteTask<?>> batch) {
+        Connection conn = writer.connection();
+        try {
+            conn.setAutoCommit(false);
+            try {
+                for (WriteTask<?> task : batch) {
+                    Savepoint savepoint = conn.setSavepoint();
+                    task.run(writer);
+                    if (task.error != null) {
+                        conn.rollback(savepoint);
+                    }
+                    conn.releaseSavepoint(savepoint);
+                }
+                // Timed as an operation of its own, with the number of tasks
+                // as its row count, so commit cost shows apart from the tasks
+                long start = System.nanoTime();
+                conn.commit();
+                Metrics.global().operation(COMMIT_OPERATION).record(System.nanoTime() - start, batch.size());
+            } catch (SQLException e) {
+                // The batch as a whole failed (commit or savepoint bookkeeping),
+                // so nothing in it was applied
+                conn.rollback();
+                for (WriteTask<?> task : batch) {
+                    if (task.error == null) {
+                        task.error = e;
+                    }
+                }
+            } finally {
+                conn.setAutoCommit(true);
+            }
+        } catch (SQLException e) {
+            for (WriteTask<?> task : batch) {
+                if (task.error == null) {
+                    task.error = e;
+                }
+            }
+        }
+        for (WriteTask<?> task : batch) {
+            task.finish();
+        }
+    }
+
+    private StatementCache openReader() throws SQLException {
+        Properties props = new Properties();
+        props.setProperty("open_mode", OPEN_READ_ONLY);
+        Connection conn = DriverManager.getConnection(url, props);
+        try {
+            profile.applyToReader(conn);
+        } catch (SQLException e) {
+            conn.close();
+            throw e;
+        }
+        StatementCache reader = new StatementCache(conn);
+        synchronized (idleReaders) {
+            allReaders.add(reader);
+        }
+        return reader;
+    }
+
+    private static void closeQuietly(StatementCache statements) {
+        statements.close();
+        try {
+            statements.connection().close();
+        } catch (SQLException e) {
+            e.printStackTrace();
+        }
+    }
+}
@@ -0,0 +1,118 @@
+import javax.swing.SwingUtilities;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.function.Consumer;
+
+// Runs JDBC work off the Swing event dispatch thread and hands the results
+// back to the EDT, much like a SwingWorker's done() callback.
+public class DataExecutor {
+    private final ExecutorService worker;
+    private final Map<String, Task<?>> inFlight = new HashMap<>();
+
+    public DataExecutor() {
+        // SQLite connections are not safe to share across threads, so all
+        // database work goes through a single background thread
+        worker = Executors.newSingleThreadExecutor(r -> {
+            Thread t = new Thread(r, "library-data");
+            t.setDaemon(true);
+            return t;
+        });
+    }
+
+    public <T> void submit(Callable<T> query, Consumer<T> onSuccess, Consumer<Exception> onError) {
+        submit(null, query, onSuccess, onError);
+    }
+
+    // Tasks sharing a key supersede each other: submitting a newer refresh
+    // cancels the older one, and a stale result is never delivered
+    public <T> void submit(String key, Callable<T> query, Consumer<T> onSuccess, Consumer<Exception> onError) {
+        Task<T> task = new Task<>(key, query, onSuccess, onError);
+        synchronized (inFlight) {
+            if (key != null) {
+                Task<?> previous = inFlight.put(key, task);
+                if (previous != null) {
+                    previous.cancel();
+                }
+            }
+            task.future = worker.submit(task);
+        }
+    }
+
+    public void cancel(String key) {
+        synchronized (inFlight) {
+            Task<?> task = inFlight.remove(key);
+            if (task != null) {
+                task.cancel();
+            }
+        }
+    }
+
+    public void shutdown() {
+        worker.shutdownNow();
+    }
+
+    private boolean retire(Task<?> task) {
+        synchronized (inFlight) {
+            if (task.cancelled) {
+                return false;
+            }
+            if (task.key != null && inFlight.get(task.key) == task) {
+                inFlight.remove(task.key);
+            }
+            return true;
+        }
+    }
+
+    private class Task<T> implements Runnable {
+        private final String key;
+        private final Callable<T> query;
+        private final Consumer<T> onSuccess;
+        private final Consumer<Exception> onError;
+        private volatile boolean cancelled;
+        private Future<?> future;
+
+        Task(String key, Callable<T> query, Consumer<T> onSuccess, Consumer<Exception> onError) {
+            this.key = key;
+            this.query = query;
+            this.onSuccess = onSuccess;
+            this.onError = onError;
+        }
+
+        void cancel() {
+            cancelled = true;
+            if (future != null) {
+                future.cancel(false);
+            }
+        }
+
+        @Override
+        public void run() {
+            if (cancelled) {
+                return;
+            }
+            try {
+                T result = query.call();
+                SwingUtilities.invokeLater(() -> {
+                    if (retire(this) && onSuccess != null) {
+                        onSuccess.accept(result);
+                    }
+                });
+            } catch (Exception e) {
+                SwingUtilities.invokeLater(() -> {
+                    if (!retire(this)) {
+                        return;
+                    }
+                    if (onError != null) {
+                        onError.accept(e);
+                    } else {
+                        e.printStackTrace();
+                    }
+                });
+            }
+        }
+    }
+}
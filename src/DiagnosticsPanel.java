@@ -0,0 +1,120 @@
+import javax.swing.BorderFactory;
+import javax.swing.JButton;
+import javax.swing.JFileChooser;
+import javax.swing.JLabel;
+import javax.swing.JOptionPane;
+import javax.swing.JPanel;
+import javax.swing.JScrollPane;
+import javax.swing.JTable;
+import javax.swing.Timer;
+import java.awt.BorderLayout;
+import java.awt.FlowLayout;
+import java.awt.GridLayout;
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+
+// The Diagnostics tab: one row per operation with its statements listed
+// beneath it, showing calls, errors, rows and latency percentiles in
+// milliseconds, plus the event thread's stall time and the statement
+// caches' hit rate and open cursors. Refreshes every two seconds while the
+// tab is on screen.
+public class DiagnosticsPanel extends JPanel {
+    private static final String[] COLUMNS =
+            {"Operation", "Statement", "Calls", "Errors", "Rows", "p50 ms", "p99 ms", "p99.9 ms", "Max ms", "Last Error"};
+
+    private final Metrics metrics;
+    private final RowListTableModel model = new RowListTableModel(COLUMNS);
+    private final JLabel edtLabel = new JLabel();
+    private final JLabel statementsLabel = new JLabel();
+
+    public DiagnosticsPanel(Metrics metrics) {
+        super(new BorderLayout(10, 10));
+        this.metrics = metrics;
+        setBorder(BorderFactory.createEmptyBorder(10, 10, 10, 10));
+
+        JPanel top = new JPanel(new BorderLayout(10, 10));
+        JPanel labels = new JPanel(new GridLayout(2, 1));
+        labels.add(edtLabel);
+        labels.add(statementsLabel);
+        top.add(labels, BorderLayout.CENTER);
+        JPanel buttons = new JPanel(new FlowLayout(FlowLayout.RIGHT));
+        JButton refreshBtn = new JButton("Refresh");
+        JButton resetBtn = new JButton("Reset");
+        JButton dumpBtn = new JButton("Save Prometheus Dump...");
+        refreshBtn.addActionListener(e -> refresh());
+        resetBtn.addActionListener(e -> {
+            metrics.reset();
+            refresh();
+        });
+        dumpBtn.addActionListener(e -> saveDump());
+        buttons.add(refreshBtn);
+        buttons.add(resetBtn);
+        buttons.add(dumpBtn);
+        top.add(buttons, BorderLayout.EAST);
+        add(top, BorderLayout.NORTH);
+
+        JTable table = new JTable(model);
+        table.getColumnModel().getColumn(1).setPreferredWidth(300);
+        add(new JScrollPane(table), BorderLayout.CENTER);
+
+        Timer timer = new Timer(2000, e -> {
+            if (isShowing()) {
+                refresh();
+            }
+        });
+        timer.start();
+        refresh();
+    }
+
+    public void refresh() {
+        List<Object[]> rows = new ArrayList<>();
+        for (Map.Entry<String, Metrics.Stats> op : metrics.operations().entrySet()) {
+            rows.add(row(op.getKey(), "", op.getValue()));
+            for (Map.Entry<String, Metrics.Stats> sql : metrics.statements(op.getKey()).entrySet()) {
+                rows.add(row("", sql.getKey(), sql.getValue()));
+            }
+        }
+        model.setRows(rows);
+
+        Metrics.Stats edt = metrics.edt();
+        long[] p = edt.latency().percentiles(50, 99);
+        edtLabel.setText(String.format("Event thread: %d events, p50 %.2f ms, p99 %.2f ms, max %.1f ms; " +
+                                       "%d stalls, %.1f ms blocked",
+                edt.calls(), p[0] / 1e6, p[1] / 1e6, edt.latency().maxNanos() / 1e6,
+                metrics.edtStalls(), metrics.edtBlockedNanos() / 1e6));
+
+        long hits = metrics.statementCacheHits();
+        long prepares = metrics.statementPrepares();
+        statementsLabel.setText(String.format("Statement cache: %d hits, %d prepares (%.1f%% reused); " +
+                                              "%d open cursors",
+                hits, prepares, hits + prepares == 0 ? 0.0 : 100.0 * hits / (hits + prepares),
+                metrics.openCursors()));
+    }
+
+    private static Object[] row(String operation, String sql, Metrics.Stats stats) {
+        long[] p = stats.latency().percentiles(50, 99, 99.9);
+        return new Object[] {operation, sql, stats.calls(), stats.errors(), stats.rows(),
+                             millis(p[0]), millis(p[1]), millis(p[2]), millis(stats.latency().maxNanos()),
+                             stats.lastError() == null ? "" : stats.lastError()};
+    }
+
+    private static String millis(long nanos) {
+        return String.format("%.3f", nanos / 1e6);
+    }
+
+    private void saveDump() {
+        JFileChooser chooser = new JFileChooser();
+        chooser.setSelectedFile(new File("library-metrics.prom"));
+        if (chooser.showSaveDialog(this) != JFileChooser.APPROVE_OPTION) {
+            return;
+        }
+        try {
+            metrics.dump(chooser.getSelectedFile());
+        } catch (IOException e) {
+            JOptionPane.showMessageDialog(this, "Error: " + e.getMessage());
+        }
+    }
+}
@@ -0,0 +1,36 @@
+import java.awt.AWTEvent;
+import java.awt.EventQueue;
+import java.awt.Toolkit;
+
+// Times every event the Swing event dispatch thread handles, so time the
+// window spent frozen (a slow listener, a query run on the EDT by mistake)
+// shows up in Metrics rather than only as a complaint from the desk.
+public class EdtMonitor extends EventQueue {
+    private static boolean installed;
+
+    private final Metrics metrics;
+
+    private EdtMonitor(Metrics metrics) {
+        this.metrics = metrics;
+    }
+
+    // Pushes the monitor in front of the system event queue; events already
+    // queued move across to it
+    public static synchronized void install(Metrics metrics) {
+        if (installed) {
+            return;
+        }
+        Toolkit.getDefaultToolkit().getSystemEventQueue().push(new EdtMonitor(metrics));
+        installed = true;
+    }
+
+    @Override
+    protected void dispatchEvent(AWTEvent event) {
+        long start = System.nanoTime();
+        try {
+            super.dispatchEvent(event);
+        } finally {
+            metrics.recordEdt(System.nanoTime() - start);
+        }
+    }
+}
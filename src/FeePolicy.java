@@ -0,0 +1,71 @@
+import java.time.LocalDate;
+import java.time.temporal.ChronoUnit;
+
+// How long a loan runs and what it costs once overdue. Fees are whole paise
+// held in longs, so totals over millions of loans add up exactly.
+//
+// The defaults are the library's long-standing terms: 14 days, Rs. 5 per
+// day late, no grace period and no cap. Override them with
+// -Dlibrary.fees.<setting>=<value>, for example
+// -Dlibrary.fees.paise_per_day=1000 or -Dlibrary.fees.max_paise=50000.
+public class FeePolicy {
+    public final int loanDays;
+    public final long paisePerDay;
+    // A loan returned within this many days of its due date costs nothing;
+    // after that every late day is charged
+    public final int graceDays;
+    // 0 means no cap
+    public final long maxPaise;
+
+    public FeePolicy(int loanDays, long paisePerDay, int graceDays, long maxPaise) {
+        this.loanDays = loanDays;
+        this.paisePerDay = paisePerDay;
+        this.graceDays = graceDays;
+        this.maxPaise = maxPaise;
+    }
+
+    public static FeePolicy standard() {
+        return new FeePolicy(14, 500, 0, 0);
+    }
+
+    public static FeePolicy fromSystemProperties() {
+        FeePolicy base = standard();
+        return new FeePolicy(
+                Integer.getInteger("library.fees.loan_days", base.loanDays),
+                Long.getLong("library.fees.paise_per_day", base.paisePerDay),
+                Integer.getInteger("library.fees.grace_days", base.graceDays),
+                Long.getLong("library.fees.max_paise", base.maxPaise));
+    }
+
+    public LocalDate dueDate(LocalDate issueDate) {
+        return issueDate.plusDays(loanDays);
+    }
+
+    public long daysOverdue(LocalDate dueDate, LocalDate asOf) {
+        return Math.max(0, ChronoUnit.DAYS.between(dueDate, asOf));
+    }
+
+    public long feePaise(long daysOverdue) {
+        if (daysOverdue <= graceDays) {
+            return 0;
+        }
+        long fee = daysOverdue * paisePerDay;
+        return maxPaise > 0 ? Math.min(fee, maxPaise) : fee;
+    }
+
+    public long feePaise(LocalDate dueDate, LocalDate asOf) {
+        return feePaise(daysOverdue(dueDate, asOf));
+    }
+
+    // 2550 -> "25.50"
+    public static String rupees(long paise) {
+        return String.format("%d.%02d", paise / 100, Math.abs(paise % 100));
+    }
+
+    @Override
+    public String toString() {
+        return loanDays + " day loans, Rs. " + rupees(paisePerDay) + "/day late" +
+               (graceDays > 0 ? ", " + graceDays + " days grace" : "") +
+               (maxPaise > 0 ? ", capped at Rs. " + rupees(maxPaise) : "");
+    }
+}
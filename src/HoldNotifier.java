@@ -0,0 +1,89 @@
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+// Where "your hold is ready" notices go. LibraryService sends one after the
+// transaction that filled the hold has committed, on the thread that made
+// the return, so a sink should be quick and must not throw; mail or SMS
+// delivery belongs in whatever reads the sink, not in the sink itself.
+//
+// -Dlibrary.holds.notify picks the sink: "file" (the default) appends one
+// JSON line per notice to -Dlibrary.holds.notify_file (hold-notices.jsonl),
+// "outbox" keeps them in memory for GET /notices to collect.
+public interface HoldNotifier {
+    void holdReady(HoldQueue.Notice notice);
+
+    static HoldNotifier fromSystemProperties() {
+        String sink = System.getProperty("library.holds.notify", "file");
+        switch (sink) {
+            case "file":
+                return new FileSink(new File(System.getProperty("library.holds.notify_file", "hold-notices.jsonl")));
+            case "outbox":
+                return new Outbox(Integer.getInteger("library.holds.outbox_size", 10_000));
+            default:
+                throw new IllegalArgumentException("Unknown hold notice sink " + sink + ", expected file or outbox");
+        }
+    }
+
+    // Appends each notice to a file as a line of JSON
+    class FileSink implements HoldNotifier {
+        private final File file;
+
+        public FileSink(File file) {
+            this.file = file;
+        }
+
+        @Override
+        public synchronized void holdReady(HoldQueue.Notice notice) {
+            String line = Json.write(notice.toMap()) + "\n";
+            try {
+                Files.write(file.toPath(), line.getBytes(StandardCharsets.UTF_8),
+                            StandardOpenOption.CREATE, StandardOpenOption.APPEND);
+            } catch (IOException e) {
+                System.err.println("Could not write hold notice to " + file + ": " + e.getMessage() +
+                                   " - " + notice);
+            }
+        }
+    }
+
+    // Keeps the latest notices in memory until drained; once full, the
+    // oldest is dropped and counted
+    class Outbox implements HoldNotifier {
+        private final int capacity;
+        private final ArrayDeque<HoldQueue.Notice> notices = new ArrayDeque<>();
+        private long dropped;
+
+        public Outbox(int capacity) {
+            this.capacity = capacity;
+        }
+
+        @Override
+        public synchronized void holdReady(HoldQueue.Notice notice) {
+            if (notices.size() == capacity) {
+                notices.removeFirst();
+                dropped++;
+            }
+            notices.addLast(notice);
+        }
+
+        // Everything waiting, oldest first, leaving the outbox empty
+        public synchronized List<HoldQueue.Notice> drain() {
+            if (notices.isEmpty()) {
+                return Collections.emptyList();
+            }
+            List<HoldQueue.Notice> drained = new ArrayList<>(notices);
+            notices.clear();
+            return drained;
+        }
+
+        public synchronized long dropped() {
+            return dropped;
+        }
+    }
+}
@@ -0,0 +1,282 @@
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.time.LocalDate;
+import java.time.LocalDateTime;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+// Holds on books with no copy on the shelf, queued per book in the order
+// they were placed.
+//
+// A hold is 'waiting' in its book's queue until a copy comes back. The copy
+// then goes straight to the hold at the head of the queue, which becomes
+// 'ready' for the member to collect within the pickup window; it is never
+// counted in books.available_copies, so nobody else can borrow it. A ready
+// hold ends 'fulfilled' when the member borrows the book, or 'cancelled' or
+// 'expired', and in those two cases its copy goes on to the next hold.
+//
+// Every method runs inside a transaction the caller already holds, so a
+// return and the hold it fills commit together. Finding the next hold is
+// one seek on the partial index over waiting holds (idx_holds_queue), the
+// same cost however long the queue or the holds table grows.
+public class HoldQueue {
+    static final String NEXT_HOLD_SQL =
+            "UPDATE holds SET status = 'ready', ready_at = ?, expires_on = ? " +
+            "WHERE hold_id = (SELECT hold_id FROM holds WHERE book_id = ? AND status = 'waiting' " +
+            "ORDER BY hold_id LIMIT 1) RETURNING hold_id, user_id";
+    private static final String SHELVE_SQL =
+            "UPDATE books SET available_copies = available_copies + 1 WHERE book_id = ?";
+    // Only while no copy is on the shelf; the partial unique index on
+    // active holds turns a second hold by the same member into no row
+    private static final String PLACE_SQL =
+            "INSERT OR IGNORE INTO holds (book_id, user_id, placed_at) " +
+            "SELECT ?, ?, ? WHERE EXISTS (SELECT 1 FROM books WHERE book_id = ? AND available_copies = 0) " +
+            "RETURNING hold_id";
+    private static final String POSITION_SQL =
+            "SELECT COUNT(*) FROM holds WHERE book_id = ? AND status = 'waiting' AND hold_id <= ?";
+    static final String READY_HOLD_SQL =
+            "SELECT hold_id FROM holds WHERE user_id = ? AND book_id = ? AND status = 'ready'";
+    private static final String CLAIM_SQL =
+            "UPDATE holds SET status = 'fulfilled', closed_at = ? " +
+            "WHERE user_id = ? AND book_id = ? AND status = 'ready' RETURNING hold_id";
+    private static final String STATUS_SQL = "SELECT book_id, status FROM holds WHERE hold_id = ?";
+    private static final String CANCEL_SQL =
+            "UPDATE holds SET status = 'cancelled', closed_at = ? " +
+            "WHERE hold_id = ? AND status IN ('waiting', 'ready')";
+    static final String EXPIRING_SQL =
+            "SELECT hold_id FROM holds WHERE status = 'ready' AND expires_on < ? ORDER BY expires_on";
+    private static final String EXPIRE_SQL =
+            "UPDATE holds SET status = 'expired', closed_at = ? " +
+            "WHERE hold_id = ? AND status = 'ready' AND expires_on < ? RETURNING book_id";
+    static final String QUEUE_SQL =
+            "SELECT h.hold_id, h.user_id, u.name, h.status, h.placed_at, h.expires_on " +
+            "FROM holds h LEFT JOIN users u ON u.user_id = h.user_id " +
+            "WHERE h.book_id = ? AND h.status IN ('waiting', 'ready') ORDER BY h.hold_id";
+    private static final String NOTICE_SQL =
+            "SELECT (SELECT title FROM books WHERE book_id = ?), " +
+            "(SELECT name FROM users WHERE user_id = ?), (SELECT email FROM users WHERE user_id = ?)";
+
+    // A hold that has just become ready, for the member to be told
+    public static class Notice {
+        public final long holdId;
+        public final int bookId;
+        public final int userId;
+        public final String title;
+        public final String name;
+        public final String email;
+        public final LocalDate expiresOn;
+
+        Notice(long holdId, int bookId, int userId, String title, String name, String email,
+               LocalDate expiresOn) {
+            this.holdId = holdId;
+            this.bookId = bookId;
+            this.userId = userId;
+            this.title = title;
+            this.name = name;
+            this.email = email;
+            this.expiresOn = expiresOn;
+        }
+
+        public Map<String, Object> toMap() {
+            Map<String, Object> map = new LinkedHashMap<>();
+            map.put("hold_id", holdId);
+            map.put("book_id", bookId);
+            map.put("title", title);
+            map.put("user_id", userId);
+            map.put("name", name);
+            map.put("email", email);
+            map.put("expires_on", expiresOn.toString());
+            return map;
+        }
+
+        @Override
+        public String toString() {
+            return "Hold " + holdId + ": \"" + title + "\" is ready for " + name +
+                   " (" + email + ") until " + expiresOn;
+        }
+    }
+
+    public static class Placed {
+        public final long holdId;
+        // 1 for the head of the queue
+        public final int position;
+
+        Placed(long holdId, int position) {
+            this.holdId = holdId;
+            this.position = position;
+        }
+    }
+
+    // A cancelled or expired hold. If it was ready, its copy went to the
+    // next hold (next is set) or back on the shelf (next is null).
+    public static class Release {
+        public final long holdId;
+        public final int bookId;
+        public final boolean hadCopy;
+        public final Notice next;
+
+        Release(long holdId, int bookId, boolean hadCopy, Notice next) {
+            this.holdId = holdId;
+            this.bookId = bookId;
+            this.hadCopy = hadCopy;
+            this.next = next;
+        }
+    }
+
+    private final int pickupDays;
+
+    public HoldQueue(int pickupDays) {
+        this.pickupDays = pickupDays;
+    }
+
+    // Members get -Dlibrary.holds.pickup_days (3 by default) to collect a
+    // ready hold
+    public static HoldQueue fromSystemProperties() {
+        return new HoldQueue(Integer.getInteger("library.holds.pickup_days", 3));
+    }
+
+    // Null when a copy is on the shelf, there is no such book, or the member
+    // already has a hold on it
+    public Placed place(StatementCache statements, int userId, int bookId) throws SQLException {
+        PreparedStatement pstmt = statements.prepare(PLACE_SQL);
+        pstmt.setInt(1, bookId);
+        pstmt.setInt(2, userId);
+        pstmt.setString(3, LocalDateTime.now().toString());
+        pstmt.setInt(4, bookId);
+        long holdId;
+        try (ResultSet rs = statements.query(pstmt)) {
+            if (!rs.next()) {
+                return null;
+            }
+            holdId = rs.getLong(1);
+        }
+        PreparedStatement position = statements.prepare(POSITION_SQL);
+        position.setInt(1, bookId);
+        position.setLong(2, holdId);
+        try (ResultSet rs = statements.query(position)) {
+            return new Placed(holdId, rs.next() ? rs.getInt(1) : 1);
+        }
+    }
+
+    // A copy is coming back: it goes to the head of the book's queue if
+    // anyone is waiting, otherwise back on the shelf. Returns the hold it
+    // filled, or null if it was shelved.
+    public Notice releaseCopy(StatementCache statements, int bookId, LocalDate today) throws SQLException {
+        LocalDate expiresOn = today.plusDays(pickupDays);
+        PreparedStatement next = statements.prepare(NEXT_HOLD_SQL);
+        next.setString(1, LocalDateTime.now().toString());
+        next.setString(2, expiresOn.toString());
+        next.setInt(3, bookId);
+        long holdId;
+        int userId;
+        try (ResultSet rs = statements.query(next)) {
+            if (!rs.next()) {
+                PreparedStatement shelve = statements.prepare(SHELVE_SQL);
+                shelve.setInt(1, bookId);
+                shelve.executeUpdate();
+                return null;
+            }
+            holdId = rs.getLong(1);
+            userId = rs.getInt(2);
+        }
+        return notice(statements, holdId, bookId, userId, expiresOn);
+    }
+
+    public static boolean hasReadyHold(StatementCache statements, int userId, int bookId) throws SQLException {
+        PreparedStatement pstmt = statements.prepare(READY_HOLD_SQL);
+        pstmt.setInt(1, userId);
+        pstmt.setInt(2, bookId);
+        try (ResultSet rs = statements.query(pstmt)) {
+            return rs.next();
+        }
+    }
+
+    // Marks the member's ready hold on the book fulfilled as they borrow
+    // the copy kept for them; returns its id, or 0 if they had none
+    public static long claim(StatementCache statements, int userId, int bookId) throws SQLException {
+        PreparedStatement pstmt = statements.prepare(CLAIM_SQL);
+        pstmt.setString(1, LocalDateTime.now().toString());
+        pstmt.setInt(2, userId);
+        pstmt.setInt(3, bookId);
+        try (ResultSet rs = statements.query(pstmt)) {
+            return rs.next() ? rs.getLong(1) : 0;
+        }
+    }
+
+    // Null when the hold does not exist or has already ended
+    public Release cancel(StatementCache statements, long holdId, LocalDate today) throws SQLException {
+        PreparedStatement status = statements.prepare(STATUS_SQL);
+        status.setLong(1, holdId);
+        int bookId;
+        boolean ready;
+        try (ResultSet rs = statements.query(status)) {
+            if (!rs.next()) {
+                return null;
+            }
+            bookId = rs.getInt(1);
+            ready = "ready".equals(rs.getString(2));
+        }
+        PreparedStatement cancel = statements.prepare(CANCEL_SQL);
+        cancel.setString(1, LocalDateTime.now().toString());
+        cancel.setLong(2, holdId);
+        if (cancel.executeUpdate() == 0) {
+            return null;
+        }
+        return new Release(holdId, bookId, ready, ready ? passOn(statements, bookId, today) : null);
+    }
+
+    // Ids of ready holds whose pickup window closed before today
+    public static List<Long> expiring(StatementCache statements, LocalDate today) throws SQLException {
+        PreparedStatement pstmt = statements.prepare(EXPIRING_SQL);
+        pstmt.setString(1, today.toString());
+        List<Long> ids = new ArrayList<>();
+        try (ResultSet rs = statements.query(pstmt)) {
+            while (rs.next()) {
+                ids.add(rs.getLong(1));
+            }
+        }
+        return ids;
+    }
+
+    // Null when the hold was collected or cancelled since expiring() saw it
+    public Release expire(StatementCache statements, long holdId, LocalDate today) throws SQLException {
+        PreparedStatement pstmt = statements.prepare(EXPIRE_SQL);
+        pstmt.setString(1, LocalDateTime.now().toString());
+        pstmt.setLong(2, holdId);
+        pstmt.setString(3, today.toString());
+        int bookId;
+        try (ResultSet rs = statements.query(pstmt)) {
+            if (!rs.next()) {
+                return null;
+            }
+            bookId = rs.getInt(1);
+        }
+        return new Release(holdId, bookId, true, passOn(statements, bookId, today));
+    }
+
+    // A ready hold's copy that nobody else is waiting for goes back on the
+    // shelf, which the circulation journal records as an adjustment
+    private Notice passOn(StatementCache statements, int bookId, LocalDate today) throws SQLException {
+        Notice next = releaseCopy(statements, bookId, today);
+        if (next == null) {
+            CirculationJournal.record(statements, CirculationJournal.ADJUST, bookId, null, null, 1);
+        }
+        return next;
+    }
+
+    private static Notice notice(StatementCache statements, long holdId, int bookId, int userId,
+                                 LocalDate expiresOn) throws SQLException {
+        PreparedStatement pstmt = statements.prepare(NOTICE_SQL);
+        pstmt.setInt(1, bookId);
+        pstmt.setInt(2, userId);
+        pstmt.setInt(3, userId);
+        try (ResultSet rs = statements.query(pstmt)) {
+            rs.next();
+            return new Notice(holdId, bookId, userId, rs.getString(1), rs.getString(2), rs.getString(3),
+                              expiresOn);
+        }
+    }
+}
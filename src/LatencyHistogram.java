@@ -0,0 +1,99 @@
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+// Fixed-memory latency histogram in the style of HdrHistogram: values in
+// nanoseconds land in log-linear buckets, exact below 128ns and within 1/64
+// (about 1.6%) of the true value above that, up to 2^36ns (68s). Recording
+// is lock-free and safe from any number of threads; reads see a
+// near-consistent view, which is all a dashboard needs.
+public class LatencyHistogram {
+    private static final int SUB_BUCKETS = 128;
+    private static final int HALF = SUB_BUCKETS / 2;
+    private static final long MAX_TRACKED = (1L << 36) - 1;
+    private static final int BUCKETS = SUB_BUCKETS + 30 * HALF;
+
+    private final AtomicLongArray counts = new AtomicLongArray(BUCKETS);
+    private final AtomicLong count = new AtomicLong();
+    private final AtomicLong sum = new AtomicLong();
+    private final AtomicLong max = new AtomicLong();
+
+    public void record(long nanos) {
+        long value = Math.max(0, nanos);
+        counts.incrementAndGet(index(Math.min(value, MAX_TRACKED)));
+        count.incrementAndGet();
+        sum.addAndGet(value);
+        max.accumulateAndGet(value, Math::max);
+    }
+
+    public long count() {
+        return count.get();
+    }
+
+    public long sumNanos() {
+        return sum.get();
+    }
+
+    public long maxNanos() {
+        return max.get();
+    }
+
+    public long percentile(double percentile) {
+        return percentiles(percentile)[0];
+    }
+
+    // Several percentiles from one pass over the buckets, each reported as
+    // the highest value its bucket can hold (never below the true value)
+    public long[] percentiles(double... percentiles) {
+        long[] snapshot = new long[BUCKETS];
+        long total = 0;
+        for (int i = 0; i < BUCKETS; i++) {
+            snapshot[i] = counts.get(i);
+            total += snapshot[i];
+        }
+        long[] result = new long[percentiles.length];
+        if (total == 0) {
+            return result;
+        }
+        long maxValue = max.get();
+        for (int p = 0; p < percentiles.length; p++) {
+            long target = Math.max(1, (long) Math.ceil(percentiles[p] / 100.0 * total));
+            long seen = 0;
+            for (int i = 0; i < BUCKETS; i++) {
+                seen += snapshot[i];
+                if (seen >= target) {
+                    result[p] = Math.min(highestInBucket(i), maxValue);
+                    break;
+                }
+            }
+        }
+        return result;
+    }
+
+    public void reset() {
+        for (int i = 0; i < BUCKETS; i++) {
+            counts.set(i, 0);
+        }
+        count.set(0);
+        sum.set(0);
+        max.set(0);
+    }
+
+    // Values below SUB_BUCKETS get a bucket each; above that, every power of
+    // two is split into HALF equal buckets
+    private static int index(long value) {
+        if (value < SUB_BUCKETS) {
+            return (int) value;
+        }
+        int shift = 63 - Long.numberOfLeadingZeros(value) - 6;
+        return SUB_BUCKETS + (shift - 1) * HALF + (int) ((value >>> shift) - HALF);
+    }
+
+    private static long highestInBucket(int index) {
+        if (index < SUB_BUCKETS) {
+            return index;
+        }
+        int shift = (index - SUB_BUCKETS) / HALF + 1;
+        long sub = (index - SUB_BUCKETS) % HALF + HALF;
+        return ((sub + 1) << shift) - 1;
+    }
+}
@@ -0,0 +1,214 @@
+import java.io.File;
+import java.io.IOException;
+import java.sql.SQLException;
+import java.time.LocalDate;
+import java.time.format.DateTimeParseException;
+import java.util.Arrays;
+import java.util.List;
+
+// One-shot batch jobs run from the command line against library.db, or
+// with -Dlibrary.branch=NAME that branch's shard, for cron and scripts
+// rather than the desk:
+//
+//   LibraryManagementSystem --overdue [YYYY-MM-DD]
+//       record accrued fines on overdue open loans as of the date (today
+//       by default)
+//
+//   LibraryManagementSystem --archive [YYYY-MM-DD]
+//       move loans returned before the date to issued_books_archive (by
+//       default, before today less -Dlibrary.archive.horizon_days)
+//
+//   LibraryManagementSystem --expire-holds [YYYY-MM-DD]
+//       end ready holds not collected by the day before the date (today by
+//       default), passing each copy to the next member waiting
+//
+//   LibraryManagementSystem --rebuild-reports [YYYY-MM-DD]
+//       recompute the daily report aggregates from the date (a week ago by
+//       default) through today from the loans themselves
+//
+//   LibraryManagementSystem --export DIR [csv|json]
+//       write books, users, issued_books and issued_books_archive to DIR as
+//       CSV (the default) or JSON, one file per table
+//
+//   LibraryManagementSystem --backup FILE
+//       write a consistent copy of library.db to FILE, which must not exist;
+//       safe while the application is running
+//
+//   LibraryManagementSystem --snapshot-availability
+//       record every book's available copies as the new starting point for
+//       --replay-journal
+//
+//   LibraryManagementSystem --replay-journal [--apply]
+//       rebuild every book's available copies from the latest snapshot and
+//       the circulation journal since, and list the books that disagree;
+//       with --apply, also correct them
+public class LibraryCli {
+    private static final List<String> COMMANDS =
+            Arrays.asList("--overdue", "--archive", "--expire-holds", "--rebuild-reports", "--export", "--backup",
+                          "--snapshot-availability", "--replay-journal");
+
+    private LibraryCli() {
+    }
+
+    public static boolean handles(String[] args) {
+        return args.length > 0 && COMMANDS.contains(args[0]);
+    }
+
+    // Returns the process exit status
+    public static int run(String[] args) {
+        try (LibraryService service = LibraryService.open(BranchLibrary.localDatabaseUrl(),
+                SqliteProfile.fromSystemProperties(), new ChangeBus())) {
+            switch (args[0]) {
+                case "--overdue":
+                    return overdue(service, args);
+                case "--archive":
+                    return archive(service, args);
+                case "--expire-holds":
+                    return expireHolds(service, args);
+                case "--rebuild-reports":
+                    return rebuildReports(service, args);
+                case "--export":
+                    return export(service, args);
+                case "--backup":
+                    return backup(service, args);
+                case "--snapshot-availability":
+                    return snapshotAvailability(service);
+                case "--replay-journal":
+                    return replayJournal(service, args);
+                default:
+                    System.err.println("Unknown command " + args[0]);
+                    return 2;
+            }
+        } catch (IOException | SQLException e) {
+            e.printStackTrace();
+            return 1;
+        }
+    }
+
+    private static int overdue(LibraryService service, String[] args) throws SQLException {
+        LocalDate asOf = dateArg(args, LocalDate.now());
+        if (asOf == null) {
+            return 2;
+        }
+        System.out.println("Overdue run as of " + asOf + ": " + service.fees());
+        OverdueEngine.Result result = service.runOverdue(asOf, (loans, totalPaise) -> {
+            System.out.println("  " + loans + " loans, Rs. " + FeePolicy.rupees(totalPaise));
+            return true;
+        });
+        System.out.println("Run " + result.runId + ": " + result.loans + " overdue loans, Rs. " +
+                           FeePolicy.rupees(result.totalPaise) + " accrued, in " + result.millis + " ms" +
+                           (result.skipped > 0 ? " (" + result.skipped + " loans with unreadable due dates)" : ""));
+        return 0;
+    }
+
+    private static int archive(LibraryService service, String[] args) throws SQLException {
+        LocalDate cutoff = dateArg(args, ArchiveEngine.defaultCutoff());
+        if (cutoff == null) {
+            return 2;
+        }
+        System.out.println("Archiving loans returned before " + cutoff);
+        ArchiveEngine.Result result = service.archiveLoans(cutoff, archived -> {
+            System.out.println("  " + archived + " loans");
+            return true;
+        });
+        System.out.println("Archived " + result.archived + " loans in " + result.millis + " ms");
+        return 0;
+    }
+
+    private static int expireHolds(LibraryService service, String[] args) throws SQLException {
+        LocalDate today = dateArg(args, LocalDate.now());
+        if (today == null) {
+            return 2;
+        }
+        System.out.println("Expired " + service.expireHolds(today) + " holds not collected before " + today);
+        return 0;
+    }
+
+    private static int rebuildReports(LibraryService service, String[] args) throws SQLException {
+        LocalDate first = dateArg(args, LocalDate.now().minusDays(6));
+        if (first == null) {
+            return 2;
+        }
+        long start = System.currentTimeMillis();
+        int days = service.rebuildReports(first, LocalDate.now(), null);
+        System.out.println("Rebuilt report aggregates for " + days + " days from " + first + " in " +
+                           (System.currentTimeMillis() - start) + " ms");
+        return 0;
+    }
+
+    private static int export(LibraryService service, String[] args) throws IOException, SQLException {
+        if (args.length < 2) {
+            System.err.println("Usage: --export DIR [csv|json]");
+            return 2;
+        }
+        LibraryExporter.Format format;
+        try {
+            format = LibraryExporter.Format.valueOf(args.length > 2 ? args[2].toUpperCase() : "CSV");
+        } catch (IllegalArgumentException e) {
+            System.err.println("Expected csv or json, got " + args[2]);
+            return 2;
+        }
+        File dir = new File(args[1]);
+        LibraryExporter.Result result = service.exportAll(dir, format, (table, rows) ->
+                System.out.println("  " + table + ": " + rows + " rows"));
+        System.out.println("Exported " + result.rows.keySet() + " to " + dir + " in " + result.millis + " ms");
+        return 0;
+    }
+
+    private static int backup(LibraryService service, String[] args) throws IOException, SQLException {
+        if (args.length < 2) {
+            System.err.println("Usage: --backup FILE");
+            return 2;
+        }
+        File target = new File(args[1]);
+        long millis = service.backup(target);
+        System.out.println("Backed up to " + target + " (" + target.length() + " bytes) in " + millis + " ms");
+        return 0;
+    }
+
+    private static int snapshotAvailability(LibraryService service) throws SQLException {
+        long start = System.currentTimeMillis();
+        CirculationJournal.Snapshot snapshot = service.snapshotAvailability();
+        System.out.println("Snapshot " + snapshot.snapshotId + " of " + snapshot.books + " books at event " +
+                           snapshot.eventId + " in " + (System.currentTimeMillis() - start) + " ms");
+        return 0;
+    }
+
+    // Exits with 1 when books disagree with the journal and were not
+    // corrected, so a cron job can alert on it
+    private static int replayJournal(LibraryService service, String[] args) throws SQLException {
+        boolean apply = args.length > 1 && args[1].equals("--apply");
+        if (args.length > 1 && !apply) {
+            System.err.println("Usage: --replay-journal [--apply]");
+            return 2;
+        }
+        CirculationJournal.Result result = service.replayJournal(apply);
+        System.out.println("Replayed " + result.events + " events after snapshot " + result.from.snapshotId +
+                           " (" + result.from.books + " books at event " + result.from.eventId + ") in " +
+                           result.millis + " ms");
+        for (long[] mismatch : result.mismatches) {
+            System.out.println("  book " + mismatch[0] + ": " + mismatch[1] + " available, journal says " +
+                               mismatch[2]);
+        }
+        if (result.mismatched > result.mismatches.size()) {
+            System.out.println("  ... and " + (result.mismatched - result.mismatches.size()) + " more");
+        }
+        System.out.println(result.mismatched + " books disagree with the journal" +
+                           (result.applied ? "; corrected" : ""));
+        return result.mismatched > 0 && !result.applied ? 1 : 0;
+    }
+
+    // The optional date after the command, or the fallback; null (after
+    // saying why) when it does not parse
+    private static LocalDate dateArg(String[] args, LocalDate fallback) {
+        if (args.length < 2) {
+            return fallback;
+        }
+        try {
+            return LocalDate.parse(args[1]);
+        } catch (DateTimeParseException e) {
+            System.err.println("Expected a date as YYYY-MM-DD, got " + args[1]);
+            return null;
+        }
+    }
+}
@@ -0,0 +1,236 @@
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.UncheckedIOException;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.ResultSetMetaData;
+import java.sql.SQLException;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+// Streams tables out of the database as CSV or JSON, and takes hot backups.
+//
+// An export reads each table in primary key order through one result set
+// and writes every row as soon as it is read, through a BUFFER_CHARS
+// buffer, so memory use is the same for a hundred rows or ten million.
+// All the tables of one export are read in a single read transaction on a
+// pool reader, so they agree with each other; in WAL mode the writer, and
+// with it issue and return, carries on meanwhile.
+//
+// A backup is VACUUM INTO a new file, also run on a reader: SQLite writes
+// a consistent, compacted copy of the database as of the start of the
+// statement without ever blocking the writer, which copying library.db
+// itself could not promise.
+public class LibraryExporter {
+    public enum Format {
+        CSV, JSON;
+
+        public String extension() {
+            return name().toLowerCase();
+        }
+    }
+
+    // What a full export writes, one file per table
+    public static final List<String> TABLES = Arrays.asList("books", "users", "issued_books", "issued_books_archive");
+
+    private static final int BUFFER_CHARS = 64 * 1024;
+    private static final Map<String, String> KEYS = new LinkedHashMap<>();
+    static {
+        KEYS.put("books", "book_id");
+        KEYS.put("users", "user_id");
+        KEYS.put("issued_books", "issue_id");
+        KEYS.put("issued_books_archive", "issue_id");
+    }
+
+    public interface Progress {
+        void update(String table, long rows);
+    }
+
+    public static class Result {
+        public final Map<String, Long> rows;
+        public final long millis;
+
+        Result(Map<String, Long> rows, long millis) {
+            this.rows = rows;
+            this.millis = millis;
+        }
+    }
+
+    private final ConnectionPool pool;
+
+    public LibraryExporter(ConnectionPool pool) {
+        this.pool = pool;
+    }
+
+    // Writes <table>.csv or <table>.json into the directory for every table
+    // in TABLES. Each file is written under a temporary name and moved into
+    // place once complete.
+    public Result exportAll(File dir, Format format, Progress progress) throws IOException, SQLException {
+        long start = System.currentTimeMillis();
+        Files.createDirectories(dir.toPath());
+        Map<String, Long> counts = new LinkedHashMap<>();
+        inTransaction(statements -> {
+            for (String table : TABLES) {
+                File file = new File(dir, table + "." + format.extension());
+                File temp = null;
+                try {
+                    temp = File.createTempFile(table, ".tmp", dir);
+                    try (OutputStream out = Files.newOutputStream(temp.toPath())) {
+                        counts.put(table, write(statements, table, format, out, progress));
+                    }
+                    Files.move(temp.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING,
+                               StandardCopyOption.ATOMIC_MOVE);
+                } catch (IOException e) {
+                    throw new UncheckedIOException(e);
+                } finally {
+                    if (temp != null) {
+                        temp.delete();
+                    }
+                }
+            }
+            return null;
+        });
+        return new Result(counts, System.currentTimeMillis() - start);
+    }
+
+    // Streams one table to the stream, which is flushed but left open;
+    // returns the rows written
+    public long export(String table, Format format, OutputStream out) throws IOException, SQLException {
+        return inTransaction(statements -> {
+            try {
+                return write(statements, table, format, out, null);
+            } catch (IOException e) {
+                throw new UncheckedIOException(e);
+            }
+        });
+    }
+
+    // Writes a consistent copy of the whole database to the file, which
+    // must not exist yet
+    public long backup(File target) throws IOException, SQLException {
+        if (target.exists()) {
+            throw new IOException(target + " already exists");
+        }
+        long start = System.currentTimeMillis();
+        File dir = target.getAbsoluteFile().getParentFile();
+        // VACUUM INTO accepts an existing file only if it is empty
+        File temp = File.createTempFile(target.getName(), ".tmp", dir);
+        try {
+            pool.read(statements -> {
+                PreparedStatement pstmt = statements.prepare("VACUUM INTO ?");
+                pstmt.setString(1, temp.getPath());
+                pstmt.execute();
+                return null;
+            });
+            Files.move(temp.toPath(), target.toPath(), StandardCopyOption.ATOMIC_MOVE);
+        } finally {
+            temp.delete();
+        }
+        return System.currentTimeMillis() - start;
+    }
+
+    public static boolean isExportable(String table) {
+        return KEYS.containsKey(table);
+    }
+
+    // Runs the work on a reader inside one read transaction, so every
+    // table it reads comes from the same snapshot
+    private <T> T inTransaction(ConnectionPool.Work<T> work) throws IOException, SQLException {
+        try {
+            return pool.read(statements -> {
+                statements.connection().setAutoCommit(false);
+                try {
+                    return work.run(statements);
+                } finally {
+                    statements.connection().rollback();
+                    statements.connection().setAutoCommit(true);
+                }
+            });
+        } catch (UncheckedIOException e) {
+            throw e.getCause();
+        }
+    }
+
+    private static long write(StatementCache statements, String table, Format format, OutputStream stream,
+                              Progress progress) throws IOException, SQLException {
+        if (!isExportable(table)) {
+            throw new IllegalArgumentException("Cannot export " + table);
+        }
+        Writer out = new BufferedWriter(new OutputStreamWriter(stream, StandardCharsets.UTF_8), BUFFER_CHARS);
+        PreparedStatement pstmt = statements.prepare("SELECT * FROM " + table + " ORDER BY " + KEYS.get(table));
+        long rows = 0;
+        try (ResultSet rs = statements.query(pstmt)) {
+            ResultSetMetaData meta = rs.getMetaData();
+            int columns = meta.getColumnCount();
+            String[] names = new String[columns];
+            for (int i = 0; i < columns; i++) {
+                names[i] = meta.getColumnLabel(i + 1);
+            }
+            if (format == Format.CSV) {
+                writeCsvRow(out, names);
+            } else {
+                out.write("[\n");
+            }
+            Object[] values = new Object[columns];
+            Map<String, Object> object = new LinkedHashMap<>();
+            while (rs.next()) {
+                for (int i = 0; i < columns; i++) {
+                    values[i] = rs.getObject(i + 1);
+                }
+                if (format == Format.CSV) {
+                    writeCsvRow(out, values);
+                } else {
+                    for (int i = 0; i < columns; i++) {
+                        object.put(names[i], values[i]);
+                    }
+                    out.write(rows == 0 ? "" : ",\n");
+                    out.write(Json.write(object));
+                }
+                rows++;
+                if (progress != null && rows % 100_000 == 0) {
+                    progress.update(table, rows);
+                }
+            }
+            if (format == Format.JSON) {
+                out.write(rows == 0 ? "]\n" : "\n]\n");
+            }
+        }
+        out.flush();
+        if (progress != null) {
+            progress.update(table, rows);
+        }
+        return rows;
+    }
+
+    // RFC 4180: fields with a comma, quote or line break are quoted, with
+    // quotes doubled; null is an empty field
+    private static void writeCsvRow(Writer out, Object[] values) throws IOException {
+        for (int i = 0; i < values.length; i++) {
+            if (i > 0) {
+                out.write(',');
+            }
+            if (values[i] == null) {
+                continue;
+            }
+            String text = values[i].toString();
+            if (text.indexOf(',') >= 0 || text.indexOf('"') >= 0 || text.indexOf('\n') >= 0
+                    || text.indexOf('\r') >= 0) {
+                out.write('"');
+                out.write(text.replace("\"", "\"\""));
+                out.write('"');
+            } else {
+                out.write(text);
+            }
+        }
+        out.write("\r\n");
+    }
+}
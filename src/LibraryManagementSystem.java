@@ -1,97 +1,220 @@
 import javax.swing.*;
-import javax.swing.table.DefaultTableModel;
+import javax.swing.event.DocumentEvent;
+import javax.swing.event.DocumentListener;
 import java.awt.*;
 import java.awt.event.*;
+import java.io.File;
 import java.sql.*;
 import java.time.LocalDate;
-import java.time.temporal.ChronoUnit;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
 
 public class LibraryManagementSystem extends JFrame {
-    private Connection conn;
+    static final String DATABASE_URL = "jdbc:sqlite:library.db";
+    private static final long LAUNCHED = System.nanoTime();
+    
+    private static final String[] TAB_TITLES = {"Books", "Users", "Issue/Return", "Reports", "Diagnostics"};
+    private static final String[] BOOK_COLUMNS = {"ID", "Title", "Author", "ISBN", "Total Copies", "Available"};
+    private static final String[] USER_COLUMNS = {"ID", "Name", "Email", "Phone"};
+    private static final String[] ISSUED_COLUMNS = {"Issue ID", "Book", "User", "Issue Date", "Due Date", "Accrued Fee"};
+    private static final int PREFETCH_DELAY_MS = 300;
+    
+    private LibraryService service;
+    private final DataExecutor data = new DataExecutor();
+    private final ChangeBus changes = new ChangeBus();
     private JTabbedPane tabbedPane;
+    private final boolean[] tabsBuilt = new boolean[TAB_TITLES.length];
+    private boolean painted;
     
     // Book Management Components
     private JTextField bookIdField, bookTitleField, bookAuthorField, bookIsbnField;
     private JSpinner bookCopiesSpinner;
     private JTable bookTable;
-    private DefaultTableModel bookTableModel;
+    private PagedTableModel bookTableModel;
+    private JTextField bookSearchField;
+    private RowListTableModel bookSearchModel;
+    private Timer bookSearchTimer;
     
     // User Management Components
     private JTextField userIdField, userNameField, userEmailField, userPhoneField;
     private JTable userTable;
-    private DefaultTableModel userTableModel;
+    private PagedTableModel userTableModel;
     
     // Issue/Return Components
-    private JComboBox<String> issueUserCombo, issueBookCombo;
+    private TypeAheadPicker issueUserPicker, issueBookPicker;
     private JTable issuedBooksTable;
-    private DefaultTableModel issuedBooksTableModel;
+    private PagedTableModel issuedBooksTableModel;
     
+    // The frame is shown before the database is open: the tabs start as
+    // placeholders, and each is built and loaded the first time it is
+    // selected once the database is ready (see showTab)
     public LibraryManagementSystem() {
-        setTitle("Library Management System");
+        String branch = System.getProperty("library.branch");
+        setTitle(branch == null ? "Library Management System" : "Library Management System - " + branch);
         setSize(1000, 700);
         setDefaultCloseOperation(JFrame.EXIT_ON_CLOSE);
         setLocationRelativeTo(null);
         
-        initDatabase();
+        createTableModels();
         initUI();
-        loadData();
+        initDatabase();
     }
     
+    // Opening the database can mean a schema migration, so it happens on the
+    // data thread while the empty window paints
     private void initDatabase() {
-        try {
-            conn = DriverManager.getConnection("jdbc:sqlite:library.db");
-            createTables();
-        } catch (SQLException e) {
+        SqliteProfile profile = SqliteProfile.fromSystemProperties();
+        data.submit(() -> LibraryService.open(BranchLibrary.localDatabaseUrl(), profile, changes), opened -> {
+            service = opened;
+            logStartup("database open");
+            warmAvailability();
+            showTab(tabbedPane.getSelectedIndex());
+            checkQueryPlans();
+            
+            if (profile.usesWal() && profile.checkpointSeconds > 0) {
+                Timer checkpointTimer = new Timer(profile.checkpointSeconds * 1000, e ->
+                        data.submit("checkpoint", () -> {
+                            service.checkpoint();
+                            return null;
+                        }, null, Exception::printStackTrace));
+                checkpointTimer.start();
+            }
+        }, e -> {
             e.printStackTrace();
             JOptionPane.showMessageDialog(this, "Database connection failed!");
+        });
+    }
+    
+    @Override
+    public void paint(Graphics g) {
+        super.paint(g);
+        if (!painted) {
+            painted = true;
+            logStartup("first paint");
         }
     }
     
-    private void createTables() throws SQLException {
-        Statement stmt = conn.createStatement();
-        
-        // Books table
-        stmt.execute("CREATE TABLE IF NOT EXISTS books (" +
-                    "book_id INTEGER PRIMARY KEY AUTOINCREMENT," +
-                    "title TEXT NOT NULL," +
-                    "author TEXT NOT NULL," +
-                    "isbn TEXT UNIQUE," +
-                    "total_copies INTEGER DEFAULT 1," +
-                    "available_copies INTEGER DEFAULT 1)");
-        
-        // Users table
-        stmt.execute("CREATE TABLE IF NOT EXISTS users (" +
-                    "user_id INTEGER PRIMARY KEY AUTOINCREMENT," +
-                    "name TEXT NOT NULL," +
-                    "email TEXT UNIQUE," +
-                    "phone TEXT)");
-        
-        // Issued books table
-        stmt.execute("CREATE TABLE IF NOT EXISTS issued_books (" +
-                    "issue_id INTEGER PRIMARY KEY AUTOINCREMENT," +
-                    "book_id INTEGER," +
-                    "user_id INTEGER," +
-                    "issue_date DATE," +
-                    "due_date DATE," +
-                    "return_date DATE," +
-                    "late_fee REAL DEFAULT 0," +
-                    "FOREIGN KEY(book_id) REFERENCES books(book_id)," +
-                    "FOREIGN KEY(user_id) REFERENCES users(user_id))");
-        
-        stmt.close();
+    // Startup milestones, timed from the start of main()
+    private static void logStartup(String milestone) {
+        System.out.printf("Startup: %s after %d ms%n", milestone,
+                          (System.nanoTime() - LAUNCHED) / 1_000_000);
+    }
+    
+    // Warns on stderr when any query on a hot path would fall back to a full scan
+    private void checkQueryPlans() {
+        QueryPlanCheck check = new QueryPlanCheck()
+                .add("books page", bookTableModel.pageQuery())
+                .add("users page", userTableModel.pageQuery())
+                .add("issued books page", issuedBooksTableModel.pageQuery())
+                .add("issue book", LibraryService.TAKE_COPY_SQL)
+                .add("return book", LibraryService.RETURN_LOAN_SQL)
+                .add("open loans page", LibraryService.OPEN_LOANS_SQL)
+                .add("member picker", UserSearch.BY_NAME_SQL)
+                .add("overdue engine chunk", OverdueEngine.OVERDUE_CHUNK_SQL)
+                .add("archive batch", ArchiveEngine.ARCHIVE_BATCH_END_SQL)
+                .add("next hold", HoldQueue.NEXT_HOLD_SQL)
+                .add("ready hold", HoldQueue.READY_HOLD_SQL)
+                .add("expiring holds", HoldQueue.EXPIRING_SQL)
+                .add("hold queue", HoldQueue.QUEUE_SQL)
+                .add("popular titles", CirculationStats.POPULAR_TITLES_SQL)
+                .add("member borrowing", CirculationStats.MEMBER_BORROWING_SQL)
+                .add("daily circulation", CirculationStats.DAILY_SQL)
+                .add("member loan history", LibraryService.historyQuery("user_id"))
+                .add("book loan history", LibraryService.historyQuery("book_id"));
+        data.submit(() -> {
+            service.checkQueryPlans(check);
+            return null;
+        }, null, Exception::printStackTrace);
     }
     
     private void initUI() {
         tabbedPane = new JTabbedPane();
         
         // Add tabs
-        tabbedPane.addTab("Books", createBookPanel());
-        tabbedPane.addTab("Users", createUserPanel());
-        tabbedPane.addTab("Issue/Return", createIssueReturnPanel());
+        for (String title : TAB_TITLES) {
+            JPanel placeholder = new JPanel(new GridBagLayout());
+            placeholder.add(new JLabel("Loading..."));
+            tabbedPane.addTab(title, placeholder);
+        }
+        tabbedPane.addChangeListener(e -> showTab(tabbedPane.getSelectedIndex()));
         
         add(tabbedPane);
     }
     
+    // The table models hold no rows until their tab loads them, so they are
+    // cheap to create up front, where the query plan check can see them
+    private void createTableModels() {
+        bookTableModel = new PagedTableModel("books", BOOK_COLUMNS,
+                "book_id, title, author, isbn, total_copies, available_copies",
+                "books", "book_id", data, this::tableReader);
+        userTableModel = new PagedTableModel("users", USER_COLUMNS,
+                "user_id, name, email, phone", "users", "user_id", data, this::tableReader);
+        // Open loans only: returned loans are reached through a member's
+        // Loan History on the Users tab
+        issuedBooksTableModel = new PagedTableModel("issued", ISSUED_COLUMNS,
+                "ib.issue_id, b.title, u.name, ib.issue_date, ib.due_date, " +
+                // The fine accrued at the last overdue run
+                "COALESCE((SELECT fs.fee_paise / 100.0 FROM fee_snapshots fs " +
+                "WHERE fs.issue_id = ib.issue_id ORDER BY fs.as_of DESC LIMIT 1), 0)",
+                "issued_books ib " +
+                "JOIN books b ON ib.book_id = b.book_id " +
+                "JOIN users u ON ib.user_id = u.user_id",
+                "ib.return_date IS NULL",
+                "ib.issue_id", data, this::tableReader);
+    }
+    
+    // Builds the tab the first time it is selected, then prefetches the tab
+    // to its right a moment later, once this one has painted and its first
+    // page is queued
+    private void showTab(int index) {
+        if (service == null || index < 0) {
+            return;
+        }
+        buildTab(index);
+        int next = index + 1;
+        if (next < TAB_TITLES.length && !tabsBuilt[next]) {
+            Timer prefetch = new Timer(PREFETCH_DELAY_MS, e -> buildTab(next));
+            prefetch.setRepeats(false);
+            prefetch.start();
+        }
+    }
+    
+    private void buildTab(int index) {
+        if (tabsBuilt[index]) {
+            return;
+        }
+        tabsBuilt[index] = true;
+        JPanel panel;
+        switch (index) {
+            case 0:
+                panel = createBookPanel();
+                changes.subscribe("books", bookTableModel);
+                loadBooks();
+                break;
+            case 1:
+                panel = createUserPanel();
+                changes.subscribe("users", userTableModel);
+                loadUsers();
+                break;
+            case 2:
+                panel = createIssueReturnPanel();
+                changes.subscribe("issued_books", issuedBooksTableModel);
+                loadIssuedBooks();
+                break;
+            case 3:
+                panel = new ReportsPanel(service, data);
+                break;
+            default:
+                panel = new DiagnosticsPanel(Metrics.global());
+                break;
+        }
+        tabbedPane.setComponentAt(index, panel);
+        logStartup(TAB_TITLES[index] + " tab built");
+    }
+    
     private JPanel createBookPanel() {
         JPanel panel = new JPanel(new BorderLayout(10, 10));
         panel.setBorder(BorderFactory.createEmptyBorder(10, 10, 10, 10));
@@ -127,28 +250,27 @@ public class LibraryManagementSystem extends JFrame {
         JButton updateBtn = new JButton("Update Book");
         JButton deleteBtn = new JButton("Delete Book");
         JButton clearBtn = new JButton("Clear");
+        JButton importBtn = new JButton("Import...");
+        JButton holdsBtn = new JButton("Holds...");
         
         addBtn.addActionListener(e -> addBook());
         updateBtn.addActionListener(e -> updateBook());
         deleteBtn.addActionListener(e -> deleteBook());
         clearBtn.addActionListener(e -> clearBookFields());
+        importBtn.addActionListener(e -> importFile(true));
+        holdsBtn.addActionListener(e -> showBookHolds());
         
         buttonPanel.add(addBtn);
         buttonPanel.add(updateBtn);
         buttonPanel.add(deleteBtn);
         buttonPanel.add(clearBtn);
+        buttonPanel.add(importBtn);
+        buttonPanel.add(holdsBtn);
         formPanel.add(buttonPanel);
         
         panel.add(formPanel, BorderLayout.NORTH);
         
         // Table
-        String[] columns = {"ID", "Title", "Author", "ISBN", "Total Copies", "Available"};
-        bookTableModel = new DefaultTableModel(columns, 0) {
-            @Override
-            public boolean isCellEditable(int row, int column) {
-                return false;
-            }
-        };
         bookTable = new JTable(bookTableModel);
         bookTable.addMouseListener(new MouseAdapter() {
             public void mouseClicked(MouseEvent e) {
@@ -157,8 +279,40 @@ public class LibraryManagementSystem extends JFrame {
             }
         });
         
+        // Search as you type: results replace the full catalog in the table
+        // until the box is cleared
+        bookSearchModel = new RowListTableModel(BOOK_COLUMNS);
+        bookSearchField = new JTextField();
+        bookSearchTimer = new Timer(150, e -> searchBooks());
+        bookSearchTimer.setRepeats(false);
+        bookSearchField.getDocument().addDocumentListener(new DocumentListener() {
+            public void insertUpdate(DocumentEvent e) {
+                bookSearchTimer.restart();
+            }
+            
+            public void removeUpdate(DocumentEvent e) {
+                bookSearchTimer.restart();
+            }
+            
+            public void changedUpdate(DocumentEvent e) {
+                bookSearchTimer.restart();
+            }
+        });
+        changes.subscribe("books", (kind, keys) -> {
+            if (bookTable.getModel() == bookSearchModel) {
+                searchBooks();
+            }
+        });
+        
+        JPanel tablePanel = new JPanel(new BorderLayout(5, 5));
+        JPanel searchPanel = new JPanel(new BorderLayout(5, 5));
+        searchPanel.add(new JLabel("Search:"), BorderLayout.WEST);
+        searchPanel.add(bookSearchField, BorderLayout.CENTER);
+        tablePanel.add(searchPanel, BorderLayout.NORTH);
+        
         JScrollPane scrollPane = new JScrollPane(bookTable);
-        panel.add(scrollPane, BorderLayout.CENTER);
+        tablePanel.add(scrollPane, BorderLayout.CENTER);
+        panel.add(tablePanel, BorderLayout.CENTER);
         
         return panel;
     }
@@ -194,28 +348,27 @@ public class LibraryManagementSystem extends JFrame {
         JButton updateBtn = new JButton("Update User");
         JButton deleteBtn = new JButton("Delete User");
         JButton clearBtn = new JButton("Clear");
+        JButton importBtn = new JButton("Import...");
+        JButton historyBtn = new JButton("Loan History");
         
         addBtn.addActionListener(e -> addUser());
         updateBtn.addActionListener(e -> updateUser());
         deleteBtn.addActionListener(e -> deleteUser());
         clearBtn.addActionListener(e -> clearUserFields());
+        importBtn.addActionListener(e -> importFile(false));
+        historyBtn.addActionListener(e -> showUserHistory());
         
         buttonPanel.add(addBtn);
         buttonPanel.add(updateBtn);
         buttonPanel.add(deleteBtn);
         buttonPanel.add(clearBtn);
+        buttonPanel.add(importBtn);
+        buttonPanel.add(historyBtn);
         formPanel.add(buttonPanel);
         
         panel.add(formPanel, BorderLayout.NORTH);
         
         // Table
-        String[] columns = {"ID", "Name", "Email", "Phone"};
-        userTableModel = new DefaultTableModel(columns, 0) {
-            @Override
-            public boolean isCellEditable(int row, int column) {
-                return false;
-            }
-        };
         userTable = new JTable(userTableModel);
         userTable.addMouseListener(new MouseAdapter() {
             public void mouseClicked(MouseEvent e) {
@@ -235,16 +388,18 @@ public class LibraryManagementSystem extends JFrame {
         panel.setBorder(BorderFactory.createEmptyBorder(10, 10, 10, 10));
         
         // Issue form
-        JPanel issuePanel = new JPanel(new GridLayout(3, 2, 10, 10));
+        JPanel issuePanel = new JPanel(new GridLayout(4, 2, 10, 10));
         issuePanel.setBorder(BorderFactory.createTitledBorder("Issue Book"));
         
         issuePanel.add(new JLabel("Select User:"));
-        issueUserCombo = new JComboBox<>();
-        issuePanel.add(issueUserCombo);
+        issueUserPicker = new TypeAheadPicker(data, "user-picker",
+                service::userPicks);
+        issuePanel.add(issueUserPicker);
         
         issuePanel.add(new JLabel("Select Book:"));
-        issueBookCombo = new JComboBox<>();
-        issuePanel.add(issueBookCombo);
+        issueBookPicker = new TypeAheadPicker(data, "book-picker",
+                service::bookPicks);
+        issuePanel.add(issueBookPicker);
         
         JButton issueBtn = new JButton("Issue Book");
         JButton returnBtn = new JButton("Return Selected Book");
@@ -254,16 +409,17 @@ public class LibraryManagementSystem extends JFrame {
         issuePanel.add(issueBtn);
         issuePanel.add(returnBtn);
         
+        JButton overdueBtn = new JButton("Compute Overdue Fees");
+        overdueBtn.addActionListener(e -> runOverdue());
+        issuePanel.add(overdueBtn);
+        
+        JButton archiveBtn = new JButton("Archive Old Loans");
+        archiveBtn.addActionListener(e -> archiveLoans());
+        issuePanel.add(archiveBtn);
+        
         panel.add(issuePanel, BorderLayout.NORTH);
         
         // Issued books table
-        String[] columns = {"Issue ID", "Book", "User", "Issue Date", "Due Date", "Return Date", "Late Fee"};
-        issuedBooksTableModel = new DefaultTableModel(columns, 0) {
-            @Override
-            public boolean isCellEditable(int row, int column) {
-                return false;
-            }
-        };
         issuedBooksTable = new JTable(issuedBooksTableModel);
         
         JScrollPane scrollPane = new JScrollPane(issuedBooksTable);
@@ -273,157 +429,170 @@ public class LibraryManagementSystem extends JFrame {
     }
     
     private void addBook() {
-        try {
-            String sql = "INSERT INTO books (title, author, isbn, total_copies, available_copies) VALUES (?, ?, ?, ?, ?)";
-            PreparedStatement pstmt = conn.prepareStatement(sql);
-            pstmt.setString(1, bookTitleField.getText());
-            pstmt.setString(2, bookAuthorField.getText());
-            pstmt.setString(3, bookIsbnField.getText());
-            int copies = (int) bookCopiesSpinner.getValue();
-            pstmt.setInt(4, copies);
-            pstmt.setInt(5, copies);
-            
-            pstmt.executeUpdate();
+        String title = bookTitleField.getText();
+        String author = bookAuthorField.getText();
+        String isbn = bookIsbnField.getText();
+        int copies = (int) bookCopiesSpinner.getValue();
+        
+        data.submit(() -> service.addBook(title, author, isbn, copies), result -> {
             JOptionPane.showMessageDialog(this, "Book added successfully!");
-            loadBooks();
             clearBookFields();
-        } catch (SQLException e) {
-            JOptionPane.showMessageDialog(this, "Error: " + e.getMessage());
-        }
+        }, this::showError);
     }
     
     private void updateBook() {
+        String title = bookTitleField.getText();
+        String author = bookAuthorField.getText();
+        String isbn = bookIsbnField.getText();
+        int copies = (int) bookCopiesSpinner.getValue();
+        int bookId;
         try {
-            String sql = "UPDATE books SET title=?, author=?, isbn=?, total_copies=? WHERE book_id=?";
-            PreparedStatement pstmt = conn.prepareStatement(sql);
-            pstmt.setString(1, bookTitleField.getText());
-            pstmt.setString(2, bookAuthorField.getText());
-            pstmt.setString(3, bookIsbnField.getText());
-            pstmt.setInt(4, (int) bookCopiesSpinner.getValue());
-            pstmt.setInt(5, Integer.parseInt(bookIdField.getText()));
-            
-            pstmt.executeUpdate();
+            bookId = Integer.parseInt(bookIdField.getText());
+        } catch (NumberFormatException e) {
+            showError(e);
+            return;
+        }
+        
+        data.submit(() -> service.updateBook(bookId, title, author, isbn, copies), updated -> {
+            if (!updated) {
+                JOptionPane.showMessageDialog(this, "No such book!");
+                return;
+            }
             JOptionPane.showMessageDialog(this, "Book updated successfully!");
-            loadBooks();
             clearBookFields();
-        } catch (SQLException | NumberFormatException e) {
-            JOptionPane.showMessageDialog(this, "Error: " + e.getMessage());
-        }
+        }, this::showError);
     }
     
     private void deleteBook() {
+        int bookId;
         try {
-            int bookId = Integer.parseInt(bookIdField.getText());
-            String sql = "DELETE FROM books WHERE book_id=?";
-            PreparedStatement pstmt = conn.prepareStatement(sql);
-            pstmt.setInt(1, bookId);
-            pstmt.executeUpdate();
-            
+            bookId = Integer.parseInt(bookIdField.getText());
+        } catch (NumberFormatException e) {
+            showError(e);
+            return;
+        }
+        
+        data.submit(() -> service.deleteBook(bookId), deleted -> {
+            if (!deleted) {
+                JOptionPane.showMessageDialog(this, "No such book!");
+                return;
+            }
             JOptionPane.showMessageDialog(this, "Book deleted successfully!");
-            loadBooks();
             clearBookFields();
-        } catch (SQLException | NumberFormatException e) {
-            JOptionPane.showMessageDialog(this, "Error: " + e.getMessage());
-        }
+        }, this::showError);
     }
     
     private void addUser() {
-        try {
-            String sql = "INSERT INTO users (name, email, phone) VALUES (?, ?, ?)";
-            PreparedStatement pstmt = conn.prepareStatement(sql);
-            pstmt.setString(1, userNameField.getText());
-            pstmt.setString(2, userEmailField.getText());
-            pstmt.setString(3, userPhoneField.getText());
-            
-            pstmt.executeUpdate();
+        String name = userNameField.getText();
+        String email = userEmailField.getText();
+        String phone = userPhoneField.getText();
+        
+        data.submit(() -> service.addUser(name, email, phone), result -> {
             JOptionPane.showMessageDialog(this, "User added successfully!");
-            loadUsers();
             clearUserFields();
-        } catch (SQLException e) {
-            JOptionPane.showMessageDialog(this, "Error: " + e.getMessage());
-        }
+        }, this::showError);
     }
     
     private void updateUser() {
+        String name = userNameField.getText();
+        String email = userEmailField.getText();
+        String phone = userPhoneField.getText();
+        int userId;
         try {
-            String sql = "UPDATE users SET name=?, email=?, phone=? WHERE user_id=?";
-            PreparedStatement pstmt = conn.prepareStatement(sql);
-            pstmt.setString(1, userNameField.getText());
-            pstmt.setString(2, userEmailField.getText());
-            pstmt.setString(3, userPhoneField.getText());
-            pstmt.setInt(4, Integer.parseInt(userIdField.getText()));
-            
-            pstmt.executeUpdate();
+            userId = Integer.parseInt(userIdField.getText());
+        } catch (NumberFormatException e) {
+            showError(e);
+            return;
+        }
+        
+        data.submit(() -> service.updateUser(userId, name, email, phone), updated -> {
+            if (!updated) {
+                JOptionPane.showMessageDialog(this, "No such user!");
+                return;
+            }
             JOptionPane.showMessageDialog(this, "User updated successfully!");
-            loadUsers();
             clearUserFields();
-        } catch (SQLException | NumberFormatException e) {
-            JOptionPane.showMessageDialog(this, "Error: " + e.getMessage());
-        }
+        }, this::showError);
     }
     
     private void deleteUser() {
+        int userId;
         try {
-            int userId = Integer.parseInt(userIdField.getText());
-            String sql = "DELETE FROM users WHERE user_id=?";
-            PreparedStatement pstmt = conn.prepareStatement(sql);
-            pstmt.setInt(1, userId);
-            pstmt.executeUpdate();
-            
+            userId = Integer.parseInt(userIdField.getText());
+        } catch (NumberFormatException e) {
+            showError(e);
+            return;
+        }
+        
+        data.submit(() -> service.deleteUser(userId), deleted -> {
+            if (!deleted) {
+                JOptionPane.showMessageDialog(this, "No such user!");
+                return;
+            }
             JOptionPane.showMessageDialog(this, "User deleted successfully!");
-            loadUsers();
             clearUserFields();
-        } catch (SQLException | NumberFormatException e) {
-            JOptionPane.showMessageDialog(this, "Error: " + e.getMessage());
-        }
+        }, this::showError);
     }
     
-    private void issueBook() {
-        try {
-            String userStr = (String) issueUserCombo.getSelectedItem();
-            String bookStr = (String) issueBookCombo.getSelectedItem();
-            
-            if (userStr == null || bookStr == null) {
-                JOptionPane.showMessageDialog(this, "Please select user and book!");
-                return;
+    // Bulk load from a CSV (or MARC-lite for books) file; existing ISBNs and
+    // emails are updated in place
+    private void importFile(boolean books) {
+        JFileChooser chooser = new JFileChooser();
+        if (chooser.showOpenDialog(this) != JFileChooser.APPROVE_OPTION) {
+            return;
+        }
+        File file = chooser.getSelectedFile();
+        ProgressMonitor monitor = new ProgressMonitor(this, "Importing " + file.getName(), "", 0,
+                (int) Math.max(1, file.length() / 1024));
+        CatalogImporter.Progress progress = (rows, bytesRead) -> {
+            SwingUtilities.invokeLater(() -> {
+                monitor.setNote(rows + " rows imported");
+                monitor.setProgress((int) (bytesRead / 1024));
+            });
+            return !monitor.isCanceled();
+        };
+        
+        data.submit(() -> books ? service.importBooks(file, progress) : service.importUsers(file, progress), result -> {
+            monitor.close();
+            String msg = (result.cancelled ? "Import cancelled after " : "Imported ") + result.rows +
+                        " rows (" + result.rowsPerSecond() + " rows/sec)";
+            if (result.skipped > 0) {
+                msg += "\nSkipped " + result.skipped + " incomplete rows";
             }
-            
-            int userId = Integer.parseInt(userStr.split(":")[0]);
-            int bookId = Integer.parseInt(bookStr.split(":")[0]);
-            
-            // Check availability
-            String checkSql = "SELECT available_copies FROM books WHERE book_id=?";
-            PreparedStatement checkStmt = conn.prepareStatement(checkSql);
-            checkStmt.setInt(1, bookId);
-            ResultSet rs = checkStmt.executeQuery();
-            
-            if (rs.next() && rs.getInt("available_copies") > 0) {
-                LocalDate issueDate = LocalDate.now();
-                LocalDate dueDate = issueDate.plusDays(14);
-                
-                String sql = "INSERT INTO issued_books (book_id, user_id, issue_date, due_date) VALUES (?, ?, ?, ?)";
-                PreparedStatement pstmt = conn.prepareStatement(sql);
-                pstmt.setInt(1, bookId);
-                pstmt.setInt(2, userId);
-                pstmt.setString(3, issueDate.toString());
-                pstmt.setString(4, dueDate.toString());
-                pstmt.executeUpdate();
-                
-                // Update available copies
-                String updateSql = "UPDATE books SET available_copies = available_copies - 1 WHERE book_id=?";
-                PreparedStatement updateStmt = conn.prepareStatement(updateSql);
-                updateStmt.setInt(1, bookId);
-                updateStmt.executeUpdate();
-                
-                JOptionPane.showMessageDialog(this, "Book issued successfully! Due date: " + dueDate);
-                loadIssuedBooks();
+            JOptionPane.showMessageDialog(this, msg);
+            if (books) {
                 loadBooks();
             } else {
-                JOptionPane.showMessageDialog(this, "Book not available!");
+                loadUsers();
             }
-        } catch (SQLException e) {
-            JOptionPane.showMessageDialog(this, "Error: " + e.getMessage());
+        }, e -> {
+            monitor.close();
+            showError(e);
+        });
+    }
+    
+    private void issueBook() {
+        PickerItem user = issueUserPicker.getSelectedItem();
+        PickerItem book = issueBookPicker.getSelectedItem();
+        
+        if (user == null || book == null) {
+            JOptionPane.showMessageDialog(this, "Please select user and book!");
+            return;
         }
+        
+        int userId = user.id;
+        int bookId = book.id;
+        
+        data.submit(() -> service.issueBook(userId, bookId), loan -> {
+            if (loan == null) {
+                JOptionPane.showMessageDialog(this, "Book not available!\n" +
+                        "Use Holds... on the Books tab to put the member in the queue.");
+                return;
+            }
+            JOptionPane.showMessageDialog(this, "Book issued successfully! Due date: " + loan.dueDate +
+                    (loan.holdId != 0 ? "\nHold " + loan.holdId + " collected" : ""));
+            issueBookPicker.clearSelection();
+        }, this::showError);
     }
     
     private void returnBook() {
@@ -433,158 +602,259 @@ public class LibraryManagementSystem extends JFrame {
             return;
         }
         
-        try {
-            int issueId = (int) issuedBooksTableModel.getValueAt(row, 0);
-            String dueDateStr = (String) issuedBooksTableModel.getValueAt(row, 4);
-            LocalDate dueDate = LocalDate.parse(dueDateStr);
-            LocalDate returnDate = LocalDate.now();
-            
-            // Calculate late fee (Rs. 5 per day)
-            long daysLate = ChronoUnit.DAYS.between(dueDate, returnDate);
-            double lateFee = daysLate > 0 ? daysLate * 5.0 : 0;
-            
-            String sql = "UPDATE issued_books SET return_date=?, late_fee=? WHERE issue_id=?";
-            PreparedStatement pstmt = conn.prepareStatement(sql);
-            pstmt.setString(1, returnDate.toString());
-            pstmt.setDouble(2, lateFee);
-            pstmt.setInt(3, issueId);
-            pstmt.executeUpdate();
-            
-            // Get book_id
-            String getBookSql = "SELECT book_id FROM issued_books WHERE issue_id=?";
-            PreparedStatement getStmt = conn.prepareStatement(getBookSql);
-            getStmt.setInt(1, issueId);
-            ResultSet rs = getStmt.executeQuery();
-            int bookId = rs.getInt("book_id");
-            
-            // Update available copies
-            String updateSql = "UPDATE books SET available_copies = available_copies + 1 WHERE book_id=?";
-            PreparedStatement updateStmt = conn.prepareStatement(updateSql);
-            updateStmt.setInt(1, bookId);
-            updateStmt.executeUpdate();
-            
+        Object[] loan = issuedBooksTableModel.getRow(row);
+        if (loan == null) {
+            return;
+        }
+        int issueId = ((Number) loan[0]).intValue();
+        
+        data.submit(() -> service.returnBook(issueId), result -> {
+            if (result == null) {
+                JOptionPane.showMessageDialog(this, "This book has already been returned");
+                return;
+            }
             String msg = "Book returned successfully!";
-            if (lateFee > 0) {
-                msg += "\nLate fee: Rs. " + lateFee;
+            if (result.lateFeePaise > 0) {
+                msg += "\nLate fee: Rs. " + FeePolicy.rupees(result.lateFeePaise);
+            }
+            if (result.hold != null) {
+                msg += "\nPut this copy on the hold shelf for " + result.hold.name +
+                       " (hold " + result.hold.holdId + ", collect by " + result.hold.expiresOn + ")";
             }
             JOptionPane.showMessageDialog(this, msg);
-            
-            loadIssuedBooks();
-            loadBooks();
+        }, this::showError);
+    }
+    
+    // The paged table models only ever query from the data thread, so they
+    // share one read-only connection kept aside for them
+    private StatementCache tableReader() {
+        try {
+            return service.pinnedReader();
         } catch (SQLException e) {
-            JOptionPane.showMessageDialog(this, "Error: " + e.getMessage());
+            throw new IllegalStateException(e);
         }
     }
     
-    private void loadData() {
-        loadBooks();
-        loadUsers();
-        loadIssuedBooks();
-        loadComboBoxes();
+    // Records today's accrued fines on every overdue open loan
+    private void runOverdue() {
+        ProgressMonitor monitor = new ProgressMonitor(this, "Computing overdue fees", "", 0, 1);
+        OverdueEngine.Progress progress = (loans, totalPaise) -> {
+            SwingUtilities.invokeLater(() -> monitor.setNote(loans + " loans, Rs. " + FeePolicy.rupees(totalPaise)));
+            return !monitor.isCanceled();
+        };
+        
+        data.submit(() -> service.runOverdue(LocalDate.now(), progress), result -> {
+            monitor.close();
+            JOptionPane.showMessageDialog(this, (result.cancelled ? "Stopped after " : "") + result.loans +
+                    " overdue loans, Rs. " + FeePolicy.rupees(result.totalPaise) + " accrued as of " + result.asOf);
+            loadIssuedBooks();
+        }, e -> {
+            monitor.close();
+            showError(e);
+        });
     }
     
-    private void loadBooks() {
-        bookTableModel.setRowCount(0);
-        try {
-            Statement stmt = conn.createStatement();
-            ResultSet rs = stmt.executeQuery("SELECT * FROM books");
-            
-            while (rs.next()) {
-                Object[] row = {
-                    rs.getInt("book_id"),
-                    rs.getString("title"),
-                    rs.getString("author"),
-                    rs.getString("isbn"),
-                    rs.getInt("total_copies"),
-                    rs.getInt("available_copies")
-                };
-                bookTableModel.addRow(row);
-            }
-        } catch (SQLException e) {
-            e.printStackTrace();
+    // Moves loans returned before the archive horizon out of the live table
+    private void archiveLoans() {
+        LocalDate cutoff = ArchiveEngine.defaultCutoff();
+        int choice = JOptionPane.showConfirmDialog(this, "Archive loans returned before " + cutoff + "?",
+                "Archive Old Loans", JOptionPane.OK_CANCEL_OPTION);
+        if (choice != JOptionPane.OK_OPTION) {
+            return;
         }
+        ProgressMonitor monitor = new ProgressMonitor(this, "Archiving loans returned before " + cutoff, "", 0, 1);
+        ArchiveEngine.Progress progress = archived -> {
+            SwingUtilities.invokeLater(() -> monitor.setNote(archived + " loans archived"));
+            return !monitor.isCanceled();
+        };
+        
+        data.submit(() -> service.archiveLoans(cutoff, progress), result -> {
+            monitor.close();
+            JOptionPane.showMessageDialog(this, (result.cancelled ? "Stopped after archiving " : "Archived ") +
+                    result.archived + " loans returned before " + result.cutoff);
+        }, e -> {
+            monitor.close();
+            showError(e);
+        });
     }
     
-    private void loadUsers() {
-        userTableModel.setRowCount(0);
+    // The selected member's most recent loans, archived ones included
+    private void showUserHistory() {
+        int userId;
         try {
-            Statement stmt = conn.createStatement();
-            ResultSet rs = stmt.executeQuery("SELECT * FROM users");
-            
-            while (rs.next()) {
-                Object[] row = {
-                    rs.getInt("user_id"),
-                    rs.getString("name"),
-                    rs.getString("email"),
-                    rs.getString("phone")
-                };
-                userTableModel.addRow(row);
-            }
-        } catch (SQLException e) {
-            e.printStackTrace();
+            userId = Integer.parseInt(userIdField.getText());
+        } catch (NumberFormatException e) {
+            JOptionPane.showMessageDialog(this, "Please select a user!");
+            return;
         }
+        String name = userNameField.getText();
+        
+        data.submit(() -> service.userHistory(userId, Long.MAX_VALUE, 500), loans -> {
+            String[] columns = {"Issue ID", "Book", "Issue Date", "Due Date", "Return Date", "Late Fee", "Archived"};
+            List<Object[]> rows = new ArrayList<>();
+            for (Map<String, Object> loan : loans) {
+                rows.add(new Object[] {loan.get("issue_id"), loan.get("title"), loan.get("issue_date"),
+                                       loan.get("due_date"), loan.get("return_date"),
+                                       FeePolicy.rupees(((Number) loan.get("late_fee_paise")).longValue()),
+                                       ((Number) loan.get("archived")).intValue() == 1 ? "Yes" : ""});
+            }
+            RowListTableModel model = new RowListTableModel(columns);
+            model.setRows(rows);
+            JScrollPane scrollPane = new JScrollPane(new JTable(model));
+            scrollPane.setPreferredSize(new Dimension(800, 400));
+            JOptionPane.showMessageDialog(this, scrollPane, "Loan History: " + name, JOptionPane.PLAIN_MESSAGE);
+        }, this::showError);
     }
     
-    private void loadIssuedBooks() {
-        issuedBooksTableModel.setRowCount(0);
+    // The selected book's hold queue. From here a member can be queued, a
+    // ready hold issued to its member (the copy kept for them is not on the
+    // shelf, so the Issue/Return picker does not offer it), or a hold
+    // cancelled.
+    private void showBookHolds() {
+        int bookId;
         try {
-            String sql = "SELECT ib.issue_id, b.title, u.name, ib.issue_date, ib.due_date, " +
-                        "ib.return_date, ib.late_fee FROM issued_books ib " +
-                        "JOIN books b ON ib.book_id = b.book_id " +
-                        "JOIN users u ON ib.user_id = u.user_id";
-            Statement stmt = conn.createStatement();
-            ResultSet rs = stmt.executeQuery(sql);
+            bookId = Integer.parseInt(bookIdField.getText());
+        } catch (NumberFormatException e) {
+            JOptionPane.showMessageDialog(this, "Please select a book!");
+            return;
+        }
+        String title = bookTitleField.getText();
+        
+        data.submit(() -> service.bookHolds(bookId), holds -> {
+            String[] columns = {"Hold ID", "Member ID", "Member", "Status", "Placed", "Collect By"};
+            List<Object[]> rows = new ArrayList<>();
+            for (Map<String, Object> hold : holds) {
+                rows.add(new Object[] {hold.get("hold_id"), hold.get("user_id"), hold.get("name"),
+                                       hold.get("status"), hold.get("placed_at"), hold.get("expires_on")});
+            }
+            RowListTableModel model = new RowListTableModel(columns);
+            model.setRows(rows);
+            JTable holdsTable = new JTable(model);
+            JScrollPane scrollPane = new JScrollPane(holdsTable);
+            scrollPane.setPreferredSize(new Dimension(700, 300));
             
-            while (rs.next()) {
-                Object[] row = {
-                    rs.getInt("issue_id"),
-                    rs.getString("title"),
-                    rs.getString("name"),
-                    rs.getString("issue_date"),
-                    rs.getString("due_date"),
-                    rs.getString("return_date"),
-                    rs.getDouble("late_fee")
-                };
-                issuedBooksTableModel.addRow(row);
+            JPanel memberPanel = new JPanel(new BorderLayout(10, 10));
+            memberPanel.add(new JLabel("Member to queue:"), BorderLayout.WEST);
+            TypeAheadPicker memberPicker = new TypeAheadPicker(data, "hold-member-picker", service::userPicks);
+            memberPanel.add(memberPicker, BorderLayout.CENTER);
+            
+            JPanel holdsPanel = new JPanel(new BorderLayout(10, 10));
+            holdsPanel.add(scrollPane, BorderLayout.CENTER);
+            holdsPanel.add(memberPanel, BorderLayout.SOUTH);
+            
+            String[] actions = {"Place Hold", "Issue Ready Hold", "Cancel Hold", "Close"};
+            int choice = JOptionPane.showOptionDialog(this, holdsPanel, "Holds: " + title,
+                    JOptionPane.DEFAULT_OPTION, JOptionPane.PLAIN_MESSAGE, null, actions, actions[3]);
+            int row = holdsTable.getSelectedRow();
+            Object[] hold = row == -1 ? null : model.getRow(row);
+            switch (choice) {
+                case 0:
+                    placeHold(memberPicker.getSelectedItem(), bookId);
+                    break;
+                case 1:
+                    if (hold == null || !"ready".equals(hold[3])) {
+                        JOptionPane.showMessageDialog(this, "Please select a ready hold!");
+                        return;
+                    }
+                    int userId = ((Number) hold[1]).intValue();
+                    data.submit(() -> service.issueBook(userId, bookId), loan -> {
+                        JOptionPane.showMessageDialog(this, loan == null
+                                ? "The hold is no longer ready"
+                                : "Book issued to " + hold[2] + "! Due date: " + loan.dueDate);
+                    }, this::showError);
+                    break;
+                case 2:
+                    if (hold == null) {
+                        JOptionPane.showMessageDialog(this, "Please select a hold!");
+                        return;
+                    }
+                    long holdId = ((Number) hold[0]).longValue();
+                    data.submit(() -> service.cancelHold(holdId), cancelled -> {
+                        JOptionPane.showMessageDialog(this, cancelled
+                                ? "Hold " + holdId + " cancelled"
+                                : "That hold has already ended");
+                    }, this::showError);
+                    break;
+                default:
+                    break;
             }
-        } catch (SQLException e) {
-            e.printStackTrace();
+        }, this::showError);
+    }
+    
+    private void placeHold(PickerItem member, int bookId) {
+        if (member == null) {
+            JOptionPane.showMessageDialog(this, "Please select a member to queue!");
+            return;
         }
+        data.submit(() -> service.placeHold(member.id, bookId), placed -> {
+            JOptionPane.showMessageDialog(this, placed == null
+                    ? "No hold placed: a copy is on the shelf, or " + member.label + " already has a hold"
+                    : "Hold " + placed.holdId + " placed for " + member.label +
+                      ", number " + placed.position + " in the queue");
+        }, this::showError);
     }
     
-    private void loadComboBoxes() {
-        issueUserCombo.removeAllItems();
-        issueBookCombo.removeAllItems();
-        
-        try {
-            Statement stmt = conn.createStatement();
-            ResultSet rs = stmt.executeQuery("SELECT user_id, name FROM users");
-            while (rs.next()) {
-                issueUserCombo.addItem(rs.getInt("user_id") + ": " + rs.getString("name"));
-            }
-            
-            rs = stmt.executeQuery("SELECT book_id, title FROM books WHERE available_copies > 0");
-            while (rs.next()) {
-                issueBookCombo.addItem(rs.getInt("book_id") + ": " + rs.getString("title"));
-            }
-        } catch (SQLException e) {
-            e.printStackTrace();
+    private void warmAvailability() {
+        data.submit("availability", () -> {
+            service.warmAvailability();
+            return null;
+        }, null, Exception::printStackTrace);
+    }
+    
+    private void showError(Exception e) {
+        JOptionPane.showMessageDialog(this, "Error: " + e.getMessage());
+    }
+    
+    private void loadBooks() {
+        bookTableModel.refresh();
+    }
+    
+    private void loadUsers() {
+        userTableModel.refresh();
+    }
+    
+    private void loadIssuedBooks() {
+        issuedBooksTableModel.refresh();
+    }
+    
+    private void searchBooks() {
+        String text = bookSearchField.getText();
+        if (BookSearch.toMatchQuery(text) == null) {
+            data.cancel("book-search");
+            bookTable.setModel(bookTableModel);
+            return;
         }
+        data.submit("book-search", () -> service.searchBooks(text, 100), rows -> {
+            bookSearchModel.setRows(rows);
+            if (bookTable.getModel() != bookSearchModel) {
+                bookTable.setModel(bookSearchModel);
+            }
+        }, this::showError);
     }
     
     private void loadBookToForm(int row) {
-        bookIdField.setText(bookTableModel.getValueAt(row, 0).toString());
-        bookTitleField.setText(bookTableModel.getValueAt(row, 1).toString());
-        bookAuthorField.setText(bookTableModel.getValueAt(row, 2).toString());
-        bookIsbnField.setText(bookTableModel.getValueAt(row, 3).toString());
-        bookCopiesSpinner.setValue(bookTableModel.getValueAt(row, 4));
+        Object[] book = bookTable.getModel() == bookSearchModel
+                ? bookSearchModel.getRow(row)
+                : bookTableModel.getRow(row);
+        if (book == null) {
+            return;
+        }
+        bookIdField.setText(Objects.toString(book[0], ""));
+        bookTitleField.setText(Objects.toString(book[1], ""));
+        bookAuthorField.setText(Objects.toString(book[2], ""));
+        bookIsbnField.setText(Objects.toString(book[3], ""));
+        bookCopiesSpinner.setValue(((Number) book[4]).intValue());
     }
     
     private void loadUserToForm(int row) {
-        userIdField.setText(userTableModel.getValueAt(row, 0).toString());
-        userNameField.setText(userTableModel.getValueAt(row, 1).toString());
-        userEmailField.setText(userTableModel.getValueAt(row, 2).toString());
-        userPhoneField.setText(userTableModel.getValueAt(row, 3).toString());
+        Object[] user = userTableModel.getRow(row);
+        if (user == null) {
+            return;
+        }
+        userIdField.setText(Objects.toString(user[0], ""));
+        userNameField.setText(Objects.toString(user[1], ""));
+        userEmailField.setText(Objects.toString(user[2], ""));
+        userPhoneField.setText(Objects.toString(user[3], ""));
     }
     
     private void clearBookFields() {
@@ -603,6 +873,18 @@ public class LibraryManagementSystem extends JFrame {
     }
     
     public static void main(String[] args) {
+        if (Arrays.asList(args).contains("--server")) {
+            LibraryServer.main(args);
+            return;
+        }
+        if (LibraryCli.handles(args)) {
+            System.exit(LibraryCli.run(args));
+        }
+        // Time every Swing event from the first, and publish the numbers
+        // over JMX and to the Prometheus dump file
+        EdtMonitor.install(Metrics.global());
+        MetricsMBean.register(Metrics.global());
+        Metrics.global().startDumping();
         SwingUtilities.invokeLater(() -> {
             new LibraryManagementSystem().setVisible(true);
         });
@@ -0,0 +1,240 @@
+// The library database schema as an ordered list of migrations. Never edit
+// a migration that has shipped; add a new one with the next version number.
+public class LibrarySchema {
+    // Also dropped and recreated by CatalogImporter around each chunk it
+    // indexes itself
+    static final String FTS_INSERT_TRIGGER =
+            "CREATE TRIGGER IF NOT EXISTS books_fts_insert AFTER INSERT ON books BEGIN " +
+            "INSERT INTO books_fts(rowid, title, author, isbn) " +
+            "VALUES (new.book_id, new.title, new.author, new.isbn); END";
+
+    private LibrarySchema() {
+    }
+
+    public static SchemaMigrator migrator() {
+        return new SchemaMigrator()
+            // IF NOT EXISTS lets databases created before versioning adopt
+            // version 1 without touching their data
+            .add(1, "books, users and issued_books tables",
+                // Books table
+                "CREATE TABLE IF NOT EXISTS books (" +
+                    "book_id INTEGER PRIMARY KEY AUTOINCREMENT," +
+                    "title TEXT NOT NULL," +
+                    "author TEXT NOT NULL," +
+                    "isbn TEXT UNIQUE," +
+                    "total_copies INTEGER DEFAULT 1," +
+                    "available_copies INTEGER DEFAULT 1)",
+
+                // Users table
+                "CREATE TABLE IF NOT EXISTS users (" +
+                    "user_id INTEGER PRIMARY KEY AUTOINCREMENT," +
+                    "name TEXT NOT NULL," +
+                    "email TEXT UNIQUE," +
+                    "phone TEXT)",
+
+                // Issued books table
+                "CREATE TABLE IF NOT EXISTS issued_books (" +
+                    "issue_id INTEGER PRIMARY KEY AUTOINCREMENT," +
+                    "book_id INTEGER," +
+                    "user_id INTEGER," +
+                    "issue_date DATE," +
+                    "due_date DATE," +
+                    "return_date DATE," +
+                    "late_fee REAL DEFAULT 0," +
+                    "FOREIGN KEY(book_id) REFERENCES books(book_id)," +
+                    "FOREIGN KEY(user_id) REFERENCES users(user_id))")
+
+            .add(2, "issued_books indexes for joins and open loans",
+                // Loans by book and by member, for the joins and per-book/per-member lookups
+                "CREATE INDEX IF NOT EXISTS idx_issued_books_book ON issued_books(book_id, return_date)",
+                "CREATE INDEX IF NOT EXISTS idx_issued_books_user ON issued_books(user_id, return_date)",
+
+                // Open loans only, ordered by due date and covering the overdue scan
+                "CREATE INDEX IF NOT EXISTS idx_issued_books_open_due " +
+                    "ON issued_books(due_date, book_id, user_id) WHERE return_date IS NULL")
+
+            // External-content FTS5 index over books: the text lives only in
+            // books, and triggers mirror every change to the indexed columns.
+            // Copy count updates do not touch the index.
+            .add(3, "books_fts full-text index over title, author and ISBN",
+                "CREATE VIRTUAL TABLE IF NOT EXISTS books_fts USING fts5(" +
+                    "title, author, isbn, content='books', content_rowid='book_id', " +
+                    "tokenize='unicode61 remove_diacritics 2', prefix='2 3')",
+                FTS_INSERT_TRIGGER,
+                "CREATE TRIGGER IF NOT EXISTS books_fts_delete AFTER DELETE ON books BEGIN " +
+                    "INSERT INTO books_fts(books_fts, rowid, title, author, isbn) " +
+                    "VALUES ('delete', old.book_id, old.title, old.author, old.isbn); END",
+                "CREATE TRIGGER IF NOT EXISTS books_fts_update AFTER UPDATE OF title, author, isbn ON books BEGIN " +
+                    "INSERT INTO books_fts(books_fts, rowid, title, author, isbn) " +
+                    "VALUES ('delete', old.book_id, old.title, old.author, old.isbn); " +
+                    "INSERT INTO books_fts(rowid, title, author, isbn) " +
+                    "VALUES (new.book_id, new.title, new.author, new.isbn); END",
+                "INSERT INTO books_fts(books_fts) VALUES ('rebuild')")
+
+            // Case-insensitive name prefix lookups for the member picker
+            .add(4, "case-insensitive index on users.name",
+                "CREATE INDEX IF NOT EXISTS idx_users_name ON users(name COLLATE NOCASE)")
+
+            // Accrued fines on open loans, written by OverdueEngine: one row
+            // per loan per as-of date, plus one row per run
+            .add(5, "fee_runs and fee_snapshots for the overdue engine",
+                "CREATE TABLE IF NOT EXISTS fee_runs (" +
+                    "run_id INTEGER PRIMARY KEY AUTOINCREMENT," +
+                    "as_of DATE NOT NULL," +
+                    "started_at TEXT NOT NULL," +
+                    "finished_at TEXT," +
+                    "loans INTEGER DEFAULT 0," +
+                    "total_paise INTEGER DEFAULT 0)",
+                "CREATE TABLE IF NOT EXISTS fee_snapshots (" +
+                    "issue_id INTEGER NOT NULL," +
+                    "as_of DATE NOT NULL," +
+                    "run_id INTEGER NOT NULL," +
+                    "days_overdue INTEGER NOT NULL," +
+                    "fee_paise INTEGER NOT NULL," +
+                    "PRIMARY KEY (issue_id, as_of)," +
+                    "FOREIGN KEY(issue_id) REFERENCES issued_books(issue_id)," +
+                    "FOREIGN KEY(run_id) REFERENCES fee_runs(run_id)) WITHOUT ROWID")
+
+            // Returned loans past the archive horizon, moved out of
+            // issued_books by ArchiveEngine with their issue_ids unchanged.
+            // The partial index lets the live view page through open loans
+            // without stepping over returned ones still waiting to move.
+            .add(6, "issued_books_archive and an open-loans index",
+                "CREATE TABLE IF NOT EXISTS issued_books_archive (" +
+                    "issue_id INTEGER PRIMARY KEY," +
+                    "book_id INTEGER," +
+                    "user_id INTEGER," +
+                    "issue_date DATE," +
+                    "due_date DATE," +
+                    "return_date DATE," +
+                    "late_fee REAL DEFAULT 0," +
+                    "archived_at TEXT NOT NULL)",
+                "CREATE INDEX IF NOT EXISTS idx_issued_books_archive_user " +
+                    "ON issued_books_archive(user_id, issue_id)",
+                "CREATE INDEX IF NOT EXISTS idx_issued_books_archive_book " +
+                    "ON issued_books_archive(book_id, issue_id)",
+                "CREATE INDEX IF NOT EXISTS idx_issued_books_open " +
+                    "ON issued_books(issue_id) WHERE return_date IS NULL")
+
+            // Holds on books with no copy on the shelf; see HoldQueue. The
+            // queue index covers waiting holds only, so finding the next one
+            // on a return stays a single seek as fulfilled holds pile up.
+            .add(7, "holds table and per-book hold queue",
+                "CREATE TABLE IF NOT EXISTS holds (" +
+                    "hold_id INTEGER PRIMARY KEY AUTOINCREMENT," +
+                    "book_id INTEGER NOT NULL," +
+                    "user_id INTEGER NOT NULL," +
+                    "placed_at TEXT NOT NULL," +
+                    "status TEXT NOT NULL DEFAULT 'waiting'," +
+                    "ready_at TEXT," +
+                    "expires_on DATE," +
+                    "closed_at TEXT," +
+                    "FOREIGN KEY(book_id) REFERENCES books(book_id)," +
+                    "FOREIGN KEY(user_id) REFERENCES users(user_id))",
+                "CREATE INDEX IF NOT EXISTS idx_holds_queue " +
+                    "ON holds(book_id, hold_id) WHERE status = 'waiting'",
+                // One active hold per member per book
+                "CREATE UNIQUE INDEX IF NOT EXISTS idx_holds_active " +
+                    "ON holds(book_id, user_id) WHERE status IN ('waiting', 'ready')",
+                "CREATE INDEX IF NOT EXISTS idx_holds_user ON holds(user_id, book_id)",
+                "CREATE INDEX IF NOT EXISTS idx_holds_ready " +
+                    "ON holds(expires_on) WHERE status = 'ready'")
+
+            // Daily circulation aggregates for the reports, kept current by
+            // issueBook and returnBook; see CirculationStats. They start out
+            // filled from the loans already on record, and the day indexes
+            // let the delta job recompute a single day.
+            .add(8, "daily circulation aggregates for reports",
+                "CREATE TABLE IF NOT EXISTS daily_circulation (" +
+                    "day DATE PRIMARY KEY," +
+                    "issues INTEGER NOT NULL DEFAULT 0," +
+                    "returns INTEGER NOT NULL DEFAULT 0," +
+                    "fee_paise INTEGER NOT NULL DEFAULT 0)",
+                "CREATE TABLE IF NOT EXISTS daily_book_stats (" +
+                    "day DATE NOT NULL," +
+                    "book_id INTEGER NOT NULL," +
+                    "issues INTEGER NOT NULL DEFAULT 0," +
+                    "returns INTEGER NOT NULL DEFAULT 0," +
+                    "fee_paise INTEGER NOT NULL DEFAULT 0," +
+                    "PRIMARY KEY (day, book_id)) WITHOUT ROWID",
+                "CREATE TABLE IF NOT EXISTS daily_member_stats (" +
+                    "day DATE NOT NULL," +
+                    "user_id INTEGER NOT NULL," +
+                    "issues INTEGER NOT NULL DEFAULT 0," +
+                    "returns INTEGER NOT NULL DEFAULT 0," +
+                    "fee_paise INTEGER NOT NULL DEFAULT 0," +
+                    "PRIMARY KEY (day, user_id)) WITHOUT ROWID",
+                "CREATE INDEX IF NOT EXISTS idx_issued_books_issue_date ON issued_books(issue_date)",
+                "CREATE INDEX IF NOT EXISTS idx_issued_books_return_date " +
+                    "ON issued_books(return_date) WHERE return_date IS NOT NULL",
+                "CREATE INDEX IF NOT EXISTS idx_issued_books_archive_issue_date " +
+                    "ON issued_books_archive(issue_date)",
+                "CREATE INDEX IF NOT EXISTS idx_issued_books_archive_return_date " +
+                    "ON issued_books_archive(return_date)",
+                "CREATE TEMP VIEW all_loans AS " +
+                    "SELECT book_id, user_id, issue_date, return_date, late_fee FROM issued_books UNION ALL " +
+                    "SELECT book_id, user_id, issue_date, return_date, late_fee FROM issued_books_archive",
+                "INSERT INTO daily_circulation (day, issues) " +
+                    "SELECT issue_date, COUNT(*) FROM all_loans WHERE issue_date IS NOT NULL GROUP BY issue_date",
+                "INSERT INTO daily_circulation (day, returns, fee_paise) " +
+                    "SELECT return_date, COUNT(*), COALESCE(SUM(CAST(ROUND(late_fee * 100) AS INTEGER)), 0) " +
+                    "FROM all_loans WHERE return_date IS NOT NULL GROUP BY return_date " +
+                    "ON CONFLICT(day) DO UPDATE SET returns = excluded.returns, fee_paise = excluded.fee_paise",
+                "INSERT INTO daily_book_stats (day, book_id, issues) " +
+                    "SELECT issue_date, book_id, COUNT(*) FROM all_loans WHERE issue_date IS NOT NULL " +
+                    "GROUP BY issue_date, book_id",
+                "INSERT INTO daily_book_stats (day, book_id, returns, fee_paise) " +
+                    "SELECT return_date, book_id, COUNT(*), COALESCE(SUM(CAST(ROUND(late_fee * 100) AS INTEGER)), 0) " +
+                    "FROM all_loans WHERE return_date IS NOT NULL GROUP BY return_date, book_id " +
+                    "ON CONFLICT(day, book_id) DO UPDATE SET returns = excluded.returns, fee_paise = excluded.fee_paise",
+                "INSERT INTO daily_member_stats (day, user_id, issues) " +
+                    "SELECT issue_date, user_id, COUNT(*) FROM all_loans WHERE issue_date IS NOT NULL " +
+                    "GROUP BY issue_date, user_id",
+                "INSERT INTO daily_member_stats (day, user_id, returns, fee_paise) " +
+                    "SELECT return_date, user_id, COUNT(*), COALESCE(SUM(CAST(ROUND(late_fee * 100) AS INTEGER)), 0) " +
+                    "FROM all_loans WHERE return_date IS NOT NULL GROUP BY return_date, user_id " +
+                    "ON CONFLICT(day, user_id) DO UPDATE SET returns = excluded.returns, fee_paise = excluded.fee_paise",
+                "DROP VIEW all_loans")
+
+            // The circulation journal and availability snapshots; see
+            // CirculationJournal. The first snapshot records the counts as
+            // they stand, since there are no events from before it.
+            .add(9, "circulation journal and availability snapshots",
+                "CREATE TABLE IF NOT EXISTS circulation_journal (" +
+                    "event_id INTEGER PRIMARY KEY AUTOINCREMENT," +
+                    "recorded_at TEXT NOT NULL," +
+                    "kind TEXT NOT NULL," +
+                    "book_id INTEGER NOT NULL," +
+                    "user_id INTEGER," +
+                    "issue_id INTEGER," +
+                    "delta INTEGER NOT NULL)",
+                "CREATE TABLE IF NOT EXISTS availability_snapshots (" +
+                    "snapshot_id INTEGER PRIMARY KEY AUTOINCREMENT," +
+                    "event_id INTEGER NOT NULL," +
+                    "taken_at TEXT NOT NULL," +
+                    "books INTEGER NOT NULL)",
+                "CREATE TABLE IF NOT EXISTS availability_snapshot_rows (" +
+                    "snapshot_id INTEGER NOT NULL," +
+                    "book_id INTEGER NOT NULL," +
+                    "available_copies INTEGER NOT NULL," +
+                    "PRIMARY KEY (snapshot_id, book_id)) WITHOUT ROWID",
+                "INSERT INTO availability_snapshots (event_id, taken_at, books) " +
+                    "SELECT 0, strftime('%Y-%m-%dT%H:%M:%S', 'now', 'localtime'), COUNT(*) FROM books",
+                "INSERT INTO availability_snapshot_rows (snapshot_id, book_id, available_copies) " +
+                    "SELECT (SELECT MAX(snapshot_id) FROM availability_snapshots), book_id, available_copies " +
+                    "FROM books")
+
+            // Late fees in whole paise, as FeePolicy works them out, instead
+            // of rupees in a REAL column. The rupee column goes once it is
+            // copied, so nothing can read a figure that has stopped moving.
+            .add(10, "late_fee_paise on issued_books and issued_books_archive",
+                "ALTER TABLE issued_books ADD COLUMN late_fee_paise INTEGER NOT NULL DEFAULT 0",
+                "UPDATE issued_books SET late_fee_paise = CAST(ROUND(late_fee * 100) AS INTEGER) " +
+                    "WHERE late_fee <> 0",
+                "ALTER TABLE issued_books DROP COLUMN late_fee",
+                "ALTER TABLE issued_books_archive ADD COLUMN late_fee_paise INTEGER NOT NULL DEFAULT 0",
+                "UPDATE issued_books_archive SET late_fee_paise = CAST(ROUND(late_fee * 100) AS INTEGER) " +
+                    "WHERE late_fee <> 0",
+                "ALTER TABLE issued_books_archive DROP COLUMN late_fee");
+    }
+}
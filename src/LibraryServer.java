@@ -0,0 +1,723 @@
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.UnsupportedEncodingException;
+import java.net.InetSocketAddress;
+import java.net.URLDecoder;
+import java.nio.charset.StandardCharsets;
+import java.sql.SQLException;
+import java.time.LocalDate;
+import java.time.format.DateTimeParseException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+// Headless mode: the LibraryService behind the JDK's built-in HTTP server,
+// speaking JSON. Started with --server [--port N].
+//
+//   GET    /books?after=&limit=    page of the catalog by book_id
+//   GET    /books?q=               ranked full-text search
+//   GET    /books/{id}
+//   POST   /books                  {title, author, isbn, copies}
+//   PUT    /books/{id}             same fields
+//   DELETE /books/{id}
+//   GET    /users?after=&limit=    page of members by user_id
+//   GET    /users?q=               members by id or name prefix
+//   GET    /users/{id}, POST /users, PUT /users/{id}, DELETE /users/{id}
+//   GET    /loans?after=&limit=    page of open loans by issue_id
+//   GET    /history?user_id=|book_id=&before=&limit=
+//                                  a member's or book's loans, newest first,
+//                                  archived ones included
+//   POST   /issue                  {user_id, book_id}
+//   POST   /return                 {issue_id}; "hold" names the member the
+//                                  copy went to, if anyone was waiting
+//   GET    /holds?book_id=         a book's waiting and ready holds
+//   POST   /holds                  {user_id, book_id}, for a book with no
+//                                  copy on the shelf
+//   DELETE /holds/{id}
+//   GET    /reports/{popular|members|utilization|daily}?from=&to=&limit=
+//                                  reports over the daily aggregates, for
+//                                  YYYY-MM-DD dates (the last 30 days by
+//                                  default)
+//   GET    /export/{table}?format=csv|json
+//                                  streams books, users, issued_books or
+//                                  issued_books_archive (chunked, constant
+//                                  memory)
+//   GET    /notices                hold-ready notices since the last call,
+//                                  with -Dlibrary.holds.notify=outbox
+//   GET    /search?q=              same as /books?q=
+//   GET    /metrics                Metrics as Prometheus text
+//
+// In multi-branch mode (-Dlibrary.branches=main,north,...; see
+// BranchLibrary) every route above takes ?branch=NAME and works on that
+// branch's shard alone, and two more cover the whole library:
+//
+//   GET    /branches               titles, copies and copies on the shelf
+//                                  per branch
+//   GET    /catalog?q=             ranked search across every branch, one
+//                                  entry per title with its copies at each
+//   GET    /catalog?isbn=          a title's copies at each branch
+//
+// Each exchange runs on its own virtual thread when the JVM has them (JDK 21
+// and later) and on a cached thread pool otherwise. Reads run in parallel
+// on the pool's reader connections; writes are group-committed by its
+// single writer thread.
+public class LibraryServer {
+    private static final int DEFAULT_PORT = 8080;
+    private static final int DEFAULT_LIMIT = 50;
+    private static final int MAX_LIMIT = 500;
+    private static final int MAX_BODY_BYTES = 64 * 1024;
+
+    // Exactly one of these is set, by the constructor used
+    private final LibraryService service;
+    private final BranchLibrary branches;
+    private final HttpServer server;
+    private final ExecutorService executor;
+
+    // Thrown by a handler to answer with a status other than 200
+    private static class HttpError extends RuntimeException {
+        final int status;
+
+        HttpError(int status, String message) {
+            super(message);
+            this.status = status;
+        }
+    }
+
+    // Returned by a handler to answer 201 Created with the wrapped body
+    private static class Created {
+        final Map<String, Object> body;
+
+        Created(Map<String, Object> body) {
+            this.body = body;
+        }
+    }
+
+    private interface Handler {
+        Object handle(HttpExchange exchange, String id, Map<String, String> query) throws Exception;
+    }
+
+    public LibraryServer(LibraryService service, int port) throws IOException {
+        this(service, null, port);
+    }
+
+    public LibraryServer(BranchLibrary branches, int port) throws IOException {
+        this(null, branches, port);
+    }
+
+    private LibraryServer(LibraryService service, BranchLibrary branches, int port) throws IOException {
+        this.service = service;
+        this.branches = branches;
+        this.server = HttpServer.create(new InetSocketAddress(port), 1024);
+        this.executor = requestExecutor();
+        server.setExecutor(executor);
+        route("/books", this::books);
+        route("/users", this::users);
+        route("/loans", this::loans);
+        route("/history", this::history);
+        route("/issue", this::issue);
+        route("/return", this::returnLoan);
+        route("/holds", this::holds);
+        route("/notices", this::notices);
+        route("/reports", this::reports);
+        route("/search", (exchange, id, query) -> search(query));
+        server.createContext("/metrics", LibraryServer::metrics);
+        server.createContext("/export", this::export);
+        if (branches != null) {
+            route("/branches", this::branches);
+            route("/catalog", this::catalog);
+        }
+    }
+
+    public void start() {
+        server.start();
+    }
+
+    public void stop() {
+        server.stop(1);
+        executor.shutdown();
+    }
+
+    public int port() {
+        return server.getAddress().getPort();
+    }
+
+    public static void main(String[] args) {
+        int port = DEFAULT_PORT;
+        for (int i = 0; i < args.length - 1; i++) {
+            if (args[i].equals("--port")) {
+                port = Integer.parseInt(args[i + 1]);
+            }
+        }
+        try {
+            List<String> names = BranchLibrary.namesFromSystemProperties();
+            AutoCloseable library;
+            LibraryServer server;
+            if (names.isEmpty()) {
+                LibraryService service = LibraryService.open(BranchLibrary.localDatabaseUrl(),
+                        SqliteProfile.fromSystemProperties(), new ChangeBus());
+                service.warmAvailability();
+                library = service;
+                server = new LibraryServer(service, port);
+            } else {
+                BranchLibrary branches = BranchLibrary.open(names, SqliteProfile.fromSystemProperties(),
+                                                            new ChangeBus());
+                library = branches;
+                server = new LibraryServer(branches, port);
+            }
+            MetricsMBean.register(Metrics.global());
+            Metrics.global().startDumping();
+            Runtime.getRuntime().addShutdownHook(new Thread(() -> {
+                server.stop();
+                try {
+                    library.close();
+                } catch (Exception e) {
+                    e.printStackTrace();
+                }
+            }, "library-server-shutdown"));
+            server.start();
+            System.out.println("Library server listening on port " + server.port() +
+                               (names.isEmpty() ? "" : " for branches " + names));
+        } catch (IOException | SQLException e) {
+            e.printStackTrace();
+            System.exit(1);
+        }
+    }
+
+    // Executors.newVirtualThreadPerTaskExecutor() only exists from JDK 21, and
+    // the code still builds on older JDKs, so it is looked up reflectively
+    private static ExecutorService requestExecutor() {
+        try {
+            return (ExecutorService) Executors.class.getMethod("newVirtualThreadPerTaskExecutor").invoke(null);
+        } catch (ReflectiveOperationException e) {
+            return Executors.newCachedThreadPool(r -> {
+                Thread t = new Thread(r, "library-http");
+                t.setDaemon(true);
+                return t;
+            });
+        }
+    }
+
+    private void route(String path, Handler handler) {
+        server.createContext(path, exchange -> {
+            try {
+                String rest = exchange.getRequestURI().getPath().substring(path.length());
+                String id = rest.isEmpty() || rest.equals("/") ? null : rest.substring(1);
+                if (id != null && id.contains("/")) {
+                    throw new HttpError(404, "Not found");
+                }
+                Object body = handler.handle(exchange, id, parseQuery(exchange.getRequestURI().getRawQuery()));
+                if (body instanceof Created) {
+                    send(exchange, 201, ((Created) body).body);
+                } else {
+                    send(exchange, 200, body);
+                }
+            } catch (HttpError e) {
+                send(exchange, e.status, error(e.getMessage()));
+            } catch (IllegalArgumentException e) {
+                send(exchange, 400, error(e.getMessage()));
+            } catch (SQLException e) {
+                // SQLITE_CONSTRAINT: a duplicate ISBN or email, or a book or
+                // member that loans or holds still refer to
+                send(exchange, e.getErrorCode() == 19 ? 409 : 500, error(e.getMessage()));
+            } catch (Exception e) {
+                e.printStackTrace();
+                send(exchange, 500, error("Internal error"));
+            } finally {
+                exchange.close();
+            }
+        });
+    }
+
+    // Prometheus scrape endpoint: the same text as the dump file
+    private static void metrics(HttpExchange exchange) throws IOException {
+        try {
+            StringBuilder text = new StringBuilder();
+            Metrics.global().writePrometheus(text);
+            byte[] bytes = text.toString().getBytes(StandardCharsets.UTF_8);
+            exchange.getResponseHeaders().set("Content-Type", "text/plain; version=0.0.4; charset=utf-8");
+            exchange.sendResponseHeaders(200, bytes.length);
+            try (OutputStream out = exchange.getResponseBody()) {
+                out.write(bytes);
+            }
+        } finally {
+            exchange.close();
+        }
+    }
+
+    // Streams the table with chunked encoding as it is read. Problems found
+    // before the first byte get a JSON error; a failure part way through
+    // can only cut the response short.
+    private void export(HttpExchange exchange) throws IOException {
+        try {
+            String table = exchange.getRequestURI().getPath().substring("/export".length()).replaceFirst("^/", "");
+            Map<String, String> query = parseQuery(exchange.getRequestURI().getRawQuery());
+            String formatName = query.getOrDefault("format", "csv");
+            if (!exchange.getRequestMethod().equals("GET")) {
+                send(exchange, 405, error("Method not allowed"));
+                return;
+            }
+            if (!LibraryExporter.isExportable(table)) {
+                send(exchange, 404, error("No such table"));
+                return;
+            }
+            LibraryExporter.Format format;
+            try {
+                format = LibraryExporter.Format.valueOf(formatName.toUpperCase());
+            } catch (IllegalArgumentException e) {
+                send(exchange, 400, error("format must be csv or json"));
+                return;
+            }
+            LibraryService source;
+            try {
+                source = service(query);
+            } catch (IllegalArgumentException e) {
+                send(exchange, 400, error(e.getMessage()));
+                return;
+            }
+            exchange.getResponseHeaders().set("Content-Type", format == LibraryExporter.Format.CSV
+                    ? "text/csv; charset=utf-8" : "application/json; charset=utf-8");
+            exchange.sendResponseHeaders(200, 0);
+            try (OutputStream out = exchange.getResponseBody()) {
+                source.exportTable(table, format, out);
+            } catch (SQLException e) {
+                e.printStackTrace();
+            }
+        } finally {
+            exchange.close();
+        }
+    }
+
+    private Object books(HttpExchange exchange, String id, Map<String, String> query) throws Exception {
+        switch (exchange.getRequestMethod()) {
+            case "GET":
+                if (id != null) {
+                    return found(service(query).getBook(parseId(id)));
+                }
+                if (query.containsKey("q")) {
+                    return search(query);
+                }
+                return service(query).listBooks(longParam(query, "after", 0), limit(query));
+            case "POST": {
+                requireNoId(id);
+                Map<String, Object> book = readBody(exchange);
+                long bookId = service(query).addBook(string(book, "title"), string(book, "author"),
+                        string(book, "isbn"), copies(book));
+                return created("book_id", bookId);
+            }
+            case "PUT": {
+                int bookId = parseId(requireId(id));
+                Map<String, Object> book = readBody(exchange);
+                if (!service(query).updateBook(bookId, string(book, "title"), string(book, "author"),
+                        string(book, "isbn"), copies(book))) {
+                    throw new HttpError(404, "No such book");
+                }
+                return found(service(query).getBook(bookId));
+            }
+            case "DELETE":
+                if (!service(query).deleteBook(parseId(requireId(id)))) {
+                    throw new HttpError(404, "No such book");
+                }
+                return ok();
+            default:
+                throw new HttpError(405, "Method not allowed");
+        }
+    }
+
+    private Object users(HttpExchange exchange, String id, Map<String, String> query) throws Exception {
+        switch (exchange.getRequestMethod()) {
+            case "GET":
+                if (id != null) {
+                    return found(service(query).getUser(parseId(id)));
+                }
+                if (query.containsKey("q")) {
+                    List<Map<String, Object>> picks = new ArrayList<>();
+                    for (PickerItem pick : service(query).userPicks(query.get("q").trim(), limit(query))) {
+                        Map<String, Object> row = new LinkedHashMap<>();
+                        row.put("user_id", pick.id);
+                        row.put("label", pick.label);
+                        picks.add(row);
+                    }
+                    return picks;
+                }
+                return service(query).listUsers(longParam(query, "after", 0), limit(query));
+            case "POST": {
+                requireNoId(id);
+                Map<String, Object> user = readBody(exchange);
+                long userId = service(query).addUser(string(user, "name"), string(user, "email"),
+                                                     optString(user, "phone"));
+                return created("user_id", userId);
+            }
+            case "PUT": {
+                int userId = parseId(requireId(id));
+                Map<String, Object> user = readBody(exchange);
+                if (!service(query).updateUser(userId, string(user, "name"), string(user, "email"),
+                        optString(user, "phone"))) {
+                    throw new HttpError(404, "No such user");
+                }
+                return found(service(query).getUser(userId));
+            }
+            case "DELETE":
+                if (!service(query).deleteUser(parseId(requireId(id)))) {
+                    throw new HttpError(404, "No such user");
+                }
+                return ok();
+            default:
+                throw new HttpError(405, "Method not allowed");
+        }
+    }
+
+    private Object loans(HttpExchange exchange, String id, Map<String, String> query) throws Exception {
+        requireMethod(exchange, "GET");
+        requireNoId(id);
+        return service(query).listLoans(longParam(query, "after", 0), limit(query));
+    }
+
+    private Object history(HttpExchange exchange, String id, Map<String, String> query) throws Exception {
+        requireMethod(exchange, "GET");
+        requireNoId(id);
+        long before = longParam(query, "before", Long.MAX_VALUE);
+        if (query.containsKey("user_id") == query.containsKey("book_id")) {
+            throw new IllegalArgumentException("Give exactly one of user_id and book_id");
+        }
+        if (query.containsKey("user_id")) {
+            return service(query).userHistory(intParam(query, "user_id"), before, limit(query));
+        }
+        return service(query).bookHistory(intParam(query, "book_id"), before, limit(query));
+    }
+
+    private Object issue(HttpExchange exchange, String id, Map<String, String> query) throws Exception {
+        requireMethod(exchange, "POST");
+        requireNoId(id);
+        Map<String, Object> body = readBody(exchange);
+        int userId = intField(body, "user_id");
+        int bookId = intField(body, "book_id");
+        requireUserAndBook(service(query), userId, bookId);
+        LibraryService.Loan loan = service(query).issueBook(userId, bookId);
+        if (loan == null) {
+            throw new HttpError(409, "Book not available");
+        }
+        Map<String, Object> result = new LinkedHashMap<>();
+        result.put("issue_id", loan.issueId);
+        result.put("due_date", loan.dueDate.toString());
+        if (loan.holdId != 0) {
+            result.put("hold_id", loan.holdId);
+        }
+        return new Created(result);
+    }
+
+    private Object returnLoan(HttpExchange exchange, String id, Map<String, String> query) throws Exception {
+        requireMethod(exchange, "POST");
+        requireNoId(id);
+        int issueId = intField(readBody(exchange), "issue_id");
+        LibraryService.Return returned = service(query).returnBook(issueId);
+        if (returned == null) {
+            throw new HttpError(409, "No open loan with that id");
+        }
+        Map<String, Object> result = new LinkedHashMap<>();
+        result.put("issue_id", issueId);
+        result.put("book_id", returned.bookId);
+        result.put("late_fee_paise", returned.lateFeePaise);
+        if (returned.hold != null) {
+            result.put("hold", returned.hold.toMap());
+        }
+        return result;
+    }
+
+    private Object holds(HttpExchange exchange, String id, Map<String, String> query) throws Exception {
+        switch (exchange.getRequestMethod()) {
+            case "GET":
+                requireNoId(id);
+                return service(query).bookHolds(intParam(query, "book_id"));
+            case "POST": {
+                requireNoId(id);
+                Map<String, Object> body = readBody(exchange);
+                int userId = intField(body, "user_id");
+                int bookId = intField(body, "book_id");
+                requireUserAndBook(service(query), userId, bookId);
+                HoldQueue.Placed placed = service(query).placeHold(userId, bookId);
+                if (placed == null) {
+                    throw new HttpError(409, "A copy is on the shelf, or the member already has a hold");
+                }
+                Map<String, Object> result = new LinkedHashMap<>();
+                result.put("hold_id", placed.holdId);
+                result.put("position", placed.position);
+                return new Created(result);
+            }
+            case "DELETE":
+                if (!service(query).cancelHold(parseId(requireId(id)))) {
+                    throw new HttpError(404, "No active hold with that id");
+                }
+                return ok();
+            default:
+                throw new HttpError(405, "Method not allowed");
+        }
+    }
+
+    // 404 for a member or book that does not exist. Foreign keys still stop
+    // one deleted after this check, with a 409 from the constraint error.
+    private static void requireUserAndBook(LibraryService service, int userId, int bookId) throws SQLException {
+        if (service.getUser(userId) == null) {
+            throw new HttpError(404, "No such user");
+        }
+        if (service.getBook(bookId) == null) {
+            throw new HttpError(404, "No such book");
+        }
+    }
+
+    private Object reports(HttpExchange exchange, String id, Map<String, String> query) throws Exception {
+        requireMethod(exchange, "GET");
+        LocalDate last = dateParam(query, "to", LocalDate.now());
+        LocalDate first = dateParam(query, "from", last.minusDays(29));
+        switch (id == null ? "" : id) {
+            case "popular":
+                return service(query).popularTitles(first, last, limit(query));
+            case "members":
+                return service(query).memberBorrowing(first, last, limit(query));
+            case "utilization":
+                return service(query).utilization(first, last, limit(query));
+            case "daily":
+                return service(query).dailyCirculation(first, last, limit(query));
+            default:
+                throw new HttpError(404, "No such report");
+        }
+    }
+
+    private Object notices(HttpExchange exchange, String id, Map<String, String> query) throws Exception {
+        requireMethod(exchange, "GET");
+        requireNoId(id);
+        if (!(service(query).notifier() instanceof HoldNotifier.Outbox)) {
+            throw new HttpError(404, "Hold notices are not kept in an outbox");
+        }
+        List<Map<String, Object>> notices = new ArrayList<>();
+        for (HoldQueue.Notice notice : ((HoldNotifier.Outbox) service(query).notifier()).drain()) {
+            notices.add(notice.toMap());
+        }
+        return notices;
+    }
+
+    private Object search(Map<String, String> query) throws SQLException {
+        String text = query.get("q");
+        if (text == null) {
+            throw new IllegalArgumentException("Missing q parameter");
+        }
+        List<Map<String, Object>> rows = new ArrayList<>();
+        for (Object[] book : service(query).searchBooks(text, limit(query))) {
+            Map<String, Object> row = new LinkedHashMap<>();
+            for (int i = 0; i < LibraryService.BOOK_COLUMNS.length; i++) {
+                row.put(LibraryService.BOOK_COLUMNS[i], book[i]);
+            }
+            rows.add(row);
+        }
+        return rows;
+    }
+
+    private Object branches(HttpExchange exchange, String id, Map<String, String> query) throws Exception {
+        requireMethod(exchange, "GET");
+        requireNoId(id);
+        return branches.branchTotals();
+    }
+
+    private Object catalog(HttpExchange exchange, String id, Map<String, String> query) throws Exception {
+        requireMethod(exchange, "GET");
+        requireNoId(id);
+        if (query.containsKey("isbn")) {
+            BranchLibrary.Title title = branches.availability(query.get("isbn").trim());
+            if (title == null) {
+                throw new HttpError(404, "No branch stocks that ISBN");
+            }
+            return title.toMap();
+        }
+        String text = query.get("q");
+        if (text == null) {
+            throw new IllegalArgumentException("Give q or isbn");
+        }
+        List<Map<String, Object>> titles = new ArrayList<>();
+        for (BranchLibrary.Title title : branches.searchCatalog(text, limit(query))) {
+            titles.add(title.toMap());
+        }
+        return titles;
+    }
+
+    // The library a request works on: the only one, or in multi-branch
+    // mode the branch named by ?branch=
+    private LibraryService service(Map<String, String> query) {
+        if (branches == null) {
+            return service;
+        }
+        String name = query.get("branch");
+        if (name == null) {
+            throw new IllegalArgumentException("Give branch, one of " + branches.names());
+        }
+        return branches.branch(name);
+    }
+
+    private static Map<String, Object> readBody(HttpExchange exchange) throws IOException {
+        InputStream in = exchange.getRequestBody();
+        ByteArrayOutputStream body = new ByteArrayOutputStream();
+        byte[] buffer = new byte[8192];
+        int n;
+        while ((n = in.read(buffer)) != -1) {
+            if (body.size() + n > MAX_BODY_BYTES) {
+                throw new HttpError(413, "Request body too large");
+            }
+            body.write(buffer, 0, n);
+        }
+        return Json.parseObject(body.toString("UTF-8"));
+    }
+
+    private static void send(HttpExchange exchange, int status, Object body) throws IOException {
+        byte[] bytes = Json.write(body).getBytes(StandardCharsets.UTF_8);
+        exchange.getResponseHeaders().set("Content-Type", "application/json; charset=utf-8");
+        exchange.sendResponseHeaders(status, bytes.length);
+        try (OutputStream out = exchange.getResponseBody()) {
+            out.write(bytes);
+        }
+    }
+
+    private static Map<String, String> parseQuery(String rawQuery) throws UnsupportedEncodingException {
+        Map<String, String> query = new HashMap<>();
+        if (rawQuery == null) {
+            return query;
+        }
+        for (String pair : rawQuery.split("&")) {
+            int eq = pair.indexOf('=');
+            String name = eq < 0 ? pair : pair.substring(0, eq);
+            String value = eq < 0 ? "" : pair.substring(eq + 1);
+            query.put(URLDecoder.decode(name, "UTF-8"), URLDecoder.decode(value, "UTF-8"));
+        }
+        return query;
+    }
+
+    private static Map<String, Object> found(Map<String, Object> row) {
+        if (row == null) {
+            throw new HttpError(404, "Not found");
+        }
+        return row;
+    }
+
+    private static Created created(String keyName, long key) {
+        Map<String, Object> result = new LinkedHashMap<>();
+        result.put(keyName, key);
+        return new Created(result);
+    }
+
+    private static Map<String, Object> ok() {
+        Map<String, Object> result = new LinkedHashMap<>();
+        result.put("ok", true);
+        return result;
+    }
+
+    private static Map<String, Object> error(String message) {
+        Map<String, Object> result = new LinkedHashMap<>();
+        result.put("error", message);
+        return result;
+    }
+
+    private static void requireMethod(HttpExchange exchange, String method) {
+        if (!exchange.getRequestMethod().equals(method)) {
+            throw new HttpError(405, "Method not allowed");
+        }
+    }
+
+    private static void requireNoId(String id) {
+        if (id != null) {
+            throw new HttpError(404, "Not found");
+        }
+    }
+
+    private static String requireId(String id) {
+        if (id == null) {
+            throw new HttpError(405, "Method not allowed");
+        }
+        return id;
+    }
+
+    private static int parseId(String id) {
+        try {
+            return Integer.parseInt(id);
+        } catch (NumberFormatException e) {
+            throw new HttpError(404, "Not found");
+        }
+    }
+
+    private static int limit(Map<String, String> query) {
+        long limit = longParam(query, "limit", DEFAULT_LIMIT);
+        if (limit < 1 || limit > MAX_LIMIT) {
+            throw new IllegalArgumentException("limit must be between 1 and " + MAX_LIMIT);
+        }
+        return (int) limit;
+    }
+
+    private static long longParam(Map<String, String> query, String name, long fallback) {
+        String value = query.get(name);
+        if (value == null || value.isEmpty()) {
+            return fallback;
+        }
+        try {
+            return Long.parseLong(value);
+        } catch (NumberFormatException e) {
+            throw new IllegalArgumentException(name + " must be a number");
+        }
+    }
+
+    private static LocalDate dateParam(Map<String, String> query, String name, LocalDate fallback) {
+        String value = query.get(name);
+        if (value == null || value.isEmpty()) {
+            return fallback;
+        }
+        try {
+            return LocalDate.parse(value);
+        } catch (DateTimeParseException e) {
+            throw new IllegalArgumentException(name + " must be a date as YYYY-MM-DD");
+        }
+    }
+
+    private static int intParam(Map<String, String> query, String name) {
+        long value = longParam(query, name, 0);
+        if (value < 1 || value > Integer.MAX_VALUE) {
+            throw new IllegalArgumentException(name + " must be a positive integer");
+        }
+        return (int) value;
+    }
+
+    private static String string(Map<String, Object> body, String field) {
+        Object value = body.get(field);
+        if (!(value instanceof String) || ((String) value).trim().isEmpty()) {
+            throw new IllegalArgumentException("Missing " + field);
+        }
+        return (String) value;
+    }
+
+    private static String optString(Map<String, Object> body, String field) {
+        Object value = body.get(field);
+        return value == null ? null : value.toString();
+    }
+
+    private static int intField(Map<String, Object> body, String field) {
+        Object value = body.get(field);
+        if (!(value instanceof Long) || (Long) value < 1 || (Long) value > Integer.MAX_VALUE) {
+            throw new IllegalArgumentException(field + " must be a positive integer");
+        }
+        return ((Long) value).intValue();
+    }
+
+    private static int copies(Map<String, Object> body) {
+        Object value = body.get("copies");
+        if (value == null) {
+            return 1;
+        }
+        if (!(value instanceof Long) || (Long) value < 1 || (Long) value > 100) {
+            throw new IllegalArgumentException("copies must be between 1 and 100");
+        }
+        return ((Long) value).intValue();
+    }
+}
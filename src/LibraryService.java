@@ -0,0 +1,730 @@
+import java.io.File;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.UncheckedIOException;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.ResultSetMetaData;
+import java.sql.SQLException;
+import java.time.LocalDate;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+// The library operations without any Swing in them, shared by the desktop
+// UI and the HTTP server. Safe to call from any thread: reads borrow one of
+// the pool's read-only connections and writes are queued to its single
+// writer, which group-commits them. Every operation is timed in Metrics
+// under its method name.
+public class LibraryService implements AutoCloseable {
+    public static final String[] BOOK_COLUMNS =
+            {"book_id", "title", "author", "isbn", "total_copies", "available_copies"};
+
+    // Statements on the circulation hot path, shared with the startup query
+    // plan check
+    static final String TAKE_COPY_SQL =
+            "UPDATE books SET available_copies = available_copies - 1 WHERE book_id=? AND available_copies > 0";
+    static final String RETURN_LOAN_SQL =
+            "UPDATE issued_books SET return_date=? " +
+            "WHERE issue_id=? AND return_date IS NULL RETURNING book_id, user_id, due_date";
+    static final String OPEN_LOANS_SQL =
+            "SELECT ib.issue_id, ib.book_id, b.title, ib.user_id, u.name, " +
+            "ib.issue_date, ib.due_date, ib.return_date, ib.late_fee_paise, " +
+            "(SELECT fs.fee_paise FROM fee_snapshots fs WHERE fs.issue_id = ib.issue_id " +
+            "ORDER BY fs.as_of DESC LIMIT 1) AS accrued_fee_paise " +
+            "FROM issued_books ib " +
+            "JOIN books b ON ib.book_id = b.book_id " +
+            "JOIN users u ON ib.user_id = u.user_id " +
+            "WHERE ib.return_date IS NULL AND ib.issue_id > ? ORDER BY ib.issue_id LIMIT ?";
+
+    private final ConnectionPool pool;
+    private final FeePolicy fees;
+    private final ChangeBus changes;
+    private final HoldNotifier notifier;
+    private final HoldQueue holds = HoldQueue.fromSystemProperties();
+    private final AvailabilityCache availability = new AvailabilityCache();
+    private final Metrics metrics = Metrics.global();
+
+    public static class Loan {
+        public final long issueId;
+        public final LocalDate dueDate;
+        // The ready hold the member collected with this loan, or 0
+        public final long holdId;
+
+        Loan(long issueId, LocalDate dueDate, long holdId) {
+            this.issueId = issueId;
+            this.dueDate = dueDate;
+            this.holdId = holdId;
+        }
+    }
+
+    public static class Return {
+        public final int bookId;
+        public final long lateFeePaise;
+        // The hold the returned copy went to, or null if it was shelved
+        public final HoldQueue.Notice hold;
+
+        Return(int bookId, long lateFeePaise, HoldQueue.Notice hold) {
+            this.bookId = bookId;
+            this.lateFeePaise = lateFeePaise;
+            this.hold = hold;
+        }
+    }
+
+    // Opens the database, applies the PRAGMA profile and brings the schema
+    // up to date; the availability cache is warmed separately by the caller.
+    // Loan terms come from FeePolicy.fromSystemProperties() and the hold
+    // notice sink from HoldNotifier.fromSystemProperties().
+    public static LibraryService open(String url, SqliteProfile profile, ChangeBus changes) throws SQLException {
+        ConnectionPool pool = new ConnectionPool(url, profile);
+        try {
+            pool.writeAlone(statements -> {
+                LibrarySchema.migrator().migrate(statements.connection());
+                return null;
+            });
+        } catch (SQLException e) {
+            pool.close();
+            throw e;
+        }
+        return new LibraryService(pool, FeePolicy.fromSystemProperties(), changes,
+                                  HoldNotifier.fromSystemProperties());
+    }
+
+    public LibraryService(ConnectionPool pool, FeePolicy fees, ChangeBus changes, HoldNotifier notifier) {
+        this.pool = pool;
+        this.fees = fees;
+        this.changes = changes;
+        this.notifier = notifier;
+    }
+
+    public FeePolicy fees() {
+        return fees;
+    }
+
+    public HoldNotifier notifier() {
+        return notifier;
+    }
+
+    // A read-only connection for a caller that reads from a single thread,
+    // such as the table models on the desktop's data thread
+    public StatementCache pinnedReader() throws SQLException {
+        return pool.pinnedReader();
+    }
+
+    public AvailabilityCache availability() {
+        return availability;
+    }
+
+    // Runs on the writer between batches: every commit before it has already
+    // updated the cache, and none can land between its read and the swap
+    public void warmAvailability() throws SQLException {
+        writeAlone("warmAvailability", statements -> {
+            availability.warm(statements);
+            return null;
+        });
+    }
+
+    public void checkpoint() throws SQLException {
+        writeAlone("checkpoint", statements -> {
+            SqliteProfile.checkpoint(statements.connection());
+            return null;
+        });
+    }
+
+    public void checkQueryPlans(QueryPlanCheck check) throws SQLException {
+        read("checkQueryPlans", statements -> {
+            check.run(statements.connection());
+            return null;
+        });
+    }
+
+    // Bulk imports commit a chunk at a time as solo tasks on the writer, so
+    // other writes run between the chunks; see CatalogImporter
+    public CatalogImporter.Result importBooks(File file, CatalogImporter.Progress progress)
+            throws IOException, SQLException {
+        CatalogImporter.Result result = importAlone("importBooks", file, progress, true);
+        warmAvailability();
+        return result;
+    }
+
+    public CatalogImporter.Result importUsers(File file, CatalogImporter.Progress progress)
+            throws IOException, SQLException {
+        return importAlone("importUsers", file, progress, false);
+    }
+
+    // Books
+
+    public long addBook(String title, String author, String isbn, int copies) throws SQLException {
+        long bookId = write("addBook", statements -> {
+            String sql = "INSERT INTO books (title, author, isbn, total_copies, available_copies) " +
+                        "VALUES (?, ?, ?, ?, ?) RETURNING book_id";
+            PreparedStatement pstmt = statements.prepare(sql);
+            pstmt.setString(1, title);
+            pstmt.setString(2, author);
+            pstmt.setString(3, isbn);
+            pstmt.setInt(4, copies);
+            pstmt.setInt(5, copies);
+
+            long id = insertReturningKey(statements, pstmt);
+            CirculationJournal.record(statements, CirculationJournal.ADJUST, (int) id, null, null, copies);
+            return id;
+        }, id -> availability.put(id.intValue(), copies, copies));
+        changes.publish("books", ChangeBus.Kind.INSERTED, bookId);
+        return bookId;
+    }
+
+    // Returns false when there is no such book
+    public boolean updateBook(int bookId, String title, String author, String isbn, int copies) throws SQLException {
+        boolean updated = write("updateBook", statements -> {
+            String sql = "UPDATE books SET title=?, author=?, isbn=?, total_copies=? WHERE book_id=?";
+            PreparedStatement pstmt = statements.prepare(sql);
+            pstmt.setString(1, title);
+            pstmt.setString(2, author);
+            pstmt.setString(3, isbn);
+            pstmt.setInt(4, copies);
+            pstmt.setInt(5, bookId);
+
+            return pstmt.executeUpdate() > 0;
+        }, done -> {
+            if (done) {
+                availability.setTotal(bookId, copies);
+            }
+        });
+        if (updated) {
+            changes.publish("books", ChangeBus.Kind.UPDATED, bookId);
+        }
+        return updated;
+    }
+
+    public boolean deleteBook(int bookId) throws SQLException {
+        boolean deleted = write("deleteBook", statements -> {
+            PreparedStatement pstmt = statements.prepare("DELETE FROM books WHERE book_id=?");
+            pstmt.setInt(1, bookId);
+            return pstmt.executeUpdate() > 0;
+        }, done -> {
+            if (done) {
+                availability.remove(bookId);
+            }
+        });
+        if (deleted) {
+            changes.publish("books", ChangeBus.Kind.DELETED, bookId);
+        }
+        return deleted;
+    }
+
+    // Null when there is no such book
+    public Map<String, Object> getBook(int bookId) throws SQLException {
+        return read("getBook", statements -> {
+            PreparedStatement pstmt = statements.prepare(
+                    "SELECT book_id, title, author, isbn, total_copies, available_copies FROM books WHERE book_id=?");
+            pstmt.setInt(1, bookId);
+            List<Map<String, Object>> rows = readRows(statements, pstmt);
+            return rows.isEmpty() ? null : rows.get(0);
+        });
+    }
+
+    // Null when no book has the ISBN; a seek on its unique index
+    public Map<String, Object> findBookByIsbn(String isbn) throws SQLException {
+        return read("findBookByIsbn", statements -> {
+            PreparedStatement pstmt = statements.prepare(
+                    "SELECT book_id, title, author, isbn, total_copies, available_copies FROM books WHERE isbn=?");
+            pstmt.setString(1, isbn);
+            List<Map<String, Object>> rows = readRows(statements, pstmt);
+            return rows.isEmpty() ? null : rows.get(0);
+        });
+    }
+
+    // One keyset page of the catalog: books with an id above afterId
+    public List<Map<String, Object>> listBooks(long afterId, int limit) throws SQLException {
+        return read("listBooks", statements -> {
+            PreparedStatement pstmt = statements.prepare(
+                    "SELECT book_id, title, author, isbn, total_copies, available_copies FROM books " +
+                    "WHERE book_id > ? ORDER BY book_id LIMIT ?");
+            pstmt.setLong(1, afterId);
+            pstmt.setInt(2, limit);
+            return readRows(statements, pstmt);
+        });
+    }
+
+    public List<Object[]> searchBooks(String text, int limit) throws SQLException {
+        return read("searchBooks", statements -> BookSearch.search(statements, text, limit));
+    }
+
+    public List<PickerItem> bookPicks(String text, int limit) throws SQLException {
+        return read("bookPicks", statements -> BookSearch.availablePicks(statements, availability, text, limit));
+    }
+
+    // Users
+
+    public long addUser(String name, String email, String phone) throws SQLException {
+        long userId = write("addUser", statements -> {
+            String sql = "INSERT INTO users (name, email, phone) VALUES (?, ?, ?) RETURNING user_id";
+            PreparedStatement pstmt = statements.prepare(sql);
+            pstmt.setString(1, name);
+            pstmt.setString(2, email);
+            pstmt.setString(3, phone);
+
+            return insertReturningKey(statements, pstmt);
+        });
+        changes.publish("users", ChangeBus.Kind.INSERTED, userId);
+        return userId;
+    }
+
+    public boolean updateUser(int userId, String name, String email, String phone) throws SQLException {
+        boolean updated = write("updateUser", statements -> {
+            String sql = "UPDATE users SET name=?, email=?, phone=? WHERE user_id=?";
+            PreparedStatement pstmt = statements.prepare(sql);
+            pstmt.setString(1, name);
+            pstmt.setString(2, email);
+            pstmt.setString(3, phone);
+            pstmt.setInt(4, userId);
+
+            return pstmt.executeUpdate() > 0;
+        });
+        if (updated) {
+            changes.publish("users", ChangeBus.Kind.UPDATED, userId);
+        }
+        return updated;
+    }
+
+    public boolean deleteUser(int userId) throws SQLException {
+        boolean deleted = write("deleteUser", statements -> {
+            PreparedStatement pstmt = statements.prepare("DELETE FROM users WHERE user_id=?");
+            pstmt.setInt(1, userId);
+            return pstmt.executeUpdate() > 0;
+        });
+        if (deleted) {
+            changes.publish("users", ChangeBus.Kind.DELETED, userId);
+        }
+        return deleted;
+    }
+
+    public Map<String, Object> getUser(int userId) throws SQLException {
+        return read("getUser", statements -> {
+            PreparedStatement pstmt = statements.prepare(
+                    "SELECT user_id, name, email, phone FROM users WHERE user_id=?");
+            pstmt.setInt(1, userId);
+            List<Map<String, Object>> rows = readRows(statements, pstmt);
+            return rows.isEmpty() ? null : rows.get(0);
+        });
+    }
+
+    public List<Map<String, Object>> listUsers(long afterId, int limit) throws SQLException {
+        return read("listUsers", statements -> {
+            PreparedStatement pstmt = statements.prepare(
+                    "SELECT user_id, name, email, phone FROM users WHERE user_id > ? ORDER BY user_id LIMIT ?");
+            pstmt.setLong(1, afterId);
+            pstmt.setInt(2, limit);
+            return readRows(statements, pstmt);
+        });
+    }
+
+    public List<PickerItem> userPicks(String text, int limit) throws SQLException {
+        return read("userPicks", statements -> UserSearch.picks(statements, text, limit));
+    }
+
+    // Loans
+
+    // Null when no copy is left. The in-memory count answers the common
+    // case; the conditional decrement still guards against another caller
+    // taking the last copy first. A copy kept for the member's ready hold
+    // is not on the shelf, so it is looked for before giving up.
+    public Loan issueBook(int userId, int bookId) throws SQLException {
+        if (availability.available(bookId) == 0
+                && !read("hasReadyHold", statements -> HoldQueue.hasReadyHold(statements, userId, bookId))) {
+            return null;
+        }
+        // The writer wraps this in a savepoint, so the decrement and the loan
+        // row commit or roll back together
+        Loan loan = write("issueBook", statements -> {
+            long holdId = HoldQueue.claim(statements, userId, bookId);
+            // Take a copy only if one is left; the row count tells us whether
+            // we won it, so two desks can never hand out the last copy twice
+            PreparedStatement updateStmt = statements.prepare(TAKE_COPY_SQL);
+            updateStmt.setInt(1, bookId);
+            if (holdId == 0 && updateStmt.executeUpdate() == 0) {
+                return null;
+            }
+
+            LocalDate issueDate = LocalDate.now();
+            LocalDate dueDate = fees.dueDate(issueDate);
+
+            String sql = "INSERT INTO issued_books (book_id, user_id, issue_date, due_date) " +
+                        "VALUES (?, ?, ?, ?) RETURNING issue_id";
+            PreparedStatement pstmt = statements.prepare(sql);
+            pstmt.setInt(1, bookId);
+            pstmt.setInt(2, userId);
+            pstmt.setString(3, issueDate.toString());
+            pstmt.setString(4, dueDate.toString());
+            Loan issued = new Loan(insertReturningKey(statements, pstmt), dueDate, holdId);
+            CirculationStats.issued(statements, issueDate, bookId, userId);
+            // A claimed hold's copy was already off the shelf
+            CirculationJournal.record(statements, CirculationJournal.ISSUE, bookId, userId, issued.issueId,
+                                      holdId == 0 ? -1 : 0);
+            return issued;
+        }, issued -> {
+            if (issued != null && issued.holdId == 0) {
+                availability.adjust(bookId, -1);
+            }
+        });
+        if (loan != null) {
+            changes.publish("issued_books", ChangeBus.Kind.INSERTED, loan.issueId);
+            if (loan.holdId != 0) {
+                changes.publish("holds", ChangeBus.Kind.UPDATED, loan.holdId);
+            } else {
+                changes.publish("books", ChangeBus.Kind.UPDATED, bookId);
+            }
+        }
+        return loan;
+    }
+
+    // Null when the loan does not exist or was already returned. The late
+    // fee comes from the fee policy and the due date stored on the loan, and
+    // is kept in paise like every other fee figure.
+    public Return returnBook(int issueId) throws SQLException {
+        Return result = write("returnBook", statements -> {
+            // Only an open loan can be returned, which also stops the same
+            // loan from being checked in twice
+            PreparedStatement pstmt = statements.prepare(RETURN_LOAN_SQL);
+            LocalDate returnDate = LocalDate.now();
+            pstmt.setString(1, returnDate.toString());
+            pstmt.setInt(2, issueId);
+            int bookId;
+            int userId;
+            long lateFeePaise;
+            try (ResultSet rs = statements.query(pstmt)) {
+                if (!rs.next()) {
+                    return null;
+                }
+                bookId = rs.getInt("book_id");
+                userId = rs.getInt("user_id");
+                lateFeePaise = fees.feePaise(LocalDate.parse(rs.getString("due_date")), returnDate);
+            }
+
+            PreparedStatement feeStmt =
+                    statements.prepare("UPDATE issued_books SET late_fee_paise=? WHERE issue_id=?");
+            feeStmt.setLong(1, lateFeePaise);
+            feeStmt.setInt(2, issueId);
+            feeStmt.executeUpdate();
+            CirculationStats.returned(statements, returnDate, bookId, userId, lateFeePaise);
+
+            // The copy goes to the next hold on the book, or back on the shelf
+            HoldQueue.Notice hold = holds.releaseCopy(statements, bookId, returnDate);
+            CirculationJournal.record(statements, CirculationJournal.RETURN, bookId, userId, (long) issueId,
+                                      hold == null ? 1 : 0);
+            return new Return(bookId, lateFeePaise, hold);
+        }, returned -> {
+            if (returned != null) {
+                shelved(returned.bookId, returned.hold);
+            }
+        });
+        if (result != null) {
+            changes.publish("issued_books", ChangeBus.Kind.UPDATED, issueId);
+            copyReleased(result.bookId, result.hold);
+        }
+        return result;
+    }
+
+    // Holds
+
+    // Queues the member for a book with no copy on the shelf. Null when a
+    // copy is on the shelf (issue it instead), there is no such book, or
+    // the member already has a hold on it.
+    public HoldQueue.Placed placeHold(int userId, int bookId) throws SQLException {
+        HoldQueue.Placed placed = write("placeHold", statements -> holds.place(statements, userId, bookId));
+        if (placed != null) {
+            changes.publish("holds", ChangeBus.Kind.INSERTED, placed.holdId);
+        }
+        return placed;
+    }
+
+    // Returns false when the hold does not exist or has already ended. A
+    // ready hold's copy passes to the next member in the queue.
+    public boolean cancelHold(long holdId) throws SQLException {
+        HoldQueue.Release release = write("cancelHold",
+                statements -> holds.cancel(statements, holdId, LocalDate.now()), this::shelved);
+        if (release == null) {
+            return false;
+        }
+        holdReleased(release);
+        return true;
+    }
+
+    // Ends every ready hold not collected by its pickup date, passing each
+    // copy on; returns how many expired. Run daily, like runOverdue.
+    public int expireHolds(LocalDate today) throws SQLException {
+        return metrics.time("expireHolds", () -> {
+            int expired = 0;
+            for (long holdId : pool.read(statements -> HoldQueue.expiring(statements, today))) {
+                HoldQueue.Release release =
+                        pool.write(statements -> holds.expire(statements, holdId, today), this::shelved);
+                if (release != null) {
+                    holdReleased(release);
+                    expired++;
+                }
+            }
+            return expired;
+        });
+    }
+
+    // The waiting and ready holds on a book, head of the queue first
+    public List<Map<String, Object>> bookHolds(int bookId) throws SQLException {
+        return read("bookHolds", statements -> {
+            PreparedStatement pstmt = statements.prepare(HoldQueue.QUEUE_SQL);
+            pstmt.setInt(1, bookId);
+            return readRows(statements, pstmt);
+        });
+    }
+
+    // One keyset page of open loans with the book title and member name, the
+    // same join as the desktop's Issue/Return table. accrued_fee_paise is the
+    // latest overdue run's figure. Returned loans are only reachable through
+    // userHistory() and bookHistory().
+    public List<Map<String, Object>> listLoans(long afterId, int limit) throws SQLException {
+        return read("listLoans", statements -> {
+            PreparedStatement pstmt = statements.prepare(OPEN_LOANS_SQL);
+            pstmt.setLong(1, afterId);
+            pstmt.setInt(2, limit);
+            return readRows(statements, pstmt);
+        });
+    }
+
+    // A member's loans newest first, open, returned and archived alike, with
+    // issue_id below beforeId; archived is 1 for loans already moved to
+    // issued_books_archive
+    public List<Map<String, Object>> userHistory(int userId, long beforeId, int limit) throws SQLException {
+        return history("userHistory", "user_id", userId, beforeId, limit);
+    }
+
+    public List<Map<String, Object>> bookHistory(int bookId, long beforeId, int limit) throws SQLException {
+        return history("bookHistory", "book_id", bookId, beforeId, limit);
+    }
+
+    // Reports over the daily aggregates, for the days from first to last
+    // inclusive; see CirculationStats
+
+    public List<Map<String, Object>> popularTitles(LocalDate first, LocalDate last, int limit) throws SQLException {
+        return report("popularTitles", CirculationStats.POPULAR_TITLES_SQL, first, last, limit);
+    }
+
+    public List<Map<String, Object>> memberBorrowing(LocalDate first, LocalDate last, int limit)
+            throws SQLException {
+        return report("memberBorrowing", CirculationStats.MEMBER_BORROWING_SQL, first, last, limit);
+    }
+
+    public List<Map<String, Object>> utilization(LocalDate first, LocalDate last, int limit) throws SQLException {
+        return report("utilization", CirculationStats.UTILIZATION_SQL, first, last, limit);
+    }
+
+    // Issues, returns and late fees charged per day, newest first
+    public List<Map<String, Object>> dailyCirculation(LocalDate first, LocalDate last, int limit)
+            throws SQLException {
+        return report("dailyCirculation", CirculationStats.DAILY_SQL, first, last, limit);
+    }
+
+    // Recomputes the aggregates for the days from first to last from the
+    // loans themselves; returns the number of days rebuilt
+    public int rebuildReports(LocalDate first, LocalDate last, CirculationStats.Progress progress)
+            throws SQLException {
+        return metrics.time("rebuildReports", () -> CirculationStats.rebuild(pool, first, last, progress));
+    }
+
+    // Export and backup; see LibraryExporter. Both run on a reader, so
+    // issue and return carry on while they do.
+
+    public LibraryExporter.Result exportAll(File dir, LibraryExporter.Format format,
+                                            LibraryExporter.Progress progress) throws IOException, SQLException {
+        return timedIo("exportAll", () -> new LibraryExporter(pool).exportAll(dir, format, progress));
+    }
+
+    // Streams one table to the stream; returns the rows written
+    public long exportTable(String table, LibraryExporter.Format format, OutputStream out)
+            throws IOException, SQLException {
+        return timedIo("exportTable", () -> new LibraryExporter(pool).export(table, format, out));
+    }
+
+    // Writes a consistent copy of the database to a file that must not
+    // exist yet; returns the milliseconds it took
+    public long backup(File target) throws IOException, SQLException {
+        return timedIo("backup", () -> new LibraryExporter(pool).backup(target));
+    }
+
+    // Circulation journal; see CirculationJournal
+
+    // Records every book's count as the new starting point for replay,
+    // keeping the previous -Dlibrary.journal.keep_snapshots (2) snapshots
+    public CirculationJournal.Snapshot snapshotAvailability() throws SQLException {
+        int keep = Integer.getInteger("library.journal.keep_snapshots", 2);
+        return write("snapshotAvailability", statements -> CirculationJournal.snapshot(statements, keep));
+    }
+
+    // Rebuilds every book's count from the latest snapshot and the journal
+    // since; with apply, books that disagree are corrected and the cache
+    // reloaded
+    public CirculationJournal.Result replayJournal(boolean apply) throws SQLException {
+        CirculationJournal.Result result =
+                metrics.time("replayJournal", () -> CirculationJournal.replay(pool, apply));
+        if (result.applied) {
+            warmAvailability();
+        }
+        return result;
+    }
+
+    // Moves loans returned before the cutoff to issued_books_archive; see
+    // ArchiveEngine
+    public ArchiveEngine.Result archiveLoans(LocalDate cutoff, ArchiveEngine.Progress progress) throws SQLException {
+        return metrics.time("archiveLoans", () -> new ArchiveEngine(pool).run(cutoff, progress));
+    }
+
+    // Records the fine accrued as of the given date on every overdue open
+    // loan; see OverdueEngine
+    public OverdueEngine.Result runOverdue(LocalDate asOf, OverdueEngine.Progress progress) throws SQLException {
+        return metrics.time("runOverdue", () -> new OverdueEngine(pool, fees).run(asOf, progress));
+    }
+
+    @Override
+    public void close() throws SQLException {
+        pool.close();
+    }
+
+    private void holdReleased(HoldQueue.Release release) {
+        changes.publish("holds", ChangeBus.Kind.UPDATED, release.holdId);
+        if (release.hadCopy) {
+            copyReleased(release.bookId, release.next);
+        }
+    }
+
+    // On the writer as the release commits: a copy that went back on the
+    // shelf rather than to a hold counts as available again
+    private void shelved(HoldQueue.Release release) {
+        if (release != null && release.hadCopy) {
+            shelved(release.bookId, release.next);
+        }
+    }
+
+    private void shelved(int bookId, HoldQueue.Notice hold) {
+        if (hold == null) {
+            availability.adjust(bookId, 1);
+        }
+    }
+
+    // After the commit: a copy either went to a hold, whose member is told,
+    // or back on the shelf
+    private void copyReleased(int bookId, HoldQueue.Notice hold) {
+        if (hold == null) {
+            changes.publish("books", ChangeBus.Kind.UPDATED, bookId);
+        } else {
+            changes.publish("holds", ChangeBus.Kind.UPDATED, hold.holdId);
+            notifier.holdReady(hold);
+        }
+    }
+
+    private interface IoWork<T> {
+        T run() throws IOException, SQLException;
+    }
+
+    // Metrics.time() for work that can also fail with an IOException
+    private <T> T timedIo(String operation, IoWork<T> work) throws IOException, SQLException {
+        try {
+            return metrics.time(operation, () -> {
+                try {
+                    return work.run();
+                } catch (IOException e) {
+                    throw new UncheckedIOException(e);
+                }
+            });
+        } catch (UncheckedIOException e) {
+            throw e.getCause();
+        }
+    }
+
+    private CatalogImporter.Result importAlone(String operation, File file, CatalogImporter.Progress progress,
+                                               boolean books) throws IOException, SQLException {
+        CatalogImporter importer = new CatalogImporter(pool);
+        return timedIo(operation, () -> books ? importer.importBooks(file, progress)
+                                              : importer.importUsers(file, progress));
+    }
+
+    // Both halves of the UNION use their table's (column, issue_id) index
+    static String historyQuery(String column) {
+        String loanColumns = "issue_id, book_id, user_id, issue_date, due_date, return_date, late_fee_paise";
+        return "SELECT h.issue_id, h.book_id, b.title, h.user_id, u.name, h.issue_date, h.due_date, " +
+               "h.return_date, h.late_fee_paise, h.archived FROM (" +
+               "SELECT " + loanColumns + ", 0 AS archived FROM issued_books " +
+               "WHERE " + column + " = ? AND issue_id < ? " +
+               "UNION ALL " +
+               "SELECT " + loanColumns + ", 1 FROM issued_books_archive " +
+               "WHERE " + column + " = ? AND issue_id < ?) h " +
+               "LEFT JOIN books b ON b.book_id = h.book_id " +
+               "LEFT JOIN users u ON u.user_id = h.user_id " +
+               "ORDER BY h.issue_id DESC LIMIT ?";
+    }
+
+    private List<Map<String, Object>> history(String operation, String column, int id, long beforeId, int limit)
+            throws SQLException {
+        return read(operation, statements -> {
+            PreparedStatement pstmt = statements.prepare(historyQuery(column));
+            pstmt.setInt(1, id);
+            pstmt.setLong(2, beforeId);
+            pstmt.setInt(3, id);
+            pstmt.setLong(4, beforeId);
+            pstmt.setInt(5, limit);
+            return readRows(statements, pstmt);
+        });
+    }
+
+    private List<Map<String, Object>> report(String operation, String sql, LocalDate first, LocalDate last,
+                                             int limit) throws SQLException {
+        return read(operation, statements -> {
+            PreparedStatement pstmt = statements.prepare(sql);
+            pstmt.setString(1, first.toString());
+            pstmt.setString(2, last.toString());
+            pstmt.setInt(3, limit);
+            return readRows(statements, pstmt);
+        });
+    }
+
+    private <T> T read(String operation, ConnectionPool.Work<T> work) throws SQLException {
+        return metrics.time(operation, () -> pool.read(work));
+    }
+
+    // Timed from the caller's side, so the time spent queued behind other
+    // writes and waiting for the group commit is included
+    private <T> T write(String operation, ConnectionPool.Work<T> work) throws SQLException {
+        return metrics.time(operation, () -> pool.write(work));
+    }
+
+    private <T> T write(String operation, ConnectionPool.Work<T> work, ConnectionPool.Committed<T> committed)
+            throws SQLException {
+        return metrics.time(operation, () -> pool.write(work, committed));
+    }
+
+    private <T> T writeAlone(String operation, ConnectionPool.Work<T> work) throws SQLException {
+        return metrics.time(operation, () -> pool.writeAlone(work));
+    }
+
+    // The SQLite driver does not implement getGeneratedKeys(), so inserts
+    // read their new key back with RETURNING instead
+    private static long insertReturningKey(StatementCache statements, PreparedStatement pstmt) throws SQLException {
+        try (ResultSet keys = statements.query(pstmt)) {
+            return keys.next() ? keys.getLong(1) : -1;
+        }
+    }
+
+    private static List<Map<String, Object>> readRows(StatementCache statements, PreparedStatement pstmt)
+            throws SQLException {
+        List<Map<String, Object>> rows = new ArrayList<>();
+        try (ResultSet rs = statements.query(pstmt)) {
+            ResultSetMetaData meta = rs.getMetaData();
+            while (rs.next()) {
+                Map<String, Object> row = new LinkedHashMap<>();
+                for (int i = 1; i <= meta.getColumnCount(); i++) {
+                    row.put(meta.getColumnLabel(i), rs.getObject(i));
+                }
+                rows.add(row);
+            }
+        }
+        return rows;
+    }
+}
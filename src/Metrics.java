@@ -0,0 +1,396 @@
+import java.io.File;
+import java.io.IOException;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.sql.SQLException;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+
+// Process-wide latency and row counts for the library's database work.
+//
+// Each operation (a LibraryService method such as "issueBook", or a table
+// load such as "table:issued") gets a latency histogram of the whole call
+// and an error count. Every SQL statement run while an operation is in
+// progress is also timed and counted under that operation: StatementCache
+// does this for every statement it hands out, and the connection pool
+// carries the operation across to the writer thread. Swing event dispatch
+// time is recorded separately by EdtMonitor. Each open ConnectionPool is
+// tracked too, for its statement cache hits, prepares and open cursors.
+//
+// The numbers are shown in the Diagnostics tab, published over JMX by
+// MetricsMBean and written as Prometheus text by dump().
+public class Metrics {
+    private static final Metrics GLOBAL = new Metrics();
+
+    // Statements run outside any operation are counted under this name
+    static final String NO_OPERATION = "other";
+
+    private static final double[] PERCENTILES = {50, 90, 99, 99.9};
+    private static final String[] QUANTILES = {"0.5", "0.9", "0.99", "0.999"};
+
+    public interface Operation<T> {
+        T run() throws SQLException;
+    }
+
+    public static class Stats {
+        private final LatencyHistogram latency = new LatencyHistogram();
+        private final LongAdder rows = new LongAdder();
+        private final LongAdder errors = new LongAdder();
+        // Rows read or changed by a statement also count toward the
+        // operation that ran it
+        private final Stats parent;
+        private volatile String lastError;
+
+        Stats(Stats parent) {
+            this.parent = parent;
+        }
+
+        public void record(long nanos, long rowCount) {
+            latency.record(nanos);
+            addRows(rowCount);
+        }
+
+        public void failed(Throwable e) {
+            errors.increment();
+            lastError = e.getClass().getSimpleName() + ": " + e.getMessage();
+        }
+
+        public LatencyHistogram latency() {
+            return latency;
+        }
+
+        public long calls() {
+            return latency.count();
+        }
+
+        public long rows() {
+            return rows.sum();
+        }
+
+        public long errors() {
+            return errors.sum();
+        }
+
+        // Null until the first failure
+        public String lastError() {
+            return lastError;
+        }
+
+        private void addRows(long rowCount) {
+            if (rowCount > 0) {
+                rows.add(rowCount);
+                if (parent != null) {
+                    parent.addRows(rowCount);
+                }
+            }
+        }
+
+        void reset() {
+            latency.reset();
+            rows.reset();
+            errors.reset();
+            lastError = null;
+        }
+    }
+
+    private final Map<String, Stats> operations = new ConcurrentHashMap<>();
+    private final Map<String, Map<String, Stats>> statements = new ConcurrentHashMap<>();
+    private final ThreadLocal<String> current = new ThreadLocal<>();
+    private final Stats edt = new Stats(null);
+    private final LongAdder edtBlockedNanos = new LongAdder();
+    private final LongAdder edtStalls = new LongAdder();
+    private final long edtStallNanos =
+            TimeUnit.MILLISECONDS.toNanos(Long.getLong("library.metrics.edt_stall_ms", 100));
+    private final Set<ConnectionPool> pools = ConcurrentHashMap.newKeySet();
+    // Hits and prepares of pools already closed, and the totals at the last
+    // reset, so the counts neither drop when a pool closes nor need the
+    // caches themselves zeroed
+    private final long[] closedCounts = new long[2];
+    private final long[] countsAtReset = new long[2];
+    private ScheduledExecutorService dumper;
+
+    public static Metrics global() {
+        return GLOBAL;
+    }
+
+    // Runs the work as the named operation, timing it and counting it as an
+    // error if it throws
+    public <T> T time(String operation, Operation<T> work) throws SQLException {
+        Stats stats = operation(operation);
+        String previous = enter(operation);
+        long start = System.nanoTime();
+        try {
+            T result = work.run();
+            stats.record(System.nanoTime() - start, 0);
+            return result;
+        } catch (SQLException | RuntimeException e) {
+            stats.record(System.nanoTime() - start, 0);
+            stats.failed(e);
+            throw e;
+        } finally {
+            restore(previous);
+        }
+    }
+
+    // The operation in progress on this thread, or null
+    public String current() {
+        return current.get();
+    }
+
+    // Makes the operation current on this thread and returns the one it
+    // replaces, for restore(). Used to carry an operation to another thread.
+    public String enter(String operation) {
+        String previous = current.get();
+        current.set(operation);
+        return previous;
+    }
+
+    public void restore(String previous) {
+        if (previous == null) {
+            current.remove();
+        } else {
+            current.set(previous);
+        }
+    }
+
+    public Stats operation(String name) {
+        return operations.computeIfAbsent(name, n -> new Stats(null));
+    }
+
+    public Stats statement(String operation, String sql) {
+        String name = operation == null ? NO_OPERATION : operation;
+        return statements.computeIfAbsent(name, n -> new ConcurrentHashMap<>())
+                .computeIfAbsent(sql, s -> new Stats(operation(name)));
+    }
+
+    // One Swing event's dispatch time; anything over the stall threshold
+    // (-Dlibrary.metrics.edt_stall_ms, 100 by default) counts as time the
+    // window could not repaint or respond
+    public void recordEdt(long nanos) {
+        edt.record(nanos, 0);
+        if (nanos >= edtStallNanos) {
+            edtStalls.increment();
+            edtBlockedNanos.add(nanos);
+        }
+    }
+
+    public Stats edt() {
+        return edt;
+    }
+
+    public long edtStalls() {
+        return edtStalls.sum();
+    }
+
+    public long edtBlockedNanos() {
+        return edtBlockedNanos.sum();
+    }
+
+    public void track(ConnectionPool pool) {
+        pools.add(pool);
+    }
+
+    public void untrack(ConnectionPool pool) {
+        if (pools.remove(pool)) {
+            long[] counts = pool.statementCounts();
+            synchronized (closedCounts) {
+                closedCounts[0] += counts[0];
+                closedCounts[1] += counts[1];
+            }
+        }
+    }
+
+    // Statements handed back from a cache rather than prepared, since the
+    // last reset
+    public long statementCacheHits() {
+        return statementCounts()[0];
+    }
+
+    public long statementPrepares() {
+        return statementCounts()[1];
+    }
+
+    // Result sets open right now across every pool; a number that keeps
+    // climbing means one is not being closed
+    public long openCursors() {
+        return statementCounts()[2];
+    }
+
+    private long[] statementCounts() {
+        long[] counts = new long[3];
+        for (ConnectionPool pool : pools) {
+            long[] poolCounts = pool.statementCounts();
+            for (int i = 0; i < counts.length; i++) {
+                counts[i] += poolCounts[i];
+            }
+        }
+        synchronized (closedCounts) {
+            counts[0] += closedCounts[0] - countsAtReset[0];
+            counts[1] += closedCounts[1] - countsAtReset[1];
+        }
+        return counts;
+    }
+
+    // Sorted copies, for reporting
+    public Map<String, Stats> operations() {
+        return new TreeMap<>(operations);
+    }
+
+    public Map<String, Stats> statements(String operation) {
+        Map<String, Stats> byOperation = statements.get(operation);
+        return byOperation == null ? new TreeMap<>() : new TreeMap<>(byOperation);
+    }
+
+    // Zeroes every count in place; statements keep their Stats objects, so
+    // nothing recorded after the reset is lost
+    public void reset() {
+        operations.values().forEach(Stats::reset);
+        statements.values().forEach(byOperation -> byOperation.values().forEach(Stats::reset));
+        edt.reset();
+        edtBlockedNanos.reset();
+        edtStalls.reset();
+        long[] counts = statementCounts();
+        synchronized (closedCounts) {
+            countsAtReset[0] += counts[0];
+            countsAtReset[1] += counts[1];
+        }
+    }
+
+    // Prometheus text exposition format, version 0.0.4
+    public void writePrometheus(Appendable out) throws IOException {
+        Map<String, Stats> ops = operations();
+
+        header(out, "library_operation_seconds", "summary", "Latency of library operations");
+        for (Map.Entry<String, Stats> op : ops.entrySet()) {
+            summary(out, "library_operation_seconds", label("operation", op.getKey()), op.getValue());
+        }
+        header(out, "library_operation_rows_total", "counter", "Rows read or written by library operations");
+        for (Map.Entry<String, Stats> op : ops.entrySet()) {
+            sample(out, "library_operation_rows_total", label("operation", op.getKey()), op.getValue().rows());
+        }
+        header(out, "library_operation_errors_total", "counter", "Library operations that failed");
+        for (Map.Entry<String, Stats> op : ops.entrySet()) {
+            sample(out, "library_operation_errors_total", label("operation", op.getKey()), op.getValue().errors());
+        }
+
+        header(out, "library_sql_seconds", "summary", "Latency of SQL statements, by operation");
+        for (String op : ops.keySet()) {
+            for (Map.Entry<String, Stats> sql : statements(op).entrySet()) {
+                summary(out, "library_sql_seconds",
+                        label("operation", op) + "," + label("sql", sql.getKey()), sql.getValue());
+            }
+        }
+        header(out, "library_sql_rows_total", "counter", "Rows read or changed by SQL statements, by operation");
+        for (String op : ops.keySet()) {
+            for (Map.Entry<String, Stats> sql : statements(op).entrySet()) {
+                sample(out, "library_sql_rows_total",
+                       label("operation", op) + "," + label("sql", sql.getKey()), sql.getValue().rows());
+            }
+        }
+        header(out, "library_sql_errors_total", "counter", "SQL statements that failed, by operation");
+        for (String op : ops.keySet()) {
+            for (Map.Entry<String, Stats> sql : statements(op).entrySet()) {
+                sample(out, "library_sql_errors_total",
+                       label("operation", op) + "," + label("sql", sql.getKey()), sql.getValue().errors());
+            }
+        }
+
+        long[] counts = statementCounts();
+        header(out, "library_statement_cache_hits_total", "counter",
+               "Prepared statements reused from a connection's cache");
+        out.append("library_statement_cache_hits_total ").append(Long.toString(counts[0])).append('\n');
+        header(out, "library_statement_prepares_total", "counter", "Statements prepared because none was cached");
+        out.append("library_statement_prepares_total ").append(Long.toString(counts[1])).append('\n');
+        header(out, "library_open_cursors", "gauge", "Result sets open across the connection pools");
+        out.append("library_open_cursors ").append(Long.toString(counts[2])).append('\n');
+
+        header(out, "library_edt_dispatch_seconds", "summary", "Time the Swing event thread spent on each event");
+        summary(out, "library_edt_dispatch_seconds", "", edt);
+        header(out, "library_edt_blocked_seconds_total", "counter",
+               "Event thread time spent in events that stalled the window");
+        out.append("library_edt_blocked_seconds_total ").append(seconds(edtBlockedNanos())).append('\n');
+        header(out, "library_edt_stalls_total", "counter", "Events that stalled the window");
+        out.append("library_edt_stalls_total ").append(Long.toString(edtStalls())).append('\n');
+    }
+
+    // Writes the Prometheus text to the file, replacing it in one step so a
+    // scraper never reads half a dump
+    public void dump(File file) throws IOException {
+        File dir = file.getAbsoluteFile().getParentFile();
+        File temp = File.createTempFile(file.getName(), ".tmp", dir);
+        try {
+            try (Writer out = Files.newBufferedWriter(temp.toPath(), StandardCharsets.UTF_8)) {
+                writePrometheus(out);
+            }
+            Files.move(temp.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING,
+                       StandardCopyOption.ATOMIC_MOVE);
+        } finally {
+            temp.delete();
+        }
+    }
+
+    // Dumps to the file every so many seconds on a daemon thread, and once
+    // more at exit. The file and period come from -Dlibrary.metrics.file
+    // (library-metrics.prom) and -Dlibrary.metrics.dump_seconds (60, 0 to
+    // turn dumping off).
+    public synchronized void startDumping() {
+        int seconds = Integer.getInteger("library.metrics.dump_seconds", 60);
+        if (dumper != null || seconds <= 0) {
+            return;
+        }
+        File file = new File(System.getProperty("library.metrics.file", "library-metrics.prom"));
+        dumper = Executors.newSingleThreadScheduledExecutor(r -> {
+            Thread t = new Thread(r, "library-metrics");
+            t.setDaemon(true);
+            return t;
+        });
+        dumper.scheduleWithFixedDelay(() -> dumpQuietly(file), seconds, seconds, TimeUnit.SECONDS);
+        Runtime.getRuntime().addShutdownHook(new Thread(() -> dumpQuietly(file), "library-metrics-exit"));
+    }
+
+    private static void dumpQuietly(File file) {
+        try {
+            GLOBAL.dump(file);
+        } catch (IOException e) {
+            System.err.println("Could not write metrics to " + file + ": " + e.getMessage());
+        }
+    }
+
+    private static void header(Appendable out, String name, String type, String help) throws IOException {
+        out.append("# HELP ").append(name).append(' ').append(help).append('\n');
+        out.append("# TYPE ").append(name).append(' ').append(type).append('\n');
+    }
+
+    private static void summary(Appendable out, String name, String labels, Stats stats) throws IOException {
+        long[] values = stats.latency().percentiles(PERCENTILES);
+        String prefix = labels.isEmpty() ? "" : labels + ",";
+        for (int i = 0; i < QUANTILES.length; i++) {
+            out.append(name).append('{').append(prefix)
+               .append("quantile=\"").append(QUANTILES[i]).append("\"} ")
+               .append(seconds(values[i])).append('\n');
+        }
+        String braced = labels.isEmpty() ? "" : "{" + labels + "}";
+        out.append(name).append("_sum").append(braced).append(' ').append(seconds(stats.latency().sumNanos())).append('\n');
+        out.append(name).append("_count").append(braced).append(' ').append(Long.toString(stats.calls())).append('\n');
+    }
+
+    private static void sample(Appendable out, String name, String labels, long value) throws IOException {
+        out.append(name).append('{').append(labels).append("} ").append(Long.toString(value)).append('\n');
+    }
+
+    private static String label(String name, String value) {
+        return name + "=\"" + value.replace("\\", "\\\\").replace("\"", "\\\"").replace("\n", "\\n") + "\"";
+    }
+
+    private static String seconds(long nanos) {
+        return Double.toString(nanos / 1e9);
+    }
+}
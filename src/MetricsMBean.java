@@ -0,0 +1,193 @@
+import javax.management.Attribute;
+import javax.management.AttributeList;
+import javax.management.AttributeNotFoundException;
+import javax.management.DynamicMBean;
+import javax.management.JMException;
+import javax.management.MBeanAttributeInfo;
+import javax.management.MBeanInfo;
+import javax.management.MBeanOperationInfo;
+import javax.management.MBeanParameterInfo;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+import javax.management.ReflectionException;
+import java.io.File;
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+
+// Publishes Metrics over JMX as library:type=Metrics, for JConsole or
+// VisualVM attached to a running desk or server. Operations come and go as
+// they are first used, so the attributes are worked out on each request:
+// <operation>.calls, .errors, .rows, .p50Millis, .p99Millis and .maxMillis
+// for every operation, plus edt.dispatches, edt.p99Millis, edt.stalls and
+// edt.blockedMillis. The reset, prometheus and dump operations mirror the
+// Diagnostics tab's buttons.
+public class MetricsMBean implements DynamicMBean {
+    private static final String OBJECT_NAME = "library:type=Metrics";
+    private static final String[] FIELDS = {"calls", "errors", "rows", "p50Millis", "p99Millis", "maxMillis"};
+    private static final String[] EDT_FIELDS = {"dispatches", "p99Millis", "stalls", "blockedMillis"};
+    private static final String[] STATEMENT_FIELDS = {"cacheHits", "prepares", "openCursors"};
+
+    private final Metrics metrics;
+
+    public MetricsMBean(Metrics metrics) {
+        this.metrics = metrics;
+    }
+
+    // Registers the bean on the platform MBean server; a second call is a
+    // no-op
+    public static void register(Metrics metrics) {
+        try {
+            MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+            ObjectName name = new ObjectName(OBJECT_NAME);
+            if (!server.isRegistered(name)) {
+                server.registerMBean(new MetricsMBean(metrics), name);
+            }
+        } catch (JMException e) {
+            System.err.println("Could not register " + OBJECT_NAME + ": " + e.getMessage());
+        }
+    }
+
+    @Override
+    public Object getAttribute(String attribute) throws AttributeNotFoundException {
+        int dot = attribute.lastIndexOf('.');
+        if (dot <= 0) {
+            throw new AttributeNotFoundException(attribute);
+        }
+        String owner = attribute.substring(0, dot);
+        String field = attribute.substring(dot + 1);
+        if (owner.equals("edt")) {
+            switch (field) {
+                case "dispatches":
+                    return metrics.edt().calls();
+                case "p99Millis":
+                    return millis(metrics.edt().latency().percentile(99));
+                case "stalls":
+                    return metrics.edtStalls();
+                case "blockedMillis":
+                    return millis(metrics.edtBlockedNanos());
+                default:
+                    throw new AttributeNotFoundException(attribute);
+            }
+        }
+        if (owner.equals("statements")) {
+            switch (field) {
+                case "cacheHits":
+                    return metrics.statementCacheHits();
+                case "prepares":
+                    return metrics.statementPrepares();
+                case "openCursors":
+                    return metrics.openCursors();
+                default:
+                    throw new AttributeNotFoundException(attribute);
+            }
+        }
+        Metrics.Stats stats = metrics.operations().get(owner);
+        if (stats == null) {
+            throw new AttributeNotFoundException(attribute);
+        }
+        switch (field) {
+            case "calls":
+                return stats.calls();
+            case "errors":
+                return stats.errors();
+            case "rows":
+                return stats.rows();
+            case "p50Millis":
+                return millis(stats.latency().percentile(50));
+            case "p99Millis":
+                return millis(stats.latency().percentile(99));
+            case "maxMillis":
+                return millis(stats.latency().maxNanos());
+            default:
+                throw new AttributeNotFoundException(attribute);
+        }
+    }
+
+    @Override
+    public void setAttribute(Attribute attribute) throws AttributeNotFoundException {
+        throw new AttributeNotFoundException(attribute.getName() + " is read-only");
+    }
+
+    @Override
+    public AttributeList getAttributes(String[] attributes) {
+        AttributeList list = new AttributeList();
+        for (String attribute : attributes) {
+            try {
+                list.add(new Attribute(attribute, getAttribute(attribute)));
+            } catch (AttributeNotFoundException e) {
+                // Left out, as the DynamicMBean contract asks
+            }
+        }
+        return list;
+    }
+
+    @Override
+    public AttributeList setAttributes(AttributeList attributes) {
+        return new AttributeList();
+    }
+
+    @Override
+    public Object invoke(String actionName, Object[] params, String[] signature) throws ReflectionException {
+        switch (actionName) {
+            case "reset":
+                metrics.reset();
+                return null;
+            case "prometheus":
+                StringBuilder text = new StringBuilder();
+                try {
+                    metrics.writePrometheus(text);
+                } catch (IOException e) {
+                    throw new ReflectionException(e);
+                }
+                return text.toString();
+            case "dump":
+                File file = new File((String) params[0]);
+                try {
+                    metrics.dump(file);
+                } catch (IOException e) {
+                    throw new ReflectionException(e);
+                }
+                return file.getAbsolutePath();
+            default:
+                throw new ReflectionException(new NoSuchMethodException(actionName));
+        }
+    }
+
+    @Override
+    public MBeanInfo getMBeanInfo() {
+        List<MBeanAttributeInfo> attributes = new ArrayList<>();
+        for (Map.Entry<String, Metrics.Stats> op : metrics.operations().entrySet()) {
+            for (String field : FIELDS) {
+                attributes.add(attribute(op.getKey() + "." + field, field.endsWith("Millis")));
+            }
+        }
+        for (String field : EDT_FIELDS) {
+            attributes.add(attribute("edt." + field, field.endsWith("Millis")));
+        }
+        for (String field : STATEMENT_FIELDS) {
+            attributes.add(attribute("statements." + field, false));
+        }
+        MBeanOperationInfo[] operations = {
+            new MBeanOperationInfo("reset", "Zero every count", new MBeanParameterInfo[0],
+                    "void", MBeanOperationInfo.ACTION),
+            new MBeanOperationInfo("prometheus", "All metrics as Prometheus text", new MBeanParameterInfo[0],
+                    "java.lang.String", MBeanOperationInfo.INFO),
+            new MBeanOperationInfo("dump", "Write the Prometheus text to a file",
+                    new MBeanParameterInfo[] {new MBeanParameterInfo("file", "java.lang.String", "File to write")},
+                    "java.lang.String", MBeanOperationInfo.ACTION)
+        };
+        return new MBeanInfo(getClass().getName(), "Library database and event thread metrics",
+                attributes.toArray(new MBeanAttributeInfo[0]), null, operations, null);
+    }
+
+    private static MBeanAttributeInfo attribute(String name, boolean millis) {
+        return new MBeanAttributeInfo(name, millis ? "double" : "long", name, true, false, false);
+    }
+
+    private static double millis(long nanos) {
+        return nanos / 1e6;
+    }
+}
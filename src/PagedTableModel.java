@@ -0,0 +1,344 @@
+import javax.swing.table.AbstractTableModel;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.function.Supplier;
+
+// Table model that only knows its row count up front and pulls fixed-size
+// pages of rows from the database as the JTable asks for them. Pages are
+// read with keyset pagination and kept in a small LRU, so memory stays flat
+// however large the underlying table grows. Every read is timed in Metrics
+// as the operation "table:<name>". An optional filter limits the model to
+// the rows matching a WHERE condition, such as open loans only.
+public class PagedTableModel extends AbstractTableModel implements ChangeBus.Listener {
+    private static final int PAGE_SIZE = 200;
+    private static final int MAX_CACHED_PAGES = 10;
+
+    private final String name;
+    private final String[] columns;
+    private final String selectColumns;
+    private final String from;
+    // SQL condition every row must match, or null for the whole table
+    private final String filter;
+    private final String keyColumn;
+    private final DataExecutor data;
+    private final Supplier<StatementCache> statements;
+    private final String operation;
+
+    private final Map<Integer, Object[][]> pages = new LinkedHashMap<Integer, Object[][]>(16, 0.75f, true) {
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<Integer, Object[][]> eldest) {
+            return size() > MAX_CACHED_PAGES;
+        }
+    };
+    // Key of the last row before each page, learned as pages are read
+    private final Map<Integer, Long> pageAfterKeys = new HashMap<>();
+    // Pages being fetched, each with a token so a fetch made stale by a row
+    // change or refresh is dropped when it lands
+    private final Map<Integer, Object> loading = new HashMap<>();
+    private int rowCount;
+    private int generation;
+
+    // The key column must be the first selected column
+    public PagedTableModel(String name, String[] columns, String selectColumns, String from,
+                           String keyColumn, DataExecutor data, Supplier<StatementCache> statements) {
+        this(name, columns, selectColumns, from, null, keyColumn, data, statements);
+    }
+
+    public PagedTableModel(String name, String[] columns, String selectColumns, String from, String filter,
+                           String keyColumn, DataExecutor data, Supplier<StatementCache> statements) {
+        this.name = name;
+        this.columns = columns;
+        this.selectColumns = selectColumns;
+        this.from = from;
+        this.filter = filter;
+        this.keyColumn = keyColumn;
+        this.data = data;
+        this.statements = statements;
+        this.operation = "table:" + name;
+    }
+
+    public void refresh() {
+        data.submit(name + "-count", timed(() -> {
+            StatementCache cache = statements.get();
+            try (ResultSet rs = cache.query(cache.prepare("SELECT COUNT(*) FROM " + from +
+                    (filter == null ? "" : " WHERE " + filter)))) {
+                return rs.next() ? rs.getInt(1) : 0;
+            }
+        }), count -> {
+            generation++;
+            rowCount = count;
+            pages.clear();
+            pageAfterKeys.clear();
+            loading.clear();
+            fireTableDataChanged();
+        }, Exception::printStackTrace);
+    }
+
+    // Returns the row if its page is already loaded, otherwise null
+    public Object[] getRow(int row) {
+        if (row < 0 || row >= rowCount) {
+            return null;
+        }
+        Object[][] page = pages.get(row / PAGE_SIZE);
+        if (page == null) {
+            requestPage(row / PAGE_SIZE);
+            return null;
+        }
+        int offset = row % PAGE_SIZE;
+        return offset < page.length ? page[offset] : null;
+    }
+
+    @Override
+    public int getRowCount() {
+        return rowCount;
+    }
+
+    @Override
+    public int getColumnCount() {
+        return columns.length;
+    }
+
+    @Override
+    public String getColumnName(int column) {
+        return columns[column];
+    }
+
+    @Override
+    public boolean isCellEditable(int row, int column) {
+        return false;
+    }
+
+    @Override
+    public Object getValueAt(int row, int column) {
+        Object[] values = getRow(row);
+        return values == null ? null : values[column];
+    }
+
+    // Row-level patching driven by ChangeBus: only the touched rows are read
+    // back, and only the affected pages are dropped from the cache
+    @Override
+    public void changed(ChangeBus.Kind kind, long[] keys) {
+        for (long key : keys) {
+            switch (kind) {
+                case INSERTED:
+                    rowInserted(key);
+                    break;
+                case UPDATED:
+                    rowUpdated(key);
+                    break;
+                case DELETED:
+                    rowDeleted(key);
+                    break;
+            }
+        }
+    }
+
+    private void rowInserted(long key) {
+        int requestGeneration = generation;
+        data.submit(timed(() -> {
+            Object[] row = fetchRow(key);
+            // New keys normally sort last; only look up the position otherwise
+            int position = row == null || !hasKeyAfter(key) ? -1 : countKeysBefore(key);
+            return new Object[] {row, position};
+        }), result -> {
+            Object[] row = (Object[]) result[0];
+            int position = (int) result[1];
+            if (requestGeneration != generation || row == null) {
+                return;
+            }
+            if (position < 0) {
+                position = rowCount;
+                Object[][] last = pages.get(position / PAGE_SIZE);
+                if (last != null && last.length == position % PAGE_SIZE) {
+                    Object[][] grown = new Object[last.length + 1][];
+                    System.arraycopy(last, 0, grown, 0, last.length);
+                    grown[last.length] = row;
+                    pages.put(position / PAGE_SIZE, grown);
+                }
+                rowCount++;
+            } else {
+                rowCount++;
+                invalidateFrom(position / PAGE_SIZE);
+            }
+            fireTableRowsInserted(position, position);
+        }, Exception::printStackTrace);
+    }
+
+    private void rowUpdated(long key) {
+        int requestGeneration = generation;
+        data.submit(timed(() -> {
+            Object[] row = fetchRow(key);
+            return row == null ? new Object[0] : row;
+        }), row -> {
+            if (requestGeneration != generation) {
+                return;
+            }
+            if (row.length == 0) {
+                // The row no longer matches this view (for example a join
+                // partner went away), so treat it as removed
+                rowDeleted(key);
+                return;
+            }
+            for (Map.Entry<Integer, Object[][]> entry : pages.entrySet()) {
+                Object[][] page = entry.getValue();
+                for (int i = 0; i < page.length; i++) {
+                    if (((Number) page[i][0]).longValue() == key) {
+                        page[i] = row;
+                        int position = entry.getKey() * PAGE_SIZE + i;
+                        fireTableRowsUpdated(position, position);
+                        return;
+                    }
+                }
+            }
+        }, Exception::printStackTrace);
+    }
+
+    private void rowDeleted(long key) {
+        for (Map.Entry<Integer, Object[][]> entry : pages.entrySet()) {
+            Object[][] page = entry.getValue();
+            for (int i = 0; i < page.length; i++) {
+                if (((Number) page[i][0]).longValue() == key) {
+                    removeRow(entry.getKey() * PAGE_SIZE + i);
+                    return;
+                }
+            }
+        }
+        // Not on a cached page: work out where it sat from the keys before it
+        int requestGeneration = generation;
+        data.submit(timed(() -> countKeysBefore(key)), position -> {
+            if (requestGeneration == generation && position < rowCount) {
+                removeRow(position);
+            }
+        }, Exception::printStackTrace);
+    }
+
+    private void removeRow(int position) {
+        rowCount--;
+        invalidateFrom(position / PAGE_SIZE);
+        fireTableRowsDeleted(position, position);
+    }
+
+    // Rows from this page onwards have shifted, so their cached contents and
+    // start keys are stale; pages before it are untouched
+    private void invalidateFrom(int page) {
+        pages.keySet().removeIf(p -> p >= page);
+        pageAfterKeys.keySet().removeIf(p -> p > page);
+        loading.keySet().removeIf(p -> p >= page);
+    }
+
+    private <T> Callable<T> timed(Metrics.Operation<T> work) {
+        return () -> Metrics.global().time(operation, work);
+    }
+
+    private Object[] fetchRow(long key) throws SQLException {
+        String sql = "SELECT " + selectColumns + " FROM " + from + where(keyColumn + " = ?");
+        StatementCache cache = statements.get();
+        PreparedStatement pstmt = cache.prepare(sql);
+        pstmt.setLong(1, key);
+        try (ResultSet rs = cache.query(pstmt)) {
+            return rs.next() ? readRow(rs) : null;
+        }
+    }
+
+    private boolean hasKeyAfter(long key) throws SQLException {
+        String sql = "SELECT 1 FROM " + from + where(keyColumn + " > ?") + " LIMIT 1";
+        StatementCache cache = statements.get();
+        PreparedStatement pstmt = cache.prepare(sql);
+        pstmt.setLong(1, key);
+        try (ResultSet rs = cache.query(pstmt)) {
+            return rs.next();
+        }
+    }
+
+    private int countKeysBefore(long key) throws SQLException {
+        String sql = "SELECT COUNT(*) FROM " + from + where(keyColumn + " < ?");
+        StatementCache cache = statements.get();
+        PreparedStatement pstmt = cache.prepare(sql);
+        pstmt.setLong(1, key);
+        try (ResultSet rs = cache.query(pstmt)) {
+            return rs.next() ? rs.getInt(1) : 0;
+        }
+    }
+
+    private void requestPage(int page) {
+        if (loading.containsKey(page)) {
+            return;
+        }
+        Object token = new Object();
+        loading.put(page, token);
+        Long afterKey = pageAfterKeys.get(page);
+        data.submit(timed(() -> fetchPage(page, afterKey)), rows -> {
+            if (!loading.remove(page, token)) {
+                return;
+            }
+            pages.put(page, rows);
+            if (rows.length > 0) {
+                pageAfterKeys.put(page + 1, ((Number) rows[rows.length - 1][0]).longValue());
+                int first = page * PAGE_SIZE;
+                fireTableRowsUpdated(first, Math.min(first + rows.length, rowCount) - 1);
+            }
+        }, e -> {
+            loading.remove(page, token);
+            e.printStackTrace();
+        });
+    }
+
+    private Object[][] fetchPage(int page, Long afterKey) throws SQLException {
+        if (afterKey == null) {
+            afterKey = page == 0 ? Long.MIN_VALUE : findAfterKey(page);
+            if (afterKey == null) {
+                return new Object[0][];
+            }
+        }
+        StatementCache cache = statements.get();
+        PreparedStatement pstmt = cache.prepare(pageQuery());
+        pstmt.setLong(1, afterKey);
+        pstmt.setInt(2, PAGE_SIZE);
+        try (ResultSet rs = cache.query(pstmt)) {
+            Object[][] rows = new Object[PAGE_SIZE][];
+            int count = 0;
+            while (rs.next()) {
+                rows[count++] = readRow(rs);
+            }
+            Object[][] result = new Object[count][];
+            System.arraycopy(rows, 0, result, 0, count);
+            return result;
+        }
+    }
+
+    // The keyset query behind every page, exposed for query plan checks
+    public String pageQuery() {
+        return "SELECT " + selectColumns + " FROM " + from +
+               where(keyColumn + " > ?") + " ORDER BY " + keyColumn + " LIMIT ?";
+    }
+
+    private String where(String condition) {
+        return " WHERE " + (filter == null ? "" : filter + " AND ") + condition;
+    }
+
+    private Object[] readRow(ResultSet rs) throws SQLException {
+        Object[] row = new Object[columns.length];
+        for (int i = 0; i < row.length; i++) {
+            row[i] = rs.getObject(i + 1);
+        }
+        return row;
+    }
+
+    // Jumping straight to a page we have not scrolled through yet: walk the
+    // key index once to find where it starts
+    private Long findAfterKey(int page) throws SQLException {
+        String sql = "SELECT " + keyColumn + " FROM " + from +
+                    (filter == null ? "" : " WHERE " + filter) + " ORDER BY " + keyColumn + " LIMIT 1 OFFSET ?";
+        StatementCache cache = statements.get();
+        PreparedStatement pstmt = cache.prepare(sql);
+        pstmt.setInt(1, page * PAGE_SIZE - 1);
+        try (ResultSet rs = cache.query(pstmt)) {
+            return rs.next() ? rs.getLong(1) : null;
+        }
+    }
+}
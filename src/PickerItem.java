@@ -0,0 +1,16 @@
+// An entry in a TypeAheadPicker: the row's primary key plus the text shown
+// for it, so a selection never has to be parsed back out of a label.
+public class PickerItem {
+    public final int id;
+    public final String label;
+
+    public PickerItem(int id, String label) {
+        this.id = id;
+        this.label = label;
+    }
+
+    @Override
+    public String toString() {
+        return label;
+    }
+}
@@ -0,0 +1,48 @@
+import java.sql.Connection;
+import java.sql.ParameterMetaData;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Types;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+// Runs EXPLAIN QUERY PLAN over the queries on the hot paths and warns when
+// SQLite would answer one with a full SCAN instead of an index SEARCH, which
+// usually means an index is missing or a query stopped matching it.
+public class QueryPlanCheck {
+    private final Map<String, String> queries = new LinkedHashMap<>();
+
+    public QueryPlanCheck add(String name, String sql) {
+        queries.put(name, sql);
+        return this;
+    }
+
+    public List<String> run(Connection conn) throws SQLException {
+        List<String> warnings = new ArrayList<>();
+        for (Map.Entry<String, String> query : queries.entrySet()) {
+            try (PreparedStatement pstmt = conn.prepareStatement("EXPLAIN QUERY PLAN " + query.getValue())) {
+                // Plans do not depend on the values, but every parameter
+                // still has to be bound before the statement will run
+                ParameterMetaData params = pstmt.getParameterMetaData();
+                for (int i = 1; i <= params.getParameterCount(); i++) {
+                    pstmt.setNull(i, Types.NULL);
+                }
+                try (ResultSet rs = pstmt.executeQuery()) {
+                    while (rs.next()) {
+                        String detail = rs.getString("detail");
+                        if (detail.startsWith("SCAN ")) {
+                            warnings.add(query.getKey() + ": " + detail);
+                        }
+                    }
+                }
+            }
+        }
+        for (String warning : warnings) {
+            System.err.println("Query plan warning - " + warning);
+        }
+        return warnings;
+    }
+}
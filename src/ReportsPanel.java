@@ -0,0 +1,133 @@
+import javax.swing.BorderFactory;
+import javax.swing.JButton;
+import javax.swing.JComboBox;
+import javax.swing.JLabel;
+import javax.swing.JOptionPane;
+import javax.swing.JPanel;
+import javax.swing.JScrollPane;
+import javax.swing.JTable;
+import java.awt.BorderLayout;
+import java.awt.FlowLayout;
+import java.time.LocalDate;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+
+// The Reports tab: popular titles, member borrowing, utilization and daily
+// circulation over a chosen period. Every report reads the daily aggregates
+// kept by CirculationStats rather than the loans, so it takes milliseconds
+// however long the loan history is.
+public class ReportsPanel extends JPanel {
+    private static final String[] REPORTS = {"Popular Titles", "Member Borrowing", "Utilization", "Daily Circulation"};
+    // Column headers and the result keys shown under them, per report;
+    // fee_paise is shown in rupees
+    private static final String[][] HEADERS = {
+        {"Book ID", "Title", "Author", "Issues", "Returns", "Late Fees (Rs.)"},
+        {"User ID", "Name", "Issues", "Returns", "Late Fees (Rs.)"},
+        {"Book ID", "Title", "Total Copies", "Out Now", "Issues", "Issues per Copy"},
+        {"Day", "Issues", "Returns", "Late Fees (Rs.)"}
+    };
+    private static final String[][] KEYS = {
+        {"book_id", "title", "author", "issues", "returns", "fee_paise"},
+        {"user_id", "name", "issues", "returns", "fee_paise"},
+        {"book_id", "title", "total_copies", "copies_out", "issues", "issues_per_copy"},
+        {"day", "issues", "returns", "fee_paise"}
+    };
+    private static final String[] PERIODS = {"Today", "Last 7 days", "Last 30 days", "Last 90 days", "Last 365 days"};
+    private static final int[] PERIOD_DAYS = {1, 7, 30, 90, 365};
+    private static final int LIMIT = 100;
+
+    private final LibraryService service;
+    private final DataExecutor data;
+    private final JComboBox<String> reportBox = new JComboBox<>(REPORTS);
+    private final JComboBox<String> periodBox = new JComboBox<>(PERIODS);
+    private final JTable table = new JTable();
+    private final JLabel statusLabel = new JLabel();
+
+    public ReportsPanel(LibraryService service, DataExecutor data) {
+        super(new BorderLayout(10, 10));
+        this.service = service;
+        this.data = data;
+        setBorder(BorderFactory.createEmptyBorder(10, 10, 10, 10));
+
+        JPanel controls = new JPanel(new FlowLayout(FlowLayout.LEFT));
+        controls.add(new JLabel("Report:"));
+        controls.add(reportBox);
+        controls.add(new JLabel("Period:"));
+        periodBox.setSelectedIndex(2);
+        controls.add(periodBox);
+        JButton refreshBtn = new JButton("Refresh");
+        JButton rebuildBtn = new JButton("Rebuild Aggregates...");
+        refreshBtn.addActionListener(e -> refresh());
+        rebuildBtn.addActionListener(e -> rebuild());
+        controls.add(refreshBtn);
+        controls.add(rebuildBtn);
+        reportBox.addActionListener(e -> refresh());
+        periodBox.addActionListener(e -> refresh());
+
+        JPanel top = new JPanel(new BorderLayout(10, 10));
+        top.add(controls, BorderLayout.CENTER);
+        top.add(statusLabel, BorderLayout.SOUTH);
+        add(top, BorderLayout.NORTH);
+        add(new JScrollPane(table), BorderLayout.CENTER);
+
+        refresh();
+    }
+
+    public void refresh() {
+        int report = reportBox.getSelectedIndex();
+        LocalDate last = LocalDate.now();
+        LocalDate first = last.minusDays(PERIOD_DAYS[periodBox.getSelectedIndex()] - 1);
+        long start = System.nanoTime();
+        data.submit("report", () -> {
+            switch (report) {
+                case 0:
+                    return service.popularTitles(first, last, LIMIT);
+                case 1:
+                    return service.memberBorrowing(first, last, LIMIT);
+                case 2:
+                    return service.utilization(first, last, LIMIT);
+                default:
+                    return service.dailyCirculation(first, last, LIMIT);
+            }
+        }, results -> {
+            List<Object[]> rows = new ArrayList<>();
+            for (Map<String, Object> result : results) {
+                Object[] row = new Object[KEYS[report].length];
+                for (int i = 0; i < row.length; i++) {
+                    Object value = result.get(KEYS[report][i]);
+                    row[i] = KEYS[report][i].equals("fee_paise") && value != null
+                            ? FeePolicy.rupees(((Number) value).longValue())
+                            : value;
+                }
+                rows.add(row);
+            }
+            RowListTableModel model = new RowListTableModel(HEADERS[report]);
+            model.setRows(rows);
+            table.setModel(model);
+
+            long[] copies = service.availability().copyTotals();
+            long out = copies[1] - copies[0];
+            statusLabel.setText(String.format("%d rows for %s to %s in %.1f ms. Copies out now: %d of %d (%.1f%%)",
+                    rows.size(), first, last, (System.nanoTime() - start) / 1e6, out, copies[1],
+                    copies[1] == 0 ? 0.0 : out * 100.0 / copies[1]));
+        }, e -> JOptionPane.showMessageDialog(this, "Error: " + e.getMessage()));
+    }
+
+    // Recomputes the selected period's aggregates from the loans, for after
+    // loans were edited outside the application
+    private void rebuild() {
+        LocalDate last = LocalDate.now();
+        LocalDate first = last.minusDays(PERIOD_DAYS[periodBox.getSelectedIndex()] - 1);
+        int confirm = JOptionPane.showConfirmDialog(this,
+                "Recompute the report aggregates for " + first + " to " + last + " from the loans?",
+                "Rebuild Aggregates", JOptionPane.YES_NO_OPTION);
+        if (confirm != JOptionPane.YES_OPTION) {
+            return;
+        }
+        data.submit(() -> service.rebuildReports(first, last, null), days -> {
+            JOptionPane.showMessageDialog(this, "Rebuilt " + days + " days of aggregates");
+            refresh();
+        }, e -> JOptionPane.showMessageDialog(this, "Error: " + e.getMessage()));
+    }
+}
@@ -0,0 +1,48 @@
+import javax.swing.table.AbstractTableModel;
+import java.util.ArrayList;
+import java.util.List;
+
+// Read-only table model over a small, fully loaded list of rows, such as a
+// page of search results.
+public class RowListTableModel extends AbstractTableModel {
+    private final String[] columns;
+    private List<Object[]> rows = new ArrayList<>();
+
+    public RowListTableModel(String[] columns) {
+        this.columns = columns;
+    }
+
+    public void setRows(List<Object[]> rows) {
+        this.rows = rows;
+        fireTableDataChanged();
+    }
+
+    public Object[] getRow(int row) {
+        return row >= 0 && row < rows.size() ? rows.get(row) : null;
+    }
+
+    @Override
+    public int getRowCount() {
+        return rows.size();
+    }
+
+    @Override
+    public int getColumnCount() {
+        return columns.length;
+    }
+
+    @Override
+    public String getColumnName(int column) {
+        return columns[column];
+    }
+
+    @Override
+    public boolean isCellEditable(int row, int column) {
+        return false;
+    }
+
+    @Override
+    public Object getValueAt(int row, int column) {
+        return rows.get(row)[column];
+    }
+}
@@ -0,0 +1,97 @@
+import java.sql.Connection;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.ArrayList;
+import java.util.List;
+
+// Applies numbered schema migrations in order and records the last one in
+// PRAGMA user_version. Each migration runs in its own transaction together
+// with the version bump, so a failure leaves the schema at the previous
+// version. When the database is already current, startup costs one PRAGMA
+// read and no DDL at all.
+public class SchemaMigrator {
+    public interface Step {
+        void apply(Statement stmt) throws SQLException;
+    }
+
+    private static class Migration {
+        final int version;
+        final String description;
+        final Step step;
+
+        Migration(int version, String description, Step step) {
+            this.version = version;
+            this.description = description;
+            this.step = step;
+        }
+    }
+
+    private final List<Migration> migrations = new ArrayList<>();
+
+    public SchemaMigrator add(int version, String description, String... sql) {
+        return add(version, description, stmt -> {
+            for (String statement : sql) {
+                stmt.execute(statement);
+            }
+        });
+    }
+
+    public SchemaMigrator add(int version, String description, Step step) {
+        if (!migrations.isEmpty() && version <= latestVersion()) {
+            throw new IllegalArgumentException("Migration " + version + " is out of order");
+        }
+        migrations.add(new Migration(version, description, step));
+        return this;
+    }
+
+    public int latestVersion() {
+        return migrations.isEmpty() ? 0 : migrations.get(migrations.size() - 1).version;
+    }
+
+    // Returns the version the database was at before migrating
+    public int migrate(Connection conn) throws SQLException {
+        int current = userVersion(conn);
+        int latest = latestVersion();
+        if (current == latest) {
+            return current;
+        }
+        if (current > latest) {
+            throw new SQLException("Database schema version " + current +
+                                  " is newer than this application supports (" + latest + ")");
+        }
+
+        long start = System.currentTimeMillis();
+        boolean autoCommit = conn.getAutoCommit();
+        conn.setAutoCommit(false);
+        try (Statement stmt = conn.createStatement()) {
+            for (Migration migration : migrations) {
+                if (migration.version <= current) {
+                    continue;
+                }
+                try {
+                    migration.step.apply(stmt);
+                    stmt.execute("PRAGMA user_version = " + migration.version);
+                    conn.commit();
+                } catch (SQLException e) {
+                    conn.rollback();
+                    throw new SQLException("Schema migration " + migration.version + " (" +
+                                          migration.description + ") failed: " + e.getMessage(), e);
+                }
+                System.out.println("Applied schema migration " + migration.version + ": " + migration.description);
+            }
+        } finally {
+            conn.setAutoCommit(autoCommit);
+        }
+        System.out.println("Schema migrated from version " + current + " to " + latest +
+                          " in " + (System.currentTimeMillis() - start) + " ms");
+        return current;
+    }
+
+    public static int userVersion(Connection conn) throws SQLException {
+        try (Statement stmt = conn.createStatement();
+             ResultSet rs = stmt.executeQuery("PRAGMA user_version")) {
+            return rs.next() ? rs.getInt(1) : 0;
+        }
+    }
+}
@@ -0,0 +1,110 @@
+import java.sql.Connection;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+
+// PRAGMA settings applied to every connection when it is opened.
+//
+// The tuned profile (the default) uses WAL with synchronous=NORMAL: a commit
+// appends to the WAL without an fsync of the main file, and readers never
+// block the writer. Pick a profile with -Dlibrary.sqlite.profile=tuned|legacy
+// and override single settings with -Dlibrary.sqlite.<setting>=<value>, for
+// example -Dlibrary.sqlite.synchronous=FULL.
+public class SqliteProfile {
+    public final String name;
+    public final String journalMode;
+    public final String synchronous;
+    public final long mmapSize;
+    // Negative values are in KiB, as with PRAGMA cache_size
+    public final int cacheSize;
+    public final String tempStore;
+    public final int busyTimeoutMillis;
+    public final int checkpointSeconds;
+
+    public SqliteProfile(String name, String journalMode, String synchronous, long mmapSize,
+                         int cacheSize, String tempStore, int busyTimeoutMillis, int checkpointSeconds) {
+        this.name = name;
+        this.journalMode = journalMode;
+        this.synchronous = synchronous;
+        this.mmapSize = mmapSize;
+        this.cacheSize = cacheSize;
+        this.tempStore = tempStore;
+        this.busyTimeoutMillis = busyTimeoutMillis;
+        this.checkpointSeconds = checkpointSeconds;
+    }
+
+    // SQLite's own defaults: rollback journal, fsync on every commit
+    public static SqliteProfile legacy() {
+        return new SqliteProfile("legacy", "DELETE", "FULL", 0, -2000, "DEFAULT", 0, 0);
+    }
+
+    public static SqliteProfile tuned() {
+        return new SqliteProfile("tuned", "WAL", "NORMAL", 256L << 20, -64000, "MEMORY", 5000, 300);
+    }
+
+    public static SqliteProfile fromSystemProperties() {
+        SqliteProfile base = "legacy".equalsIgnoreCase(System.getProperty("library.sqlite.profile"))
+                ? legacy() : tuned();
+        return new SqliteProfile(base.name,
+                System.getProperty("library.sqlite.journal_mode", base.journalMode),
+                System.getProperty("library.sqlite.synchronous", base.synchronous),
+                Long.getLong("library.sqlite.mmap_size", base.mmapSize),
+                Integer.getInteger("library.sqlite.cache_size", base.cacheSize),
+                System.getProperty("library.sqlite.temp_store", base.tempStore),
+                Integer.getInteger("library.sqlite.busy_timeout", base.busyTimeoutMillis),
+                Integer.getInteger("library.sqlite.checkpoint_seconds", base.checkpointSeconds));
+    }
+
+    public void apply(Connection conn) throws SQLException {
+        try (Statement stmt = conn.createStatement()) {
+            // busy_timeout first, so switching the journal mode can wait out
+            // another process that still has the file open
+            stmt.execute("PRAGMA busy_timeout = " + busyTimeoutMillis);
+            try (ResultSet rs = stmt.executeQuery("PRAGMA journal_mode = " + journalMode)) {
+                if (rs.next() && !rs.getString(1).equalsIgnoreCase(journalMode)) {
+                    System.err.println("SQLite kept journal_mode=" + rs.getString(1) +
+                                      " instead of " + journalMode);
+                }
+            }
+            stmt.execute("PRAGMA synchronous = " + synchronous);
+            stmt.execute("PRAGMA mmap_size = " + mmapSize);
+            stmt.execute("PRAGMA cache_size = " + cacheSize);
+            stmt.execute("PRAGMA temp_store = " + tempStore);
+            // Not a tuning knob, so in every profile: SQLite leaves the
+            // schema's REFERENCES clauses unchecked unless this is on, and
+            // then lets a loan or hold name a member or book that does not
+            // exist, or a book or member be deleted out from under them
+            stmt.execute("PRAGMA foreign_keys = ON");
+        }
+    }
+
+    // The settings that make sense on a read-only connection; the journal
+    // mode and synchronous belong to whoever writes
+    public void applyToReader(Connection conn) throws SQLException {
+        try (Statement stmt = conn.createStatement()) {
+            stmt.execute("PRAGMA busy_timeout = " + busyTimeoutMillis);
+            stmt.execute("PRAGMA mmap_size = " + mmapSize);
+            stmt.execute("PRAGMA cache_size = " + cacheSize);
+            stmt.execute("PRAGMA temp_store = " + tempStore);
+        }
+    }
+
+    public boolean usesWal() {
+        return "WAL".equalsIgnoreCase(journalMode);
+    }
+
+    // Copies committed WAL frames back into the main file without waiting on
+    // readers, so the WAL stays small between SQLite's own auto-checkpoints
+    public static void checkpoint(Connection conn) throws SQLException {
+        try (Statement stmt = conn.createStatement()) {
+            stmt.execute("PRAGMA wal_checkpoint(PASSIVE)");
+        }
+    }
+
+    @Override
+    public String toString() {
+        return name + " (journal_mode=" + journalMode + ", synchronous=" + synchronous +
+               ", mmap_size=" + mmapSize + ", cache_size=" + cacheSize +
+               ", temp_store=" + tempStore + ", busy_timeout=" + busyTimeoutMillis + ")";
+    }
+}
@@ -0,0 +1,235 @@
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Objects;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+// Prepares each SQL string once per connection and hands the same
+// PreparedStatement back on later calls, so the driver does not re-parse
+// the query and native statement handles are not leaked. Like the
+// connection it wraps, a cache must only be used from one thread at a time.
+//
+// Every statement handed out is timed: each execution, and for queries the
+// rows read up to close(), is recorded in Metrics under the operation in
+// progress on the calling thread. Only the execute calls, next() and
+// close() do any timing; every other call is a plain delegation to the
+// driver.
+public class StatementCache implements AutoCloseable {
+    private final Connection conn;
+    private final Map<String, PreparedStatement> statements = new HashMap<>();
+    private final AtomicLong hits = new AtomicLong();
+    private final AtomicLong prepares = new AtomicLong();
+    private final AtomicInteger openCursors = new AtomicInteger();
+
+    public StatementCache(Connection conn) {
+        this.conn = conn;
+    }
+
+    public Connection connection() {
+        return conn;
+    }
+
+    public PreparedStatement prepare(String sql) throws SQLException {
+        PreparedStatement pstmt = statements.get(sql);
+        if (pstmt != null && !pstmt.isClosed()) {
+            hits.incrementAndGet();
+            pstmt.clearParameters();
+            return pstmt;
+        }
+        pstmt = new Timed(sql, conn.prepareStatement(sql));
+        prepares.incrementAndGet();
+        statements.put(sql, pstmt);
+        return pstmt;
+    }
+
+    // Runs the query and tracks the cursor until the caller closes it, which
+    // should always be done with try-with-resources
+    public ResultSet query(PreparedStatement pstmt) throws SQLException {
+        return pstmt.executeQuery();
+    }
+
+    public long hits() {
+        return hits.get();
+    }
+
+    public long prepares() {
+        return prepares.get();
+    }
+
+    public int openCursors() {
+        return openCursors.get();
+    }
+
+    @Override
+    public void close() {
+        for (PreparedStatement pstmt : statements.values()) {
+            try {
+                pstmt.close();
+            } catch (SQLException e) {
+                e.printStackTrace();
+            }
+        }
+        statements.clear();
+    }
+
+    // Times the statement's executions. A query is timed from executeQuery()
+    // to the close() of its result set, since SQLite does most of its work as
+    // rows are stepped through; updates and batches count the rows they
+    // changed.
+    private class Timed extends PreparedStatementWrapper {
+        private final String sql;
+        // The statement is only used from one thread at a time, which usually
+        // runs the same operation call after call
+        private String lastOperation;
+        private Metrics.Stats lastStats;
+
+        Timed(String sql, PreparedStatement target) {
+            super(target);
+            this.sql = sql;
+        }
+
+        @Override
+        public ResultSet executeQuery() throws SQLException {
+            Metrics.Stats stats = stats();
+            long start = System.nanoTime();
+            try {
+                return new Cursor(target.executeQuery(), stats, start);
+            } catch (SQLException | RuntimeException e) {
+                failed(stats, start, e);
+                throw e;
+            }
+        }
+
+        @Override
+        public int executeUpdate() throws SQLException {
+            Metrics.Stats stats = stats();
+            long start = System.nanoTime();
+            try {
+                int rows = target.executeUpdate();
+                stats.record(System.nanoTime() - start, Math.max(0, rows));
+                return rows;
+            } catch (SQLException | RuntimeException e) {
+                failed(stats, start, e);
+                throw e;
+            }
+        }
+
+        @Override
+        public long executeLargeUpdate() throws SQLException {
+            Metrics.Stats stats = stats();
+            long start = System.nanoTime();
+            try {
+                long rows = target.executeLargeUpdate();
+                stats.record(System.nanoTime() - start, Math.max(0, rows));
+                return rows;
+            } catch (SQLException | RuntimeException e) {
+                failed(stats, start, e);
+                throw e;
+            }
+        }
+
+        @Override
+        public boolean execute() throws SQLException {
+            Metrics.Stats stats = stats();
+            long start = System.nanoTime();
+            try {
+                boolean result = target.execute();
+                stats.record(System.nanoTime() - start, 0);
+                return result;
+            } catch (SQLException | RuntimeException e) {
+                failed(stats, start, e);
+                throw e;
+            }
+        }
+
+        // Counts of -2 (SUCCESS_NO_INFO) are left out of the rows
+        @Override
+        public int[] executeBatch() throws SQLException {
+            Metrics.Stats stats = stats();
+            long start = System.nanoTime();
+            try {
+                int[] counts = target.executeBatch();
+                long rows = 0;
+                for (int count : counts) {
+                    rows += Math.max(0, count);
+                }
+                stats.record(System.nanoTime() - start, rows);
+                return counts;
+            } catch (SQLException | RuntimeException e) {
+                failed(stats, start, e);
+                throw e;
+            }
+        }
+
+        @Override
+        public long[] executeLargeBatch() throws SQLException {
+            Metrics.Stats stats = stats();
+            long start = System.nanoTime();
+            try {
+                long[] counts = target.executeLargeBatch();
+                long rows = 0;
+                for (long count : counts) {
+                    rows += Math.max(0, count);
+                }
+                stats.record(System.nanoTime() - start, rows);
+                return counts;
+            } catch (SQLException | RuntimeException e) {
+                failed(stats, start, e);
+                throw e;
+            }
+        }
+
+        private Metrics.Stats stats() {
+            String operation = Metrics.global().current();
+            if (lastStats == null || !Objects.equals(operation, lastOperation)) {
+                lastStats = Metrics.global().statement(operation, sql);
+                lastOperation = operation;
+            }
+            return lastStats;
+        }
+    }
+
+    // A query's result set, counting the rows stepped through and recording
+    // the query once, when it is closed
+    private class Cursor extends ResultSetWrapper {
+        private final Metrics.Stats stats;
+        private final long start;
+        private long rows;
+        private boolean closed;
+
+        Cursor(ResultSet target, Metrics.Stats stats, long start) {
+            super(target);
+            this.stats = stats;
+            this.start = start;
+            openCursors.incrementAndGet();
+        }
+
+        @Override
+        public boolean next() throws SQLException {
+            boolean more = target.next();
+            if (more) {
+                rows++;
+            }
+            return more;
+        }
+
+        @Override
+        public void close() throws SQLException {
+            if (!closed) {
+                closed = true;
+                openCursors.decrementAndGet();
+                stats.record(System.nanoTime() - start, rows);
+            }
+            target.close();
+        }
+    }
+
+    private static void failed(Metrics.Stats stats, long start, Exception e) {
+        stats.record(System.nanoTime() - start, 0);
+        stats.failed(e);
+    }
+}
@@ -0,0 +1,140 @@
+import javax.swing.*;
+import javax.swing.event.DocumentEvent;
+import javax.swing.event.DocumentListener;
+import java.awt.event.ActionEvent;
+import java.awt.event.KeyEvent;
+import java.awt.event.MouseAdapter;
+import java.awt.event.MouseEvent;
+import java.util.List;
+
+// Text field that looks up matches as the user types and offers them in a
+// drop-down list. Only the top few matches are ever loaded; choosing one
+// keeps its PickerItem, so callers get the typed primary key directly.
+public class TypeAheadPicker extends JTextField {
+    private static final int MAX_MATCHES = 20;
+
+    public interface Lookup {
+        List<PickerItem> find(String text, int limit) throws Exception;
+    }
+
+    private final DataExecutor data;
+    private final String key;
+    private final Lookup lookup;
+    private final DefaultListModel<PickerItem> matches = new DefaultListModel<>();
+    private final JList<PickerItem> matchList = new JList<>(matches);
+    private final JPopupMenu popup = new JPopupMenu();
+    private final Timer debounce;
+    private PickerItem selected;
+    private boolean choosing;
+
+    public TypeAheadPicker(DataExecutor data, String key, Lookup lookup) {
+        this.data = data;
+        this.key = key;
+        this.lookup = lookup;
+
+        matchList.setSelectionMode(ListSelectionModel.SINGLE_SELECTION);
+        matchList.setFocusable(false);
+        matchList.setVisibleRowCount(8);
+        matchList.addMouseListener(new MouseAdapter() {
+            public void mouseClicked(MouseEvent e) {
+                choose(matchList.getSelectedValue());
+            }
+        });
+        popup.setFocusable(false);
+        popup.add(new JScrollPane(matchList));
+
+        debounce = new Timer(150, e -> findMatches());
+        debounce.setRepeats(false);
+        getDocument().addDocumentListener(new DocumentListener() {
+            public void insertUpdate(DocumentEvent e) {
+                edited();
+            }
+
+            public void removeUpdate(DocumentEvent e) {
+                edited();
+            }
+
+            public void changedUpdate(DocumentEvent e) {
+                edited();
+            }
+        });
+
+        bindKey(KeyEvent.VK_DOWN, "picker-next", () -> moveSelection(1));
+        bindKey(KeyEvent.VK_UP, "picker-previous", () -> moveSelection(-1));
+        bindKey(KeyEvent.VK_ENTER, "picker-choose", () -> choose(matchList.getSelectedValue()));
+        bindKey(KeyEvent.VK_ESCAPE, "picker-close", () -> popup.setVisible(false));
+    }
+
+    // Null until the user picks one of the offered matches
+    public PickerItem getSelectedItem() {
+        return selected;
+    }
+
+    public void clearSelection() {
+        choosing = true;
+        setText("");
+        choosing = false;
+        selected = null;
+        popup.setVisible(false);
+    }
+
+    private void edited() {
+        if (choosing) {
+            return;
+        }
+        selected = null;
+        debounce.restart();
+    }
+
+    private void findMatches() {
+        String text = getText().trim();
+        if (text.isEmpty()) {
+            data.cancel(key);
+            popup.setVisible(false);
+            return;
+        }
+        data.submit(key, () -> lookup.find(text, MAX_MATCHES), items -> {
+            matches.clear();
+            for (PickerItem item : items) {
+                matches.addElement(item);
+            }
+            if (items.isEmpty() || !isShowing()) {
+                popup.setVisible(false);
+                return;
+            }
+            matchList.setSelectedIndex(0);
+            popup.setPopupSize(getWidth(), popup.getPreferredSize().height);
+            popup.show(this, 0, getHeight());
+        }, Exception::printStackTrace);
+    }
+
+    private void moveSelection(int delta) {
+        if (!popup.isVisible() || matches.isEmpty()) {
+            return;
+        }
+        int index = Math.max(0, Math.min(matches.size() - 1, matchList.getSelectedIndex() + delta));
+        matchList.setSelectedIndex(index);
+        matchList.ensureIndexIsVisible(index);
+    }
+
+    private void choose(PickerItem item) {
+        if (item == null) {
+            return;
+        }
+        debounce.stop();
+        choosing = true;
+        setText(item.label);
+        choosing = false;
+        selected = item;
+        popup.setVisible(false);
+    }
+
+    private void bindKey(int keyCode, String name, Runnable action) {
+        getInputMap().put(KeyStroke.getKeyStroke(keyCode, 0), name);
+        getActionMap().put(name, new AbstractAction() {
+            public void actionPerformed(ActionEvent e) {
+                action.run();
+            }
+        });
+    }
+}
@@ -0,0 +1,49 @@
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.List;
+
+// Member lookups for the Issue/Return picker: an exact match on the member
+// id when digits are typed, then name prefix matches read straight off the
+// case-insensitive idx_users_name index.
+public class UserSearch {
+    private static final String BY_ID_SQL = "SELECT user_id, name FROM users WHERE user_id = ?";
+    static final String BY_NAME_SQL =
+            "SELECT user_id, name FROM users " +
+            "WHERE name >= ? COLLATE NOCASE AND name < ? COLLATE NOCASE " +
+            "ORDER BY name COLLATE NOCASE LIMIT ?";
+
+    private UserSearch() {
+    }
+
+    public static List<PickerItem> picks(StatementCache statements, String text, int limit) throws SQLException {
+        List<PickerItem> picks = new ArrayList<>();
+        if (text.matches("\\d{1,9}")) {
+            PreparedStatement pstmt = statements.prepare(BY_ID_SQL);
+            pstmt.setInt(1, Integer.parseInt(text));
+            try (ResultSet rs = statements.query(pstmt)) {
+                if (rs.next()) {
+                    picks.add(toPick(rs));
+                }
+            }
+        }
+        PreparedStatement pstmt = statements.prepare(BY_NAME_SQL);
+        pstmt.setString(1, text);
+        pstmt.setString(2, text + Character.MAX_VALUE);
+        pstmt.setInt(3, limit);
+        try (ResultSet rs = statements.query(pstmt)) {
+            while (rs.next() && picks.size() < limit) {
+                // Skip the row already added by the id match
+                if (picks.isEmpty() || picks.get(0).id != rs.getInt(1)) {
+                    picks.add(toPick(rs));
+                }
+            }
+        }
+        return picks;
+    }
+
+    private static PickerItem toPick(ResultSet rs) throws SQLException {
+        return new PickerItem(rs.getInt("user_id"), rs.getString("name") + " (#" + rs.getInt("user_id") + ")");
+    }
+}
@@ -0,0 +1,84 @@
+import static org.junit.jupiter.api.Assertions.assertEquals;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.SplittableRandom;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+class AvailabilityCacheTest {
+    private static final int BOOKS = 20;
+    private static final int USERS = 10;
+    private static final int THREADS = 4;
+
+    @TempDir
+    File dir;
+
+    @Test
+    void putAdjustAndRemove() throws Exception {
+        AvailabilityCache cache = new AvailabilityCache();
+        cache.put(7, 2, 3);
+        cache.adjust(7, -1);
+        assertEquals(1, cache.available(7));
+        assertEquals(3, cache.total(7));
+        cache.remove(7);
+        assertEquals(-1, cache.available(7));
+    }
+
+    // Checkouts and returns run from several threads while the cache is
+    // warmed over and over; every count must still match the database
+    @Test
+    void warmInterleavedWithCheckoutsMatchesDatabase() throws Exception {
+        String url = "jdbc:sqlite:" + new File(dir, "library.db").getPath();
+        try (LibraryService service = LibraryService.open(url, SqliteProfile.tuned(), new ChangeBus())) {
+            for (int i = 0; i < BOOKS; i++) {
+                service.addBook("Title " + i, "Author " + i, "978000000" + (1000 + i), 3);
+            }
+            for (int i = 0; i < USERS; i++) {
+                service.addUser("Member " + i, "member" + i + "@example.com", "90000000" + (10 + i));
+            }
+            service.warmAvailability();
+
+            AtomicBoolean stop = new AtomicBoolean();
+            ExecutorService desks = Executors.newFixedThreadPool(THREADS);
+            List<Future<Integer>> checkouts = new ArrayList<>();
+            for (int t = 0; t < THREADS; t++) {
+                SplittableRandom random = new SplittableRandom(t);
+                checkouts.add(desks.submit(() -> {
+                    int count = 0;
+                    while (!stop.get()) {
+                        LibraryService.Loan loan =
+                                service.issueBook(1 + random.nextInt(USERS), 1 + random.nextInt(BOOKS));
+                        if (loan != null) {
+                            service.returnBook((int) loan.issueId);
+                        }
+                        count++;
+                    }
+                    return count;
+                }));
+            }
+            try {
+                for (int i = 0; i < 200; i++) {
+                    service.warmAvailability();
+                }
+            } finally {
+                stop.set(true);
+                desks.shutdown();
+            }
+            for (Future<Integer> checkout : checkouts) {
+                checkout.get();
+            }
+
+            for (int bookId = 1; bookId <= BOOKS; bookId++) {
+                Number stored = (Number) service.getBook(bookId).get("available_copies");
+                assertEquals(stored.intValue(), service.availability().available(bookId), "book " + bookId);
+            }
+        }
+    }
+}
@@ -0,0 +1,154 @@
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNotNull;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.io.File;
+import java.io.PrintWriter;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+class CatalogImporterTest {
+    // Not a multiple of the batch or commit size, so the last chunk is a
+    // partial one
+    private static final int BOOKS = 25001;
+
+    @TempDir
+    File dir;
+
+    @Test
+    void importsEveryRowAcrossPartialChunks() throws Exception {
+        File csv = catalog(BOOKS);
+        try (LibraryService service = open()) {
+            CatalogImporter.Result result = service.importBooks(csv, (rows, bytes) -> true);
+            assertEquals(BOOKS, result.rows);
+            assertEquals(1, result.skipped);
+            assertFalse(result.cancelled);
+            assertNotNull(service.findBookByIsbn(isbn(BOOKS - 1)));
+            assertEquals(2, service.availability().available(BOOKS));
+        }
+    }
+
+    @Test
+    void cancelKeepsOnlyCommittedChunks() throws Exception {
+        File csv = catalog(BOOKS);
+        try (LibraryService service = open()) {
+            CatalogImporter.Result result = service.importBooks(csv, (rows, bytes) -> false);
+            assertTrue(result.cancelled);
+            assertNotNull(service.findBookByIsbn(isbn((int) result.rows - 1)));
+            assertNull(service.findBookByIsbn(isbn((int) result.rows)));
+        }
+    }
+
+    // Other writes get the writer between chunks instead of waiting for the
+    // whole file
+    @Test
+    void writesRunDuringImport() throws Exception {
+        File csv = catalog(BOOKS);
+        try (LibraryService service = open()) {
+            long[] userAt = new long[1];
+            CatalogImporter.Result result = service.importBooks(csv, (rows, bytes) -> {
+                if (userAt[0] == 0) {
+                    try {
+                        service.addUser("Member", "member@example.com", "9000000000");
+                    } catch (Exception e) {
+                        throw new IllegalStateException(e);
+                    }
+                    userAt[0] = rows;
+                }
+                return true;
+            });
+            assertEquals(BOOKS, result.rows);
+            assertTrue(userAt[0] < BOOKS);
+        }
+    }
+
+    // Imported books are indexed with the chunk that adds them; re-imported
+    // ones through the update trigger, and books added afterwards through
+    // the insert trigger the import put back
+    @Test
+    void importedBooksAreSearchable() throws Exception {
+        File csv = catalog(BOOKS);
+        try (LibraryService service = open()) {
+            service.importBooks(csv, (rows, bytes) -> true);
+            assertEquals(1, service.searchBooks(isbn(BOOKS - 1), 10).size());
+
+            try (PrintWriter out = new PrintWriter(csv, "UTF-8")) {
+                out.println("title,author,isbn,copies");
+                out.println("Renamed Atlas,Author 7," + isbn(7) + ",2");
+            }
+            service.importBooks(csv, (rows, bytes) -> true);
+            assertEquals(1, service.searchBooks("renamed atlas", 10).size());
+            assertTrue(service.searchBooks("title 7", 10).stream().noneMatch(row -> isbn(7).equals(row[3])));
+
+            service.addBook("Quixotic Voyages", "Someone", "9799999999999", 1);
+            assertEquals(1, service.searchBooks("quixotic", 10).size());
+        }
+    }
+
+    // Every chunk journals the counts it sets, so a replay agrees with the
+    // books after a first import, a re-import that moves existing counts
+    // and an import cancelled part way
+    @Test
+    void importedCountsReplayFromTheJournal() throws Exception {
+        File csv = catalog(BOOKS);
+        try (LibraryService service = open()) {
+            service.importBooks(csv, (rows, bytes) -> true);
+            assertEquals(0, service.replayJournal(false).mismatched);
+
+            int lent = bookId(service, 3);
+            int grown = bookId(service, 4);
+            LibraryService.Loan loan = service.issueBook((int) service.addUser("Member", null, null), lent);
+            assertNotNull(loan);
+            try (PrintWriter out = new PrintWriter(csv, "UTF-8")) {
+                out.println("title,author,isbn,copies");
+                out.println("Title 3,Author 3," + isbn(3) + ",5");
+                out.println("Title 4,Author 4," + isbn(4) + ",1");
+                out.println("Title 4,Author 4," + isbn(4) + ",3");
+                out.println("New title,New author," + isbn(BOOKS + 5) + ",2");
+                out.println("New title,New author," + isbn(BOOKS + 5) + ",4");
+            }
+            service.importBooks(csv, (rows, bytes) -> true);
+            assertEquals(4, service.availability().available(lent));
+            assertEquals(3, service.availability().available(grown));
+            assertEquals(4, service.findBookByIsbn(isbn(BOOKS + 5)).get("available_copies"));
+
+            CirculationJournal.Result replay = service.replayJournal(true);
+            assertEquals(0, replay.mismatched);
+            assertFalse(replay.applied);
+
+            service.importBooks(catalog(BOOKS + 30000), (rows, bytes) -> rows < 40000);
+            assertEquals(0, service.replayJournal(false).mismatched);
+        }
+    }
+
+    private LibraryService open() throws Exception {
+        String url = "jdbc:sqlite:" + new File(dir, "library.db").getPath();
+        return LibraryService.open(url, SqliteProfile.tuned(), new ChangeBus());
+    }
+
+    // The books plus one row without an author, which is skipped
+    private File catalog(int books) throws Exception {
+        File csv = new File(dir, "books.csv");
+        try (PrintWriter out = new PrintWriter(csv, "UTF-8")) {
+            out.println("title,author,isbn,copies");
+            for (int i = 0; i < books; i++) {
+                out.println("Title " + i + ",Author " + (i % 100) + "," + isbn(i) + ",2");
+                if (i == books / 2) {
+                    out.println("No author,," + isbn(books + 1) + ",1");
+                }
+            }
+        }
+        return csv;
+    }
+
+    private static int bookId(LibraryService service, int i) throws Exception {
+        return ((Number) service.findBookByIsbn(isbn(i)).get("book_id")).intValue();
+    }
+
+    private static String isbn(int i) {
+        return String.format("978%010d", i);
+    }
+}
@@ -0,0 +1,102 @@
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.io.File;
+import java.sql.Connection;
+import java.sql.DriverManager;
+import java.sql.ResultSet;
+import java.sql.Statement;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+class CirculationJournalTest {
+    @TempDir
+    File dir;
+
+    // Counts rebuilt from a snapshot and the events after it match what the
+    // checkouts left behind, and a count changed behind the journal's back
+    // is reported and then put right
+    @Test
+    void replayFindsAndFixesDriftSinceTheSnapshot() throws Exception {
+        try (LibraryService service = open()) {
+            int first = (int) service.addBook("First", "Author", "9780000000001", 3);
+            int userId = (int) service.addUser("Member", "member@example.com", null);
+            service.warmAvailability();
+            LibraryService.Loan kept = service.issueBook(userId, first);
+            LibraryService.Loan returned = service.issueBook(userId, first);
+            service.returnBook((int) returned.issueId);
+
+            CirculationJournal.Snapshot snapshot = service.snapshotAvailability();
+            int second = (int) service.addBook("Second", "Author", "9780000000002", 2);
+            service.issueBook(userId, second);
+            service.returnBook((int) kept.issueId);
+
+            CirculationJournal.Result clean = service.replayJournal(false);
+            assertEquals(snapshot.snapshotId, clean.from.snapshotId);
+            assertEquals(3, clean.events);
+            assertEquals(0, clean.mismatched);
+
+            execute("UPDATE books SET available_copies = 0 WHERE book_id = " + first);
+            CirculationJournal.Result drift = service.replayJournal(false);
+            assertEquals(1, drift.mismatched);
+            assertArrayEquals(new long[] {first, 0, 3}, drift.mismatches.get(0));
+            assertFalse(drift.applied);
+            assertEquals(0, count("SELECT available_copies FROM books WHERE book_id = " + first));
+
+            CirculationJournal.Result fixed = service.replayJournal(true);
+            assertTrue(fixed.applied);
+            assertEquals(3, count("SELECT available_copies FROM books WHERE book_id = " + first));
+            assertEquals(3, service.availability().available(first));
+            assertEquals(1, service.availability().available(second));
+            assertEquals(0, service.replayJournal(false).mismatched);
+        }
+    }
+
+    // A new snapshot starts replay afresh and only the newest ones are kept
+    @Test
+    void snapshotsRestartReplayAndArePruned() throws Exception {
+        try (LibraryService service = open()) {
+            int bookId = (int) service.addBook("Title", "Author", "9780000000001", 2);
+            int userId = (int) service.addUser("Member", "member@example.com", null);
+            service.warmAvailability();
+            CirculationJournal.Snapshot last = null;
+            for (int i = 0; i < 4; i++) {
+                service.issueBook(userId, bookId);
+                last = service.snapshotAvailability();
+            }
+            CirculationJournal.Result replay = service.replayJournal(false);
+            assertEquals(last.snapshotId, replay.from.snapshotId);
+            assertEquals(0, replay.events);
+            assertEquals(0, replay.mismatched);
+            assertEquals(2, count("SELECT COUNT(*) FROM availability_snapshots"));
+            assertEquals(2, count("SELECT COUNT(DISTINCT snapshot_id) FROM availability_snapshot_rows"));
+        }
+    }
+
+    private LibraryService open() throws Exception {
+        return LibraryService.open(url(), SqliteProfile.tuned(), new ChangeBus());
+    }
+
+    private String url() {
+        return "jdbc:sqlite:" + new File(dir, "library.db").getPath();
+    }
+
+    private void execute(String sql) throws Exception {
+        try (Connection conn = DriverManager.getConnection(url());
+             Statement stmt = conn.createStatement()) {
+            stmt.execute(sql);
+        }
+    }
+
+    private long count(String sql) throws Exception {
+        try (Connection conn = DriverManager.getConnection(url());
+             Statement stmt = conn.createStatement();
+             ResultSet rs = stmt.executeQuery(sql)) {
+            rs.next();
+            return rs.getLong(1);
+        }
+    }
+}
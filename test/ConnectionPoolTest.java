@@ -0,0 +1,57 @@
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+
+import java.io.File;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+class ConnectionPoolTest {
+    private static final int THREADS = 8;
+
+    @TempDir
+    File dir;
+
+    @Test
+    void writeAfterCloseFails() throws Exception {
+        ConnectionPool pool = new ConnectionPool(url(), SqliteProfile.tuned(), 2);
+        pool.close();
+        assertThrows(SQLException.class, () -> pool.write(statements -> null));
+    }
+
+    // Writers keep submitting while the pool closes under them; each one
+    // must get an answer rather than wait forever on a task nobody runs
+    @Test
+    void closeFinishesEveryQueuedWrite() throws Exception {
+        for (int round = 0; round < 50; round++) {
+            ConnectionPool pool = new ConnectionPool(url(), SqliteProfile.tuned(), 2);
+            List<Thread> callers = new ArrayList<>();
+            for (int t = 0; t < THREADS; t++) {
+                Thread caller = new Thread(() -> {
+                    try {
+                        while (true) {
+                            pool.write(statements -> null);
+                        }
+                    } catch (SQLException e) {
+                        // Closed
+                    }
+                });
+                caller.start();
+                callers.add(caller);
+            }
+            Thread.sleep(2);
+            pool.close();
+            for (Thread caller : callers) {
+                caller.join(5000);
+                assertFalse(caller.isAlive(), "a write was left waiting in round " + round);
+            }
+        }
+    }
+
+    private String url() {
+        return "jdbc:sqlite:" + new File(dir, "pool.db").getPath();
+    }
+}
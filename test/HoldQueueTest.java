@@ -0,0 +1,122 @@
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNotNull;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.io.File;
+import java.time.LocalDate;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+class HoldQueueTest {
+    @TempDir
+    File dir;
+
+    // One copy passed down the queue: each return or release goes to the
+    // oldest waiting hold, skipping cancelled ones, and only reaches the
+    // shelf once nobody is waiting
+    @Test
+    void copyGoesToHoldsInOrderThenToTheShelf() throws Exception {
+        try (LibraryService service = open()) {
+            int bookId = (int) service.addBook("Title", "Author", "9780000000001", 1);
+            int first = member(service, 1);
+            int second = member(service, 2);
+            int third = member(service, 3);
+            int fourth = member(service, 4);
+            service.warmAvailability();
+
+            LibraryService.Loan loan = service.issueBook(first, bookId);
+            assertNotNull(loan);
+            HoldQueue.Placed secondHold = service.placeHold(second, bookId);
+            HoldQueue.Placed thirdHold = service.placeHold(third, bookId);
+            HoldQueue.Placed fourthHold = service.placeHold(fourth, bookId);
+            assertEquals(1, secondHold.position);
+            assertEquals(2, thirdHold.position);
+            assertEquals(3, fourthHold.position);
+            assertNull(service.placeHold(second, bookId), "a second hold by the same member");
+
+            // The returned copy is kept for the head of the queue, off the
+            // shelf, so nobody else can borrow it
+            LibraryService.Return returned = service.returnBook((int) loan.issueId);
+            assertEquals(secondHold.holdId, returned.hold.holdId);
+            assertEquals(second, returned.hold.userId);
+            assertEquals(0, service.availability().available(bookId));
+            assertNull(service.issueBook(third, bookId));
+
+            // Collecting it closes the hold without touching the shelf count
+            LibraryService.Loan collected = service.issueBook(second, bookId);
+            assertEquals(secondHold.holdId, collected.holdId);
+            assertEquals(0, service.availability().available(bookId));
+            assertEquals(Arrays.asList(thirdHold.holdId + ":waiting", fourthHold.holdId + ":waiting"),
+                         queue(service, bookId));
+
+            // A cancelled waiting hold is skipped
+            assertTrue(service.cancelHold(thirdHold.holdId));
+            assertFalse(service.cancelHold(thirdHold.holdId));
+            returned = service.returnBook((int) collected.issueId);
+            assertEquals(fourthHold.holdId, returned.hold.holdId);
+
+            // The last ready hold lapses with nobody behind it, so the copy
+            // goes back on the shelf
+            LocalDate afterPickup = returned.hold.expiresOn.plusDays(1);
+            assertEquals(1, service.expireHolds(afterPickup));
+            assertEquals(1, service.availability().available(bookId));
+            assertEquals(1, ((Number) service.getBook(bookId).get("available_copies")).intValue());
+            assertTrue(queue(service, bookId).isEmpty());
+            assertNull(service.placeHold(third, bookId), "a hold on a book with a copy on the shelf");
+
+            assertEquals(0, service.replayJournal(false).mismatched);
+        }
+    }
+
+    // Cancelling a ready hold passes its copy straight to the next one
+    @Test
+    void cancelledReadyHoldPassesItsCopyOn() throws Exception {
+        try (LibraryService service = open()) {
+            int bookId = (int) service.addBook("Title", "Author", "9780000000001", 1);
+            int first = member(service, 1);
+            int second = member(service, 2);
+            int third = member(service, 3);
+            service.warmAvailability();
+
+            LibraryService.Loan loan = service.issueBook(first, bookId);
+            HoldQueue.Placed secondHold = service.placeHold(second, bookId);
+            HoldQueue.Placed thirdHold = service.placeHold(third, bookId);
+            assertEquals(secondHold.holdId, service.returnBook((int) loan.issueId).hold.holdId);
+
+            assertTrue(service.cancelHold(secondHold.holdId));
+            assertNull(service.issueBook(second, bookId));
+            LibraryService.Loan collected = service.issueBook(third, bookId);
+            assertEquals(thirdHold.holdId, collected.holdId);
+            assertEquals(0, service.availability().available(bookId));
+            assertEquals(0, service.replayJournal(false).mismatched);
+        }
+    }
+
+    // Ready-hold notices go to a file beside the database rather than into
+    // the working directory
+    private LibraryService open() throws Exception {
+        System.setProperty("library.holds.notify_file", new File(dir, "hold-notices.jsonl").getPath());
+        String url = "jdbc:sqlite:" + new File(dir, "library.db").getPath();
+        return LibraryService.open(url, SqliteProfile.tuned(), new ChangeBus());
+    }
+
+    private static int member(LibraryService service, int n) throws Exception {
+        return (int) service.addUser("Member " + n, "member" + n + "@example.com", null);
+    }
+
+    // "hold_id:status" for the book's active holds, head of the queue first
+    private static List<String> queue(LibraryService service, int bookId) throws Exception {
+        List<String> queue = new ArrayList<>();
+        for (Map<String, Object> hold : service.bookHolds(bookId)) {
+            queue.add(hold.get("hold_id") + ":" + hold.get("status"));
+        }
+        return queue;
+    }
+}
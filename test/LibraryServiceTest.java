@@ -0,0 +1,166 @@
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNotNull;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.io.File;
+import java.sql.Connection;
+import java.sql.DriverManager;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.time.LocalDate;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+class LibraryServiceTest {
+    private static final int COPIES = 3;
+    private static final int DESKS = 16;
+
+    @TempDir
+    File dir;
+
+    // Desks race for the last copies of one book: exactly as many loans as
+    // copies go out, and each loan comes back exactly once
+    @Test
+    void concurrentIssueAndReturnNeverOversell() throws Exception {
+        try (LibraryService service = open()) {
+            int bookId = (int) service.addBook("Title", "Author", "9780000000001", COPIES);
+            List<Integer> members = new ArrayList<>();
+            for (int i = 0; i < DESKS; i++) {
+                members.add((int) service.addUser("Member " + i, "member" + i + "@example.com", null));
+            }
+            service.warmAvailability();
+
+            ExecutorService desks = Executors.newFixedThreadPool(DESKS);
+            try {
+                CountDownLatch start = new CountDownLatch(1);
+                List<Future<LibraryService.Loan>> issues = new ArrayList<>();
+                for (int member : members) {
+                    issues.add(desks.submit(() -> {
+                        start.await();
+                        return service.issueBook(member, bookId);
+                    }));
+                }
+                start.countDown();
+                List<LibraryService.Loan> loans = new ArrayList<>();
+                for (Future<LibraryService.Loan> issue : issues) {
+                    if (issue.get() != null) {
+                        loans.add(issue.get());
+                    }
+                }
+                assertEquals(COPIES, loans.size());
+                assertEquals(0, ((Number) service.getBook(bookId).get("available_copies")).intValue());
+                assertEquals(COPIES, service.listLoans(0, DESKS).size());
+
+                // Every loan returned from two desks at once
+                CountDownLatch again = new CountDownLatch(1);
+                List<Future<LibraryService.Return>> returns = new ArrayList<>();
+                for (LibraryService.Loan loan : loans) {
+                    for (int desk = 0; desk < 2; desk++) {
+                        returns.add(desks.submit(() -> {
+                            again.await();
+                            return service.returnBook((int) loan.issueId);
+                        }));
+                    }
+                }
+                again.countDown();
+                int returned = 0;
+                for (Future<LibraryService.Return> result : returns) {
+                    if (result.get() != null) {
+                        returned++;
+                    }
+                }
+                assertEquals(COPIES, returned);
+            } finally {
+                desks.shutdown();
+            }
+            assertEquals(COPIES, ((Number) service.getBook(bookId).get("available_copies")).intValue());
+            assertEquals(COPIES, service.availability().available(bookId));
+            assertTrue(service.listLoans(0, DESKS).isEmpty());
+            assertEquals(0, service.replayJournal(false).mismatched);
+        }
+    }
+
+    // A loan for a member who does not exist fails whole: no copy taken
+    // and nothing journalled
+    @Test
+    void issueToMissingMemberTakesNoCopy() throws Exception {
+        try (LibraryService service = open()) {
+            int bookId = (int) service.addBook("Title", "Author", "9780000000001", 2);
+            SQLException e = assertThrows(SQLException.class, () -> service.issueBook(999, bookId));
+            assertEquals(19, e.getErrorCode());
+            assertEquals(2, ((Number) service.getBook(bookId).get("available_copies")).intValue());
+            assertEquals(2, service.availability().available(bookId));
+            assertTrue(service.listLoans(0, 10).isEmpty());
+            assertEquals(0, service.replayJournal(false).mismatched);
+        }
+    }
+
+    @Test
+    void holdForMissingMemberFails() throws Exception {
+        try (LibraryService service = open()) {
+            int bookId = (int) service.addBook("Title", "Author", "9780000000001", 1);
+            int userId = (int) service.addUser("Member", "member@example.com", null);
+            assertNotNull(service.issueBook(userId, bookId));
+            SQLException e = assertThrows(SQLException.class, () -> service.placeHold(999, bookId));
+            assertEquals(19, e.getErrorCode());
+            assertTrue(service.bookHolds(bookId).isEmpty());
+        }
+    }
+
+    // Loans keep the book and the member they name
+    @Test
+    void deleteReferencedBookOrMemberFails() throws Exception {
+        try (LibraryService service = open()) {
+            int bookId = (int) service.addBook("Title", "Author", "9780000000001", 1);
+            int userId = (int) service.addUser("Member", "member@example.com", null);
+            assertNotNull(service.issueBook(userId, bookId));
+            assertEquals(19, assertThrows(SQLException.class, () -> service.deleteBook(bookId)).getErrorCode());
+            assertEquals(19, assertThrows(SQLException.class, () -> service.deleteUser(userId)).getErrorCode());
+            assertNotNull(service.getBook(bookId));
+            assertNotNull(service.getUser(userId));
+            assertEquals(1, service.listLoans(0, 10).size());
+        }
+    }
+
+    // The fee goes into the loan and the day's totals as the same whole
+    // number of paise the fee policy worked out
+    @Test
+    void lateReturnStoresFeeInPaise() throws Exception {
+        try (LibraryService service = open()) {
+            int bookId = (int) service.addBook("Title", "Author", "9780000000001", 1);
+            int userId = (int) service.addUser("Member", "member@example.com", null);
+            LibraryService.Loan loan = service.issueBook(userId, bookId);
+            LocalDate due = LocalDate.now().minusDays(9);
+            try (Connection conn = DriverManager.getConnection(url());
+                 Statement stmt = conn.createStatement()) {
+                stmt.execute("UPDATE issued_books SET due_date = '" + due + "' WHERE issue_id = " + loan.issueId);
+            }
+
+            LibraryService.Return returned = service.returnBook((int) loan.issueId);
+            long expected = service.fees().feePaise(due, LocalDate.now());
+            assertTrue(expected > 0);
+            assertEquals(expected, returned.lateFeePaise);
+            Map<String, Object> stored = service.userHistory(userId, Long.MAX_VALUE, 1).get(0);
+            assertEquals(expected, ((Number) stored.get("late_fee_paise")).longValue());
+            Map<String, Object> today = service.dailyCirculation(LocalDate.now(), LocalDate.now(), 1).get(0);
+            assertEquals(expected, ((Number) today.get("fee_paise")).longValue());
+        }
+    }
+
+    private LibraryService open() throws Exception {
+        return LibraryService.open(url(), SqliteProfile.tuned(), new ChangeBus());
+    }
+
+    private String url() {
+        return "jdbc:sqlite:" + new File(dir, "library.db").getPath();
+    }
+}
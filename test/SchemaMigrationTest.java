@@ -0,0 +1,119 @@
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+
+import java.io.File;
+import java.sql.Connection;
+import java.sql.DriverManager;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.time.LocalDate;
+import java.util.List;
+import java.util.Map;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+class SchemaMigrationTest {
+    @TempDir
+    File dir;
+
+    // A database from before schema versioning keeps its rows and gains
+    // everything the migrations add: search over the books already there,
+    // circulation stats built from its loans and a first snapshot
+    @Test
+    void unversionedDatabaseMigratesToLatest() throws Exception {
+        String url = url();
+        try (Connection conn = DriverManager.getConnection(url);
+             Statement stmt = conn.createStatement()) {
+            createUnversioned(stmt);
+            stmt.execute("INSERT INTO books (title, author, isbn, total_copies, available_copies) " +
+                         "VALUES ('Midnight Harbor', 'Author', '9780000000001', 2, 1), " +
+                         "('Silver Orchard', 'Author', '9780000000002', 1, 1)");
+            stmt.execute("INSERT INTO users (name, email) VALUES ('Member', 'member@example.com')");
+            stmt.execute("INSERT INTO issued_books (book_id, user_id, issue_date, due_date) " +
+                         "VALUES (1, 1, '2026-03-02', '2026-03-16')");
+            stmt.execute("INSERT INTO issued_books (book_id, user_id, issue_date, due_date, return_date) " +
+                         "VALUES (2, 1, '2026-03-02', '2026-03-16', '2026-03-10')");
+            assertEquals(0, SchemaMigrator.userVersion(conn));
+        }
+
+        int latest = LibrarySchema.migrator().latestVersion();
+        try (LibraryService service = LibraryService.open(url, SqliteProfile.tuned(), new ChangeBus())) {
+            assertEquals(2, service.listBooks(0, 10).size());
+            assertEquals(1, service.listLoans(0, 10).size());
+            assertEquals(1, service.searchBooks("harbor", 10).size());
+            Map<String, Object> day = service.dailyCirculation(LocalDate.parse("2026-03-02"),
+                                                               LocalDate.parse("2026-03-02"), 1).get(0);
+            assertEquals(2L, ((Number) day.get("issues")).longValue());
+            CirculationJournal.Result replay = service.replayJournal(false);
+            assertEquals(2, replay.from.books);
+            assertEquals(0, replay.mismatched);
+        }
+        try (Connection conn = DriverManager.getConnection(url)) {
+            assertEquals(latest, SchemaMigrator.userVersion(conn));
+            // Already current: nothing to apply
+            assertEquals(latest, LibrarySchema.migrator().migrate(conn));
+        }
+    }
+
+    @Test
+    void newerDatabaseIsRefused() throws Exception {
+        String url = url();
+        try (Connection conn = DriverManager.getConnection(url);
+             Statement stmt = conn.createStatement()) {
+            stmt.execute("PRAGMA user_version = " + (LibrarySchema.migrator().latestVersion() + 1));
+        }
+        assertThrows(SQLException.class, () -> LibraryService.open(url, SqliteProfile.tuned(), new ChangeBus()));
+    }
+
+    // Fees kept in rupees before migration 10 come out in paise, rounded
+    // rather than truncated, and the rupee column is gone
+    @Test
+    void rupeeFeesMoveToPaise() throws Exception {
+        String url = url();
+        try (Connection conn = DriverManager.getConnection(url);
+             Statement stmt = conn.createStatement()) {
+            createUnversioned(stmt);
+            stmt.execute("INSERT INTO books (title, author, isbn) VALUES ('Title', 'Author', '9780000000001')");
+            stmt.execute("INSERT INTO users (name, email) VALUES ('Member', 'member@example.com')");
+            stmt.execute("INSERT INTO issued_books (book_id, user_id, issue_date, due_date, return_date, late_fee) " +
+                         "VALUES (1, 1, '2026-01-01', '2026-01-15', '2026-01-20', 12.5), " +
+                         "(1, 1, '2026-02-01', '2026-02-15', '2026-02-17', 0.29)");
+        }
+        try (LibraryService service = LibraryService.open(url, SqliteProfile.tuned(), new ChangeBus())) {
+            List<Map<String, Object>> history = service.userHistory(1, Long.MAX_VALUE, 10);
+            assertEquals(29L, ((Number) history.get(0).get("late_fee_paise")).longValue());
+            assertEquals(1250L, ((Number) history.get(1).get("late_fee_paise")).longValue());
+        }
+        try (Connection conn = DriverManager.getConnection(url);
+             Statement stmt = conn.createStatement()) {
+            for (String table : new String[] {"issued_books", "issued_books_archive"}) {
+                try (ResultSet rs = stmt.executeQuery("PRAGMA table_info(" + table + ")")) {
+                    while (rs.next()) {
+                        assertFalse(rs.getString("name").equals("late_fee"), table);
+                    }
+                }
+            }
+        }
+    }
+
+    private String url() {
+        return "jdbc:sqlite:" + new File(dir, "library.db").getPath();
+    }
+
+    // The tables as the application created them before schema versioning
+    private static void createUnversioned(Statement stmt) throws Exception {
+        stmt.execute("CREATE TABLE books (" +
+                     "book_id INTEGER PRIMARY KEY AUTOINCREMENT, title TEXT NOT NULL, author TEXT NOT NULL, " +
+                     "isbn TEXT UNIQUE, total_copies INTEGER DEFAULT 1, available_copies INTEGER DEFAULT 1)");
+        stmt.execute("CREATE TABLE users (" +
+                     "user_id INTEGER PRIMARY KEY AUTOINCREMENT, name TEXT NOT NULL, email TEXT UNIQUE, phone TEXT)");
+        stmt.execute("CREATE TABLE issued_books (" +
+                     "issue_id INTEGER PRIMARY KEY AUTOINCREMENT, book_id INTEGER, user_id INTEGER, " +
+                     "issue_date DATE, due_date DATE, return_date DATE, late_fee REAL DEFAULT 0, " +
+                     "FOREIGN KEY(book_id) REFERENCES books(book_id), " +
+                     "FOREIGN KEY(user_id) REFERENCES users(user_id))");
+    }
+}